@@ -1,35 +1,575 @@
 package com.cocoonshu.example.imageclipper;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.cocoonshu.example.imageclipper.core.AutoCropEngine;
+import com.cocoonshu.example.imageclipper.core.AutoCropEngine.Suggestion;
+import com.cocoonshu.example.imageclipper.core.ClipGeometry;
+import com.cocoonshu.example.imageclipper.core.FrameMetrics;
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+import com.cocoonshu.example.imageclipper.core.MotionTrace;
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+import com.cocoonshu.example.imageclipper.core.SnapIndex;
+import com.cocoonshu.example.imageclipper.crop.CropDiskCache;
+import com.cocoonshu.example.imageclipper.crop.CropExporter;
+import com.cocoonshu.example.imageclipper.crop.CropExporter.BatchExportCallback;
+import com.cocoonshu.example.imageclipper.crop.CropExporter.BatchExportTask;
+import com.cocoonshu.example.imageclipper.crop.CropExporter.ExportCallback;
+import com.cocoonshu.example.imageclipper.crop.CropExporter.ExportOptions;
+import com.cocoonshu.example.imageclipper.crop.CropExporter.ExportTask;
+import com.cocoonshu.example.imageclipper.crop.ImageRegionCropper;
+import com.cocoonshu.example.imageclipper.view.BitmapPool;
 import com.cocoonshu.example.imageclipper.view.ImageClipper;
+import com.cocoonshu.example.imageclipper.view.ImageClipper.OnClipFrameChangedListener;
+import com.cocoonshu.example.imageclipper.view.ImageTransform;
+import com.cocoonshu.example.imageclipper.view.ProgressiveImageLoader;
+import com.cocoonshu.example.imageclipper.view.TiledImageView;
+import com.cocoonshu.example.imageclipper.view.TiledImageView.OnFirstDrawListener;
 
+import android.app.ActionBar;
 import android.app.Activity;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.ImageView;
+import android.widget.Toast;
+
+public class MainActivity extends Activity implements ExportCallback, BatchExportCallback, ProgressiveImageLoader.Callback {
 
-public class MainActivity extends Activity {
+	private static final String TAG = "MainActivity";
+	
+	// Budget from loading start until the image is on screen and can be clipped
+	private static final long   TimeToInteractiveBudgetMillis = 100;
+	private static final long   NanosPerMilli                 = 1000000;
+	private static final float  StraightenStepDegrees         = 1f;
+	private static final float  MaxStraightenDegrees          = 45f;
+	private static final String MotionTraceFileName           = "clipper_motion.trace";
+	private static final String CropCacheDirName              = "crops";
+	private static final long   CropCacheMaxBytes             = 32L * 1024 * 1024;
 
-	private ImageView    mImgBackground   = null;
-	private ImageClipper mIcpImageClipper = null;
+	private TiledImageView      mImgBackground   = null;
+	private ImageClipper        mIcpImageClipper = null;
+	private BitmapRegionDecoder mImageDecoder    = null;
+	private ImageRegionCropper  mImageCropper    = null;
+	private CropExporter        mCropExporter    = null;
+	private CropDiskCache       mCropCache       = null;
+	private ExportTask          mExportTask      = null;
+	private BatchExportTask     mBatchExportTask = null;
+	private ProgressiveImageLoader mImageLoader  = null;
+	private Bitmap              mImagePreview    = null;
+	private long                mTimeToInteractiveNanos = 0;
+	private AutoCropEngine      mAutoCropEngine  = null;
+	private ExecutorService     mAutoCropExecutor = null;
+	private int[]               mAnalysisPixels  = null;
+	private int                 mAnalysisWidth   = 0;
+	private int                 mAnalysisHeight  = 0;
+	private int                 mAutoCropGeneration = 0;
+	private int                 mSnapIndexGeneration = 0;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 		
+		mCropExporter     = new CropExporter();
+		mCropCache        = new CropDiskCache(new File(getCacheDir(), CropCacheDirName), CropCacheMaxBytes);
+		mAutoCropEngine   = new AutoCropEngine();
+		mAutoCropExecutor = Executors.newSingleThreadExecutor();
 		setupViews();
 		setupListeners();
+		loadImage();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		FrameMetrics metrics = mIcpImageClipper.getFrameMetrics();
+		if (metrics != null) {
+			Log.i(TAG, "[onPause] ImageClipper metrics:\n" + metrics.dump());
+			Log.i(TAG, "[onPause] " + mImgBackground.getBitmapPool());
+		}
+		// Cache IO runs on the export threads, which may hold the cache lock for a journal rebuild
+		mCropExporter.flushDiskCache();
+		saveMotionTrace();
+	}
+
+	/**
+	 * Write the motion trace recorded so far, it can be pulled and replayed with
+	 * the MotionTraceReplayer of the benchmark module
+	 */
+	private void saveMotionTrace() {
+		MotionTrace trace = mIcpImageClipper.getMotionTrace();
+		if (trace == null || trace.getRecordCount() == 0) {
+			return;
+		}
+		File         cacheDir = getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir();
+		File         file     = new File(cacheDir, MotionTraceFileName);
+		OutputStream output   = null;
+		try {
+			output = new BufferedOutputStream(new FileOutputStream(file));
+			trace.write(output);
+			Log.i(TAG, "[saveMotionTrace] " + trace.getRecordCount() + " records saved to " + file);
+		} catch (IOException exp) {
+			Log.w(TAG, "[saveMotionTrace] Failed to save motion trace", exp);
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException exp) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		cancelExport();
+		// Also closes the disk cache once the running exports have stopped
+		mCropExporter.shutdown();
+		mAutoCropExecutor.shutdownNow();
+		mAutoCropEngine.shutdown();
+		mImageLoader.cancel();
+		mImgBackground.setImageDecoder(null);
+		if (mImagePreview != null) {
+			mImagePreview.recycle();
+			mImagePreview = null;
+		}
+		if (mImageCropper != null) {
+			mImageCropper.release();
+			mImageCropper = null;
+			mImageDecoder = null;
+		}
+		mImgBackground.getBitmapPool().clear();
 	}
 
 	private void setupViews() {
-		mImgBackground   = (ImageView) findViewById(R.id.ImageViewBackground);
+		mImgBackground   = (TiledImageView) findViewById(R.id.TiledImageBackground);
 		mIcpImageClipper = (ImageClipper) findViewById(R.id.ImageClipper);
+		
+		// Debuggable builds collect frame and latency histograms, dumped when the activity pauses,
+		// and a motion trace of the session for off device replay
+		boolean isDebuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+		mIcpImageClipper.setMetricsEnabled(isDebuggable);
+		mIcpImageClipper.setMotionTraceEnabled(isDebuggable);
 	}
 	
 	private void setupListeners() {
-		// TODO Auto-generated method stub
+		// Tiles, previews and export strips recycle their bitmaps through one pool
+		mCropExporter.setBitmapPool(mImgBackground.getBitmapPool());
+		// Exporting a crop which was exported before is a copy out of the disk cache
+		mCropExporter.setDiskCache(mCropCache);
+		
+		// The clipper and the image layer share one transform, so the frame always maps to source pixels
+		mIcpImageClipper.setImageTransform(mImgBackground.getImageTransform());
+		mIcpImageClipper.setOnClipFrameChangedListener(new OnClipFrameChangedListener() {
+			
+			@Override
+			public void onClipFrameChanged(ImageClipper clipper) {
+				// The running export no longer matches the frame
+				cancelExport();
+			}
+			
+		});
+		mImgBackground.setOnFirstDrawListener(new OnFirstDrawListener() {
+			
+			@Override
+			public void onFirstDraw(TiledImageView view, long drawTimeNanos) {
+				onImageInteractive(drawTimeNanos);
+			}
+			
+		});
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		getMenuInflater().inflate(R.menu.main, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		// Stored regions are batch exported unrotated, so none can be taken while straightened
+		MenuItem addRegion = menu.findItem(R.id.MenuAddRegion);
+		if (addRegion != null) {
+			addRegion.setEnabled(mImgBackground.getImageTransform().getRotation() == 0);
+		}
+		return super.onPrepareOptionsMenu(menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.id.MenuExport:
+			startExport();
+			return true;
+		case R.id.MenuAddRegion:
+			if (mImgBackground.getImageTransform().getRotation() == 0) {
+				mIcpImageClipper.addClipRegion();
+			}
+			return true;
+		case R.id.MenuClearRegions:
+			mIcpImageClipper.clearClipRegions();
+			return true;
+		case R.id.MenuRotateLeft:
+			straighten(-StraightenStepDegrees);
+			return true;
+		case R.id.MenuRotateRight:
+			straighten(StraightenStepDegrees);
+			return true;
+		case R.id.MenuRotateReset:
+			straighten(-mImgBackground.getImageTransform().getRotation());
+			return true;
+		case R.id.MenuAspectRatioFree:
+			item.setChecked(true);
+			mIcpImageClipper.setAspectRatio(ClipGeometry.ASPECT_RATIO_FREE);
+			requestAutoCrop();
+			return true;
+		case R.id.MenuAspectRatioSquare:
+			item.setChecked(true);
+			mIcpImageClipper.setAspectRatio(1, 1);
+			requestAutoCrop();
+			return true;
+		case R.id.MenuAspectRatio4By3:
+			item.setChecked(true);
+			mIcpImageClipper.setAspectRatio(4, 3);
+			requestAutoCrop();
+			return true;
+		case R.id.MenuAspectRatio16By9:
+			item.setChecked(true);
+			mIcpImageClipper.setAspectRatio(16, 9);
+			requestAutoCrop();
+			return true;
+		default:
+			return super.onOptionsItemSelected(item);
+		}
+	}
+
+	/**
+	 * Rotate the image by <tt>degrees</tt>, the clip frame is reset to the
+	 * largest frame inside the rotated image
+	 */
+	private void straighten(float degrees) {
+		ImageTransform transform = mImgBackground.getImageTransform();
+		float rotation = MathUtils.clamp(transform.getRotation() + degrees, -MaxStraightenDegrees, MaxStraightenDegrees);
+		if (rotation == transform.getRotation()) {
+			return;
+		}
+		// Stored regions were taken against the previous rotation
+		mIcpImageClipper.clearClipRegions();
+		transform.setRotation(rotation);
+		invalidateOptionsMenu();
+		requestAutoCrop();
+	}
+
+	private void startExport() {
+		if (mImageCropper == null) {
+			return;
+		}
+		cancelExport();
+		float rotation = mImgBackground.getImageTransform().getRotation();
+		if (mIcpImageClipper.getClipRegionCount() > 0 && rotation == 0) {
+			startBatchExport();
+			return;
+		}
 		
+		ExportOptions  options  = new ExportOptions();
+		options.rotation = rotation;
+		NormalizedRect region   = mIcpImageClipper.getNormalizedFrame(new NormalizedRect());
+		File           cacheDir = getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir();
+		File           output   = new File(cacheDir,
+				"clip_" + System.currentTimeMillis() + "." + options.format.getExtension());
+		mExportTask = mCropExporter.export(mImageCropper, region, output, options, this);
+	}
+
+	/**
+	 * Export the stored regions and the current frame in one decode pass
+	 */
+	private void startBatchExport() {
+		List<NormalizedRect> regions = mIcpImageClipper.getClipRegions();
+		regions.add(mIcpImageClipper.getNormalizedFrame(new NormalizedRect()));
+		
+		int    count     = regions.size();
+		File   cacheDir  = getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir();
+		long   timestamp = System.currentTimeMillis();
+		File[] outputs   = new File[count];
+		ExportOptions[] options = new ExportOptions[count];
+		for (int i = 0; i < count; i++) {
+			options[i] = new ExportOptions();
+			outputs[i] = new File(cacheDir, "clip_" + timestamp + "_" + i + "." + options[i].format.getExtension());
+		}
+		mBatchExportTask = mCropExporter.exportBatch(mImageCropper,
+				regions.toArray(new NormalizedRect[count]), outputs, options, this);
+	}
+
+	private void cancelExport() {
+		if (mExportTask != null) {
+			mExportTask.cancel();
+			mExportTask = null;
+			setExportSubtitle(null);
+		}
+		if (mBatchExportTask != null) {
+			mBatchExportTask.cancel();
+			mBatchExportTask = null;
+			setExportSubtitle(null);
+		}
+	}
+
+	private void setExportSubtitle(CharSequence subtitle) {
+		ActionBar actionBar = getActionBar();
+		if (actionBar != null) {
+			actionBar.setSubtitle(subtitle);
+		}
+	}
+
+	@Override
+	public void onExportProgress(ExportTask task, float progress) {
+		if (task == mExportTask) {
+			setExportSubtitle(getString(R.string.export_progress, (int) (progress * 100)));
+		}
+	}
+
+	@Override
+	public void onExportCompleted(ExportTask task) {
+		if (task == mExportTask) {
+			mExportTask = null;
+			setExportSubtitle(null);
+			Toast.makeText(this, getString(R.string.export_completed, task.getOutputFile()), Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	@Override
+	public void onExportFailed(ExportTask task, Exception exception) {
+		if (task == mExportTask) {
+			mExportTask = null;
+			setExportSubtitle(null);
+			Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	@Override
+	public void onExportCancelled(ExportTask task) {
+		// Do nothing
+	}
+
+	@Override
+	public void onBatchExportProgress(BatchExportTask task, float progress) {
+		if (task == mBatchExportTask) {
+			setExportSubtitle(getString(R.string.export_progress, (int) (progress * 100)));
+		}
+	}
+
+	@Override
+	public void onBatchExportCompleted(BatchExportTask task) {
+		if (task == mBatchExportTask) {
+			mBatchExportTask = null;
+			setExportSubtitle(null);
+			Toast.makeText(this, getString(R.string.export_batch_completed,
+					task.getRegionCount(), task.getOutputFile(0).getParent()), Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	@Override
+	public void onBatchExportFailed(BatchExportTask task, Exception exception) {
+		if (task == mBatchExportTask) {
+			mBatchExportTask = null;
+			setExportSubtitle(null);
+			Toast.makeText(this, R.string.export_failed, Toast.LENGTH_SHORT).show();
+		}
+	}
+
+	@Override
+	public void onBatchExportCancelled(BatchExportTask task) {
+		// Do nothing
+	}
+
+	/**
+	 * Load the image progressively, a subsampled preview is shown and
+	 * clippable while the full resolution decoder is being opened
+	 */
+	private void loadImage() {
+		mImageLoader = new ProgressiveImageLoader(getResources(), R.drawable.image);
+		mImageLoader.setBitmapPool(mImgBackground.getBitmapPool());
+		mImageLoader.start(this);
+	}
+
+	/**
+	 * @return nanoseconds from loading start until the image was first drawn, 0 if not yet
+	 */
+	public long getTimeToInteractiveNanos() {
+		return mTimeToInteractiveNanos;
+	}
+
+	private void onImageInteractive(long drawTimeNanos) {
+		mTimeToInteractiveNanos = drawTimeNanos - mImageLoader.getStartTimeNanos();
+		long timeToInteractiveMillis = mTimeToInteractiveNanos / NanosPerMilli;
+		String report = "Time to interactive " + timeToInteractiveMillis + "ms, preview decoded in "
+				+ mImageLoader.getPreviewLatencyNanos() / NanosPerMilli + "ms";
+		if (timeToInteractiveMillis > TimeToInteractiveBudgetMillis) {
+			Log.w(TAG, "[onImageInteractive] " + report + ", over the " + TimeToInteractiveBudgetMillis + "ms budget");
+		} else {
+			Log.i(TAG, "[onImageInteractive] " + report);
+		}
+	}
+
+	@Override
+	public void onPreviewLoaded(ProgressiveImageLoader loader, Bitmap preview, int imageWidth, int imageHeight) {
+		// A sharper preview replaces the previous one
+		mImgBackground.setPreview(preview, imageWidth, imageHeight);
+		mImgBackground.getBitmapPool().put(mImagePreview);
+		mImagePreview = preview;
+		prepareAnalysisImage(preview);
+		requestAutoCrop();
+		requestSnapIndex(preview);
+	}
+
+	/**
+	 * Build the snap index of the image from its preview in the background,
+	 * the drag path then only does binary searches
+	 */
+	private void requestSnapIndex(Bitmap preview) {
+		final int   generation  = ++mSnapIndexGeneration;
+		final int   width       = preview.getWidth();
+		final int   height      = preview.getHeight();
+		final int[] pixels      = new int[width * height];
+		final int   columnCount = mIcpImageClipper.getGridColumnCount();
+		final int   rowCount    = mIcpImageClipper.getGridRowCount();
+		final int   gridStyle   = mIcpImageClipper.getGridStyle();
+		// The preview may go back to the bitmap pool, so its pixels are copied here
+		preview.getPixels(pixels, 0, width, 0, 0, width, height);
+		mAutoCropExecutor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				final SnapIndex index = SnapIndex.build(pixels, width, height,
+						columnCount, rowCount, gridStyle, SnapIndex.DefaultMaxEdges);
+				runOnUiThread(new Runnable() {
+					
+					@Override
+					public void run() {
+						if (generation == mSnapIndexGeneration && !isFinishing()) {
+							mIcpImageClipper.setSnapIndex(index);
+						}
+					}
+					
+				});
+			}
+			
+		});
+	}
+
+	/**
+	 * Keep a copy of the preview small enough for {@link AutoCropEngine}
+	 */
+	private void prepareAnalysisImage(Bitmap preview) {
+		float  scale  = Math.min(1f, (float) AutoCropEngine.AnalysisMaxSize
+				/ Math.max(preview.getWidth(), preview.getHeight()));
+		int    width  = Math.max(1, Math.round(preview.getWidth() * scale));
+		int    height = Math.max(1, Math.round(preview.getHeight() * scale));
+		Bitmap scaled = Bitmap.createScaledBitmap(preview, width, height, true);
+		mAnalysisPixels = new int[width * height];
+		mAnalysisWidth  = width;
+		mAnalysisHeight = height;
+		scaled.getPixels(mAnalysisPixels, 0, width, 0, 0, width, height);
+		if (scaled != preview) {
+			scaled.recycle();
+		}
+	}
+
+	/**
+	 * Compute a suggested frame for the current aspect ratio and grid in the
+	 * background. Only the latest request is applied, and only while the user
+	 * has not touched the frame yet nor straightened the image.
+	 */
+	private void requestAutoCrop() {
+		final int   generation  = ++mAutoCropGeneration;
+		if (mAnalysisPixels == null || mImgBackground.getImageTransform().getRotation() != 0) {
+			// Suggestions are normalized to the unrotated image
+			return;
+		}
+		final int[] pixels      = mAnalysisPixels;
+		final int   width       = mAnalysisWidth;
+		final int   height      = mAnalysisHeight;
+		final float aspectRatio = mIcpImageClipper.getAspectRatio();
+		final int   columnCount = mIcpImageClipper.getGridColumnCount();
+		final int   rowCount    = mIcpImageClipper.getGridRowCount();
+		final int   gridStyle   = mIcpImageClipper.getGridStyle();
+		mAutoCropExecutor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				final Suggestion suggestion = mAutoCropEngine.suggest(
+						pixels, width, height, aspectRatio, columnCount, rowCount, gridStyle);
+				if (suggestion == null) {
+					return;
+				}
+				runOnUiThread(new Runnable() {
+					
+					@Override
+					public void run() {
+						if (generation == mAutoCropGeneration && !isFinishing()) {
+							boolean isApplied = mIcpImageClipper.suggestClipFrame(suggestion.frame);
+							Log.i(TAG, "[requestAutoCrop] " + suggestion + (isApplied ? ", applied" : ", ignored"));
+						}
+					}
+					
+				});
+			}
+			
+		});
+	}
+
+	@Override
+	public void onDecoderLoaded(ProgressiveImageLoader loader, BitmapRegionDecoder decoder) {
+		Log.i(TAG, "[onDecoderLoaded] Full resolution decoder opened in "
+				+ loader.getDecoderLatencyNanos() / NanosPerMilli + "ms");
+		mImageDecoder = decoder;
+		mImageCropper = new ImageRegionCropper(mImageDecoder);
+		mImageCropper.setBitmapPool(mImgBackground.getBitmapPool());
+		mImgBackground.setImageDecoder(mImageDecoder);
+		requestSourceKey(mImageCropper);
+	}
+
+	/**
+	 * Hash the image content in the background, crops are exported uncached until it is known
+	 */
+	private void requestSourceKey(final ImageRegionCropper cropper) {
+		mAutoCropExecutor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				InputStream input = getResources().openRawResource(R.drawable.image);
+				try {
+					cropper.setSourceKey(CropDiskCache.hashContent(input));
+				} catch (IOException exp) {
+					Log.w(TAG, "[requestSourceKey] Failed to hash image", exp);
+				} finally {
+					try {
+						input.close();
+					} catch (IOException exp) {
+						// Ignore
+					}
+				}
+			}
+			
+		});
+	}
+
+	@Override
+	public void onLoadFailed(ProgressiveImageLoader loader, Exception exception) {
+		Log.e(TAG, "[onLoadFailed] Failed to open image", exception);
 	}
 	
 }
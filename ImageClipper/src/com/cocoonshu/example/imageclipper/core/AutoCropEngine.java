@@ -0,0 +1,433 @@
+package com.cocoonshu.example.imageclipper.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Suggests an initial clip frame from the content of a small, downsampled
+ * copy of the image. Every pixel gets an energy of edge strength plus local
+ * contrast saliency; both are read through integral images, so a candidate
+ * frame is scored in constant time: the energy it keeps, minus a penalty for
+ * its area, plus the energy under the grid intersections of the frame.
+ * <p>
+ * Each pass runs in horizontal or vertical bands across a fixed thread pool,
+ * the calling thread takes the first band. For a 160px analysis image this
+ * takes a few milliseconds. Framework free, so it also runs on the plain JVM.
+ */
+public class AutoCropEngine {
+
+    /** Longest side the analysis image is expected to be downsampled to */
+    public static final int      AnalysisMaxSize       = 160;
+
+    private static final float   SaliencyWeight        = 0.5f;
+    private static final int     SaliencyRadiusDivisor = 8;
+    private static final float   AreaWeight            = 0.35f;
+    private static final float   GridWeight            = 0.25f;
+    private static final int     GridSpotDivisor       = 12;
+    private static final int     PositionSteps         = 12;
+    private static final float[] CandidateScales       = {1f, 0.9f, 0.8f, 0.7f, 0.6f, 0.5f};
+    private static final int     MinBandSize           = 8;
+
+    /**
+     * Result of {@link AutoCropEngine#suggest}
+     */
+    public static class Suggestion {
+        /** Suggested frame, normalized to the image */
+        public final NormalizedRect frame;
+        /** Score of the frame, higher is better; a flat image scores 1 - area penalty */
+        public final float          score;
+        public final int            candidateCount;
+        public final long           elapsedNanos;
+
+        Suggestion(NormalizedRect frame, float score, int candidateCount, long elapsedNanos) {
+            this.frame          = frame;
+            this.score          = score;
+            this.candidateCount = candidateCount;
+            this.elapsedNanos   = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Suggestion[" + frame + ", score " + score + ", " + candidateCount + " candidates in "
+                    + elapsedNanos / 1000 + "us]";
+        }
+    }
+
+    /**
+     * Work on the index range [start, end) of one band
+     */
+    private interface BandTask {
+        void run(int start, int end);
+    }
+
+    private final ExecutorService mExecutor;
+    private final int             mParallelism;
+
+    public AutoCropEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public AutoCropEngine(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        mExecutor    = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AutoCrop-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Suggest a clip frame. Must not be called from a thread of this engine.
+     * @param pixels      ARGB pixels of the analysis image, row major
+     * @param width       analysis image width, about {@link #AnalysisMaxSize} or less
+     * @param height      analysis image height
+     * @param aspectRatio frame width / height, or {@link ClipGeometry#ASPECT_RATIO_FREE}
+     * @param columnCount grid columns of the clip frame
+     * @param rowCount    grid rows of the clip frame
+     * @param gridStyle   {@link ClipGeometry#GRID_STYLE_UNIFORM} or {@link ClipGeometry#GRID_STYLE_GOLDEN_RATIO}
+     * @return the best frame, or null if the calling thread was interrupted
+     */
+    public Suggestion suggest(final int[] pixels, final int width, final int height, float aspectRatio,
+                              int columnCount, int rowCount, int gridStyle) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Invalid analysis image " + width + "x" + height);
+        }
+        long startTime = System.nanoTime();
+        try {
+            final int[] luminance = new int[width * height];
+            runBands(height, new BandTask() {
+
+                @Override
+                public void run(int start, int end) {
+                    for (int i = start * width; i < end * width; i++) {
+                        int color = pixels[i];
+                        luminance[i] = (((color >> 16) & 0xFF) * 77 + ((color >> 8) & 0xFF) * 150
+                                + (color & 0xFF) * 29) >> 8;
+                    }
+                }
+
+            });
+            long[] luminanceIntegral = buildIntegral(luminance, width, height);
+            int[]  energy            = computeEnergy(luminance, luminanceIntegral, width, height);
+            long[] energyIntegral    = buildIntegral(energy, width, height);
+
+            CandidateSet candidates = new CandidateSet(width, height, aspectRatio,
+                    ClipGeometry.computeGridStops(Math.max(1, columnCount), gridStyle),
+                    ClipGeometry.computeGridStops(Math.max(1, rowCount), gridStyle));
+            int best = candidates.findBest(energyIntegral);
+
+            NormalizedRect frame = new NormalizedRect();
+            float score = 1f - AreaWeight;
+            if (best >= 0) {
+                int[] rect = candidates.getRect(best, new int[4]);
+                frame.set((float) rect[0] / width, (float) rect[1] / height,
+                          (float) rect[2] / width, (float) rect[3] / height);
+                score = candidates.getBestScore();
+            }
+            return new Suggestion(frame, score, candidates.getCount(), System.nanoTime() - startTime);
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private int[] computeEnergy(final int[] luminance, final long[] luminanceIntegral,
+                                final int width, final int height) throws InterruptedException {
+        final int[] energy = new int[width * height];
+        final int   radius = Math.max(1, Math.max(width, height) / SaliencyRadiusDivisor);
+        runBands(height, new BandTask() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int y = start; y < end; y++) {
+                    int up   = (y > 0 ? y - 1 : y) * width;
+                    int down = (y < height - 1 ? y + 1 : y) * width;
+                    int top    = Math.max(0, y - radius);
+                    int bottom = Math.min(height, y + radius + 1);
+                    for (int x = 0; x < width; x++) {
+                        int index = y * width + x;
+                        int left  = x > 0 ? x - 1 : x;
+                        int right = x < width - 1 ? x + 1 : x;
+                        int edge  = Math.abs(luminance[y * width + right] - luminance[y * width + left])
+                                  + Math.abs(luminance[down + x] - luminance[up + x]);
+
+                        // Saliency: contrast against the mean of the surrounding box
+                        int  boxLeft  = Math.max(0, x - radius);
+                        int  boxRight = Math.min(width, x + radius + 1);
+                        long boxSum   = sum(luminanceIntegral, width, boxLeft, top, boxRight, bottom);
+                        int  boxMean  = (int) (boxSum / ((boxRight - boxLeft) * (bottom - top)));
+                        energy[index] = edge + (int) (SaliencyWeight * Math.abs(luminance[index] - boxMean));
+                    }
+                }
+            }
+
+        });
+        return energy;
+    }
+
+    /**
+     * Summed area table with a zero first row and column, (width + 1) x (height + 1).
+     * Rows are prefixed in horizontal bands, then columns in vertical bands.
+     */
+    private long[] buildIntegral(final int[] values, final int width, final int height)
+            throws InterruptedException {
+        final int    stride   = width + 1;
+        final long[] integral = new long[stride * (height + 1)];
+        runBands(height, new BandTask() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int y = start; y < end; y++) {
+                    long rowSum = 0;
+                    int  offset = (y + 1) * stride + 1;
+                    for (int x = 0; x < width; x++) {
+                        rowSum += values[y * width + x];
+                        integral[offset + x] = rowSum;
+                    }
+                }
+            }
+
+        });
+        runBands(width, new BandTask() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int y = 2; y <= height; y++) {
+                    int offset = y * stride + 1;
+                    for (int x = start; x < end; x++) {
+                        integral[offset + x] += integral[offset - stride + x];
+                    }
+                }
+            }
+
+        });
+        return integral;
+    }
+
+    /**
+     * Sum of the values in [left, right) x [top, bottom)
+     */
+    static long sum(long[] integral, int width, int left, int top, int right, int bottom) {
+        int stride = width + 1;
+        return integral[bottom * stride + right] - integral[top * stride + right]
+             - integral[bottom * stride + left] + integral[top * stride + left];
+    }
+
+    private void runBands(int count, BandTask task) throws InterruptedException {
+        runBands(count, MinBandSize, task);
+    }
+
+    /**
+     * Split [0, count) into bands of at least <tt>minBandSize</tt>, run them
+     * on the pool and wait for all of them
+     */
+    private void runBands(int count, int minBandSize, BandTask task) throws InterruptedException {
+        int bandCount = Math.max(1, Math.min(mParallelism, count / minBandSize));
+        List<Future<?>> futures = new ArrayList<Future<?>>(bandCount - 1);
+        for (int band = 1; band < bandCount; band++) {
+            futures.add(mExecutor.submit(createBandRunnable(task,
+                    count * band / bandCount, count * (band + 1) / bandCount)));
+        }
+        try {
+            task.run(0, count / bandCount);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException exp) {
+            throw new IllegalStateException("Auto crop band failed", exp.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static Runnable createBandRunnable(final BandTask task, final int start, final int end) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                task.run(start, end);
+            }
+
+        };
+    }
+
+    /**
+     * Candidate frames: every scale of the base frame shape, at a grid of positions.
+     * A candidate is addressed by its index, so bands need no shared state.
+     */
+    private class CandidateSet {
+
+        private final int     mWidth;
+        private final int     mHeight;
+        private final int[]   mShapeWidths;
+        private final int[]   mShapeHeights;
+        private final int[]   mShapeOffsets;
+        private final float[] mColumnStops;
+        private final float[] mRowStops;
+        private final int     mCount;
+        private float         mBestScore = -Float.MAX_VALUE;
+
+        CandidateSet(int width, int height, float aspectRatio, float[] columnStops, float[] rowStops) {
+            mWidth       = width;
+            mHeight      = height;
+            mColumnStops = columnStops;
+            mRowStops    = rowStops;
+
+            // A free frame scales each axis on its own, a locked one keeps the ratio
+            int scaleCount = CandidateScales.length;
+            int shapeCount = aspectRatio > 0 ? scaleCount : scaleCount * scaleCount;
+            int baseWidth  = width;
+            int baseHeight = height;
+            if (aspectRatio > 0) {
+                if (aspectRatio > (float) width / height) {
+                    baseHeight = Math.max(1, Math.round(width / aspectRatio));
+                } else {
+                    baseWidth  = Math.max(1, Math.round(height * aspectRatio));
+                }
+            }
+            mShapeWidths  = new int[shapeCount];
+            mShapeHeights = new int[shapeCount];
+            mShapeOffsets = new int[shapeCount + 1];
+            for (int shape = 0; shape < shapeCount; shape++) {
+                float scaleX = CandidateScales[aspectRatio > 0 ? shape : shape / scaleCount];
+                float scaleY = CandidateScales[aspectRatio > 0 ? shape : shape % scaleCount];
+                mShapeWidths[shape]      = Math.max(1, Math.round(baseWidth * scaleX));
+                mShapeHeights[shape]     = Math.max(1, Math.round(baseHeight * scaleY));
+                mShapeOffsets[shape + 1] = mShapeOffsets[shape]
+                        + getPositionCount(width - mShapeWidths[shape]) * getPositionCount(height - mShapeHeights[shape]);
+            }
+            mCount = mShapeOffsets[shapeCount];
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        float getBestScore() {
+            return mBestScore;
+        }
+
+        private int getPositionCount(int slack) {
+            return slack > 0 ? PositionSteps + 1 : 1;
+        }
+
+        int[] getRect(int index, int[] out) {
+            int shape = 0;
+            while (index >= mShapeOffsets[shape + 1]) {
+                shape++;
+            }
+            int local     = index - mShapeOffsets[shape];
+            int slackX    = mWidth - mShapeWidths[shape];
+            int slackY    = mHeight - mShapeHeights[shape];
+            int positions = getPositionCount(slackX);
+            int left      = slackX * (local % positions) / PositionSteps;
+            int top       = slackY * (local / positions) / PositionSteps;
+            out[0] = left;
+            out[1] = top;
+            out[2] = left + mShapeWidths[shape];
+            out[3] = top + mShapeHeights[shape];
+            return out;
+        }
+
+        float score(long[] integral, double totalEnergy, int[] rect) {
+            int    left       = rect[0];
+            int    top        = rect[1];
+            int    right      = rect[2];
+            int    bottom     = rect[3];
+            int    area       = (right - left) * (bottom - top);
+            long   inside     = sum(integral, mWidth, left, top, right, bottom);
+            double coverage   = inside / totalEnergy;
+            double areaRatio  = (double) area / (mWidth * mHeight);
+            double density    = (double) inside / area;
+
+            // Energy right under the grid intersections, relative to the frame's mean
+            int    spotRadius = Math.max(1, Math.min(right - left, bottom - top) / GridSpotDivisor);
+            long   spotSum    = 0;
+            long   spotArea   = 0;
+            for (int column = 1; column < mColumnStops.length - 1; column++) {
+                int x = left + (int) ((right - left) * mColumnStops[column]);
+                for (int row = 1; row < mRowStops.length - 1; row++) {
+                    int y = top + (int) ((bottom - top) * mRowStops[row]);
+                    int spotLeft   = Math.max(left, x - spotRadius);
+                    int spotTop    = Math.max(top, y - spotRadius);
+                    int spotRight  = Math.min(right, x + spotRadius);
+                    int spotBottom = Math.min(bottom, y + spotRadius);
+                    spotSum  += sum(integral, mWidth, spotLeft, spotTop, spotRight, spotBottom);
+                    spotArea += (spotRight - spotLeft) * (spotBottom - spotTop);
+                }
+            }
+            double gridTerm = 0;
+            if (spotArea > 0 && density > 0) {
+                gridTerm = Math.min(2.0, spotSum / (double) spotArea / density) * 0.5;
+            }
+            return (float) (coverage - AreaWeight * areaRatio + GridWeight * gridTerm);
+        }
+
+        /**
+         * @return index of the best candidate, or -1 if the image has no energy at all
+         */
+        int findBest(final long[] integral) throws InterruptedException {
+            final double totalEnergy = sum(integral, mWidth, 0, 0, mWidth, mHeight);
+            if (totalEnergy <= 0) {
+                return -1;
+            }
+            final int     bandCount  = Math.max(1, Math.min(mParallelism, mCount / MinBandSize));
+            final int[]   bestIndex  = new int[bandCount];
+            final float[] bestScores = new float[bandCount];
+            runBands(bandCount, 1, new BandTask() {
+
+                @Override
+                public void run(int start, int end) {
+                    int[] rect = new int[4];
+                    for (int band = start; band < end; band++) {
+                        int   best      = -1;
+                        float bestScore = -Float.MAX_VALUE;
+                        for (int i = mCount * band / bandCount; i < mCount * (band + 1) / bandCount; i++) {
+                            float score = score(integral, totalEnergy, getRect(i, rect));
+                            if (score > bestScore) {
+                                best      = i;
+                                bestScore = score;
+                            }
+                        }
+                        bestIndex[band]  = best;
+                        bestScores[band] = bestScore;
+                    }
+                }
+
+            });
+
+            int best = -1;
+            for (int band = 0; band < bandCount; band++) {
+                if (bestIndex[band] >= 0 && bestScores[band] > mBestScore) {
+                    best       = bestIndex[band];
+                    mBestScore = bestScores[band];
+                }
+            }
+            return best;
+        }
+    }
+
+}
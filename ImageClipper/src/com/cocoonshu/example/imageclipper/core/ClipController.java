@@ -0,0 +1,207 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Touch state machine of the clip frame: touch samples feed a
+ * {@link TouchResampler}, a frame drag follows the resampled finger once
+ * per display frame, and a released frame keeps its fling and then snaps
+ * onto nearby lines through a {@link FrameAnimator}. Platform gesture
+ * decisions, where a drag starts after the touch slop and fling
+ * velocities, come from the caller, so the clipper view and an off device
+ * trace replay drive the very same code. Nothing allocates once built.
+ */
+public class ClipController {
+
+    // Frames sample the touch position this far in the past, so it can usually be interpolated
+    private static final long    TouchResampleLatencyNanos = 5000000L;
+
+    public interface OnFrameChangedListener {
+        /**
+         * Called when a drag or an animation has moved the clip frame
+         * @param controller
+         */
+        void onFrameChanged(ClipController controller);
+    }
+
+    private final ClipGeometry   mGeometry;
+    private final TouchResampler mTouchResampler  = new TouchResampler();
+    private final FrameAnimator  mFrameAnimator   = new FrameAnimator();
+    private final float[]        mResampledPoint  = new float[2];
+    private OnFrameChangedListener mOnFrameChangedListener = null;
+    private boolean              mIsFrameDragging = false;
+    private float                mLastDragX       = 0;
+    private float                mLastDragY       = 0;
+
+    public ClipController(ClipGeometry geometry) {
+        mGeometry = geometry;
+    }
+
+    public ClipGeometry getGeometry() {
+        return mGeometry;
+    }
+
+    public void setOnFrameChangedListener(OnFrameChangedListener listener) {
+        mOnFrameChangedListener = listener;
+    }
+
+    public boolean isFrameDragging() {
+        return mIsFrameDragging;
+    }
+
+    public boolean isAnimating() {
+        return mFrameAnimator.isRunning();
+    }
+
+    /**
+     * Stop the animations and forget the current gesture
+     */
+    public void reset() {
+        mTouchResampler.reset();
+        mFrameAnimator.stop();
+        mIsFrameDragging = false;
+    }
+
+    /**
+     * A new touch sequence starts, the samples of the last one are dropped
+     */
+    public void beginTouch() {
+        mTouchResampler.reset();
+    }
+
+    /**
+     * Add a sample of the single pointer, oldest first
+     * @param timeNanos event time on the vsync clock
+     * @param x
+     * @param y
+     */
+    public void addTouchSample(long timeNanos, float x, float y) {
+        mTouchResampler.addSample(timeNanos, x, y);
+    }
+
+    /**
+     * Multi-touch drives the image, never the frame
+     */
+    public void cancelFrameDrag() {
+        mGeometry.clearMotionActions();
+        mIsFrameDragging = false;
+    }
+
+    /**
+     * The pointer went up or the gesture was cancelled, handled before the
+     * fling and the end of the gesture are decided
+     * @param x           position of the up event
+     * @param y
+     * @param isCancelled a cancelled gesture, such as one a parent intercepted,
+     *                    does not commit its last position
+     */
+    public void releaseFrameDrag(float x, float y, boolean isCancelled) {
+        if (!mIsFrameDragging) {
+            return;
+        }
+        if (!isCancelled) {
+            // The frame ends exactly under the finger, before fling and snap take over
+            applyFrameDrag(x, y);
+        }
+        mIsFrameDragging = false;
+    }
+
+    /**
+     * A touch goes down: stop the animations and hit test the frame
+     * @return the motion actions selected by the touch
+     */
+    public int onDown(float x, float y) {
+        mFrameAnimator.stop();
+        return mGeometry.hitTest(x, y);
+    }
+
+    /**
+     * The touch slop is crossed, follow the finger from where it went down,
+     * so the slop is not lost
+     * @return true if a frame drag started now
+     */
+    public boolean startFrameDrag(float x, float y) {
+        if (mIsFrameDragging || mGeometry.getMotionActions() == ClipGeometry.MOTION_ACTION_NONE) {
+            return false;
+        }
+        mIsFrameDragging = true;
+        mLastDragX       = x;
+        mLastDragY       = y;
+        return true;
+    }
+
+    /**
+     * Only a moving frame keeps its inertia, resized edges stop with the finger
+     * @param velocityX pixels per second
+     * @param velocityY pixels per second
+     * @param timeNanos start time on the vsync clock
+     * @return true if the fling started
+     */
+    public boolean fling(float velocityX, float velocityY, long timeNanos) {
+        if (mGeometry.getMotionActions() != ClipGeometry.MOTION_ACTION_MOVE) {
+            return false;
+        }
+        mFrameAnimator.startFling(velocityX, velocityY, timeNanos);
+        return true;
+    }
+
+    /**
+     * The gesture is over, the frame snaps onto nearby lines unless a fling carries it on
+     * @param timeNanos time on the vsync clock
+     * @return true if an animation needs display frames
+     */
+    public boolean endGesture(long timeNanos) {
+        mGeometry.clearMotionActions();
+        if (!mFrameAnimator.isRunning()) {
+            mFrameAnimator.startSnap(mGeometry, mGeometry.getCornerLineHeight(), timeNanos);
+        }
+        return mFrameAnimator.isRunning();
+    }
+
+    /**
+     * Apply the resampled drag, or step the fling and snap animations
+     * @param frameTimeNanos vsync time of the display frame
+     * @return true if the animations need another display frame
+     */
+    public boolean onFrame(long frameTimeNanos) {
+        if (mIsFrameDragging) {
+            // One geometry update per frame, at the resampled finger position
+            if (mTouchResampler.resample(frameTimeNanos - TouchResampleLatencyNanos, mResampledPoint)) {
+                applyFrameDrag(mResampledPoint[0], mResampledPoint[1]);
+            }
+            return false;
+        }
+
+        int state = mFrameAnimator.getState();
+        if (mFrameAnimator.step(mGeometry, frameTimeNanos)) {
+            notifyFrameChanged();
+        }
+        if (state == FrameAnimator.STATE_FLING && !mFrameAnimator.isRunning()) {
+            // Settle the flung frame onto nearby lines
+            mFrameAnimator.startSnap(mGeometry, mGeometry.getCornerLineHeight(), frameTimeNanos);
+        }
+        return mFrameAnimator.isRunning();
+    }
+
+    public void stopAnimation() {
+        mFrameAnimator.stop();
+    }
+
+    /**
+     * Move the frame by the finger travel since the last applied position
+     */
+    private void applyFrameDrag(float x, float y) {
+        float distanceX = mLastDragX - x;
+        float distanceY = mLastDragY - y;
+        mLastDragX = x;
+        mLastDragY = y;
+        if (mGeometry.drag(distanceX, distanceY)) {
+            notifyFrameChanged();
+        }
+    }
+
+    private void notifyFrameChanged() {
+        if (mOnFrameChangedListener != null) {
+            mOnFrameChangedListener.onFrameChanged(this);
+        }
+    }
+
+}
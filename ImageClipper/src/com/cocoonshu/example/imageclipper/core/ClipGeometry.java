@@ -0,0 +1,993 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Framework free clip frame geometry: hit-testing, frame mutation and
+ * line generation on primitive float state. The clipper view delegates
+ * to this class, so the same code can be tested and benchmarked on a
+ * plain JVM.
+ */
+public class ClipGeometry {
+
+    public static final int      MOTION_ACTION_NONE              = 0b0000;
+    public static final int      MOTION_ACTION_LEFT              = 0b0001;
+    public static final int      MOTION_ACTION_TOP               = 0b0010;
+    public static final int      MOTION_ACTION_RIGHT             = 0b0100;
+    public static final int      MOTION_ACTION_BOTTOM            = 0b1000;
+    public static final int      MOTION_ACTION_LEFT_TOP          = 0b0011;
+    public static final int      MOTION_ACTION_TOP_RIGHT         = 0b0110;
+    public static final int      MOTION_ACTION_RIGHT_BOTTOM      = 0b1100;
+    public static final int      MOTION_ACTION_BOTTOM_LEFT       = 0b1001;
+    public static final int      MOTION_ACTION_MOVE              = 0b1111;
+
+    public static final int      GRID_STYLE_UNIFORM              = 0;
+    public static final int      GRID_STYLE_GOLDEN_RATIO         = 1;
+
+    public static final float    ASPECT_RATIO_FREE               = 0;
+
+    private static final int     DefaultGridCount                = 3;
+    private static final float   GoldenRatioInverse              = 0.618034f;
+    private static final float   MaxEdgeZoneFraction             = 1f / 3f;
+    private static final int     FloatsPerLine                   = 4;
+    private static final int     FrameLineCount                  = 4;
+    // One horizontal and one vertical mark per corner, one mark per edge center
+    private static final int     CornerLineCount                 = 4 * 2 + 4;
+    private static final int     FloatsPerRect                   = 4;
+    // Full width bands above and below the frame, side bands beside it
+    private static final int     MaskRectCount                   = 4;
+    private static final float   RotatedLimitTolerance           = 0.01f;
+
+    private float                mFrameLeft                      = 0;
+    private float                mFrameTop                       = 0;
+    private float                mFrameRight                     = 0;
+    private float                mFrameBottom                    = 0;
+    private float                mLimitLeft                      = 0;
+    private float                mLimitTop                       = 0;
+    private float                mLimitRight                     = 0;
+    private float                mLimitBottom                    = 0;
+    private float                mFrameLineWidth                 = 0;
+    private float                mCornerLineHeight               = 0;
+    private boolean              mIsFullAreaTouchable            = true;
+    private int                  mColumnCount                    = DefaultGridCount;
+    private int                  mRowCount                       = DefaultGridCount;
+    private int                  mGridStyle                      = GRID_STYLE_UNIFORM;
+    private float[]              mColumnStops                    = computeGridStops(DefaultGridCount, GRID_STYLE_UNIFORM);
+    private float[]              mRowStops                       = computeGridStops(DefaultGridCount, GRID_STYLE_UNIFORM);
+    private int                  mMotionActions                  = MOTION_ACTION_NONE;
+    private float                mAspectRatio                    = ASPECT_RATIO_FREE;
+
+    // Edge snapping: the normalized index is displayed at origin + n * span
+    private SnapIndex            mSnapIndex                      = null;
+    private float                mSnapDistance                   = 0;
+    private float                mSnapOriginX                    = 0;
+    private float                mSnapOriginY                    = 0;
+    private float                mSnapSpanX                      = 0;
+    private float                mSnapSpanY                      = 0;
+    // Unsnapped frame the drag keeps moving, and the snapped frame it was turned into
+    private boolean              mHasRawFrame                    = false;
+    private final float[]        mRawFrame                       = new float[4];
+    private final float[]        mSnappedFrame                   = new float[4];
+    // Rotated image area the frame must stay inside, as a center, half extents along the image axes and an angle
+    private float                mRotation                       = 0;
+    private float                mRotationCos                    = 1;
+    private float                mRotationSin                    = 0;
+    private float                mRotatedCenterX                 = 0;
+    private float                mRotatedCenterY                 = 0;
+    private float                mRotatedHalfWidth               = 0;
+    private float                mRotatedHalfHeight              = 0;
+
+    public ClipGeometry() {
+    }
+
+    /**
+     * @param frameLineWidth   width of the frame stroke
+     * @param cornerLineHeight length of the corner marks, also the frame size unit
+     */
+    public void setLineMetrics(float frameLineWidth, float cornerLineHeight) {
+        mFrameLineWidth   = frameLineWidth;
+        mCornerLineHeight = cornerLineHeight;
+    }
+
+    public float getFrameLineWidth() {
+        return mFrameLineWidth;
+    }
+
+    public float getCornerLineHeight() {
+        return mCornerLineHeight;
+    }
+
+    /**
+     * @param isFullAreaTouchable true to split the whole frame area into
+     *        edge, corner and move zones, false to only accept touches
+     *        around the corner marks
+     */
+    public void setFullAreaTouchable(boolean isFullAreaTouchable) {
+        mIsFullAreaTouchable = isFullAreaTouchable;
+    }
+
+    public boolean isFullAreaTouchable() {
+        return mIsFullAreaTouchable;
+    }
+
+    /**
+     * Set the grid drawn inside the frame
+     * @param columnCount number of columns, at least 1
+     * @param rowCount    number of rows, at least 1
+     * @param gridStyle   {@link #GRID_STYLE_UNIFORM} or {@link #GRID_STYLE_GOLDEN_RATIO}
+     */
+    public void setGrid(int columnCount, int rowCount, int gridStyle) {
+        if (columnCount < 1 || rowCount < 1) {
+            throw new IllegalArgumentException("Grid must have at least one column and row: "
+                    + columnCount + "x" + rowCount);
+        }
+        mColumnCount = columnCount;
+        mRowCount    = rowCount;
+        mGridStyle   = gridStyle;
+        mColumnStops = computeGridStops(columnCount, gridStyle);
+        mRowStops    = computeGridStops(rowCount, gridStyle);
+    }
+
+    /**
+     * Lock the frame to a width / height ratio. The current frame shrinks
+     * around its center to the ratio, later drags keep it.
+     * @param aspectRatio width / height, or {@link #ASPECT_RATIO_FREE}
+     */
+    public void setAspectRatio(float aspectRatio) {
+        if (aspectRatio < 0 || Float.isNaN(aspectRatio) || Float.isInfinite(aspectRatio)) {
+            throw new IllegalArgumentException("Invalid aspect ratio: " + aspectRatio);
+        }
+        mAspectRatio = aspectRatio;
+        fitAspectRatio();
+    }
+
+    public float getAspectRatio() {
+        return mAspectRatio;
+    }
+
+    public boolean isAspectRatioLocked() {
+        return mAspectRatio > 0;
+    }
+
+    /**
+     * Shrink the frame around its center to the locked aspect ratio
+     * @return true if the frame has changed
+     */
+    public boolean fitAspectRatio() {
+        if (!isAspectRatioLocked()) {
+            return false;
+        }
+        float width  = mFrameRight - mFrameLeft;
+        float height = mFrameBottom - mFrameTop;
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        float fitWidth  = Math.min(width, height * mAspectRatio);
+        float fitHeight = fitWidth / mAspectRatio;
+        if (fitWidth == width && fitHeight == height) {
+            return false;
+        }
+        float centerX = (mFrameLeft + mFrameRight) * 0.5f;
+        float centerY = (mFrameTop + mFrameBottom) * 0.5f;
+        mFrameLeft   = centerX - fitWidth * 0.5f;
+        mFrameRight  = centerX + fitWidth * 0.5f;
+        mFrameTop    = centerY - fitHeight * 0.5f;
+        mFrameBottom = centerY + fitHeight * 0.5f;
+        return true;
+    }
+
+    public int getColumnCount() {
+        return mColumnCount;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public int getGridStyle() {
+        return mGridStyle;
+    }
+
+    /**
+     * Split [0, 1] into <tt>count</tt> sections. Uniform sections are equal;
+     * golden ratio sections give the inner sections 1/phi of the outer ones,
+     * so a 3 section split puts its lines at 0.382 and 0.618.
+     */
+    static float[] computeGridStops(int count, int gridStyle) {
+        float[] stops = new float[count + 1];
+        float   total = 0;
+        for (int section = 0; section < count; section++) {
+            boolean isOuter = section == 0 || section == count - 1;
+            total += gridStyle == GRID_STYLE_GOLDEN_RATIO && !isOuter ? GoldenRatioInverse : 1f;
+            stops[section + 1] = total;
+        }
+        for (int i = 1; i <= count; i++) {
+            stops[i] /= total;
+        }
+        stops[count] = 1f;
+        return stops;
+    }
+
+    public void setFrame(float left, float top, float right, float bottom) {
+        mFrameLeft   = left;
+        mFrameTop    = top;
+        mFrameRight  = right;
+        mFrameBottom = bottom;
+        mHasRawFrame = false;
+    }
+
+    /**
+     * Snap dragged edges to the coordinates of <tt>index</tt>
+     * @param index        normalized snap coordinates, or null to stop snapping
+     * @param snapDistance distance within which an edge snaps
+     */
+    public void setSnapIndex(SnapIndex index, float snapDistance) {
+        mSnapIndex    = index;
+        mSnapDistance = snapDistance;
+        mHasRawFrame  = false;
+    }
+
+    public SnapIndex getSnapIndex() {
+        return mSnapIndex;
+    }
+
+    public float getSnapDistance() {
+        return mSnapDistance;
+    }
+
+    /**
+     * Place the normalized snap coordinates, usually onto the displayed image bounds
+     */
+    public void setSnapMapping(float originX, float originY, float spanX, float spanY) {
+        mSnapOriginX = originX;
+        mSnapOriginY = originY;
+        mSnapSpanX   = spanX;
+        mSnapSpanY   = spanY;
+    }
+
+    /**
+     * Get the snap mapping as passed to {@link #setSnapMapping(float, float, float, float)}
+     * @param out    {originX, originY, spanX, spanY} from <tt>offset</tt> on
+     * @param offset
+     */
+    public void getSnapMapping(float[] out, int offset) {
+        out[offset + 0] = mSnapOriginX;
+        out[offset + 1] = mSnapOriginY;
+        out[offset + 2] = mSnapSpanX;
+        out[offset + 3] = mSnapSpanY;
+    }
+
+    public void setLimit(float left, float top, float right, float bottom) {
+        mLimitLeft   = left;
+        mLimitTop    = top;
+        mLimitRight  = right;
+        mLimitBottom = bottom;
+    }
+
+    /**
+     * Keep the frame inside a rotated image as well as inside the limit area.
+     * The image axes run along (cos, sin) and (-sin, cos) in view coordinates.
+     * @param centerX    image center
+     * @param centerY    image center
+     * @param halfWidth  half the image width
+     * @param halfHeight half the image height
+     * @param radians    image rotation, clockwise, 0 to stop limiting
+     */
+    public void setRotatedLimit(float centerX, float centerY, float halfWidth, float halfHeight, float radians) {
+        mRotation          = radians;
+        mRotationCos       = (float) Math.cos(radians);
+        mRotationSin       = (float) Math.sin(radians);
+        mRotatedCenterX    = centerX;
+        mRotatedCenterY    = centerY;
+        mRotatedHalfWidth  = halfWidth;
+        mRotatedHalfHeight = halfHeight;
+        mHasRawFrame       = false;
+    }
+
+    public boolean isRotatedLimitActive() {
+        return mRotation != 0;
+    }
+
+    /**
+     * Get the rotated limit as passed to {@link #setRotatedLimit(float, float, float, float, float)}
+     * @param out    {centerX, centerY, halfWidth, halfHeight, radians} from <tt>offset</tt> on
+     * @param offset
+     */
+    public void getRotatedLimit(float[] out, int offset) {
+        out[offset + 0] = mRotatedCenterX;
+        out[offset + 1] = mRotatedCenterY;
+        out[offset + 2] = mRotatedHalfWidth;
+        out[offset + 3] = mRotatedHalfHeight;
+        out[offset + 4] = mRotation;
+    }
+
+    public float getFrameLeft() {
+        return mFrameLeft;
+    }
+
+    public float getFrameTop() {
+        return mFrameTop;
+    }
+
+    public float getFrameRight() {
+        return mFrameRight;
+    }
+
+    public float getFrameBottom() {
+        return mFrameBottom;
+    }
+
+    public float getLimitLeft() {
+        return mLimitLeft;
+    }
+
+    public float getLimitTop() {
+        return mLimitTop;
+    }
+
+    public float getLimitRight() {
+        return mLimitRight;
+    }
+
+    public float getLimitBottom() {
+        return mLimitBottom;
+    }
+
+    public int getMotionActions() {
+        return mMotionActions;
+    }
+
+    public void setMotionActions(int motionActions) {
+        mMotionActions = motionActions;
+    }
+
+    public void clearMotionActions() {
+        mMotionActions = MOTION_ACTION_NONE;
+        mHasRawFrame   = false;
+    }
+
+    /**
+     * Normalize the frame against the limit area
+     * @param out
+     * @return out
+     */
+    public NormalizedRect getNormalizedFrame(NormalizedRect out) {
+        return out.setFromFrame(
+                mFrameLeft, mFrameTop, mFrameRight, mFrameBottom,
+                mLimitLeft, mLimitTop, mLimitRight, mLimitBottom);
+    }
+
+    /**
+     * @return number of floats needed by the line buffer for the current grid
+     */
+    public int getLineBufferSize() {
+        return getCornerLineOffset() + getCornerLineFloatCount();
+    }
+
+    public int getFrameLineOffset() {
+        return 0;
+    }
+
+    public int getFrameLineFloatCount() {
+        return FrameLineCount * FloatsPerLine;
+    }
+
+    public int getGridLineOffset() {
+        return getFrameLineOffset() + getFrameLineFloatCount();
+    }
+
+    public int getGridLineFloatCount() {
+        return (mColumnCount - 1 + mRowCount - 1) * FloatsPerLine;
+    }
+
+    public int getCornerLineOffset() {
+        return getGridLineOffset() + getGridLineFloatCount();
+    }
+
+    public int getCornerLineFloatCount() {
+        return CornerLineCount * FloatsPerLine;
+    }
+
+    /**
+     * Find which edges of the frame a touch at (<tt>x</tt>, <tt>y</tt>) grabs,
+     * and keep them as the current motion actions
+     * @return motion actions, {@link #MOTION_ACTION_NONE} if nothing is touched
+     */
+    public int hitTest(float x, float y) {
+        float   currentClipWidth   = mFrameRight - mFrameLeft;
+        float   currentClipHeight  = mFrameBottom - mFrameTop;
+        int     verticalAction     = MOTION_ACTION_NONE;
+        int     horizontalAction   = MOTION_ACTION_NONE;
+
+        if (mIsFullAreaTouchable) {
+            float   unitClipWidth      = currentClipWidth * Math.min(
+                    Math.min(mColumnStops[1], 1f - mColumnStops[mColumnCount - 1]), MaxEdgeZoneFraction);
+            float   unitClipHeight     = currentClipHeight * Math.min(
+                    Math.min(mRowStops[1], 1f - mRowStops[mRowCount - 1]), MaxEdgeZoneFraction);
+            float   halfUnitClipWidth  = unitClipWidth * 0.5f;
+            float   halfUnitClipHeight = unitClipHeight * 0.5f;
+            float   touchLeftBorder    = mFrameLeft - halfUnitClipWidth;
+            float   touchRightBorder   = mFrameRight + halfUnitClipWidth;
+            float   touchTopBorder     = mFrameTop - halfUnitClipHeight;
+            float   touchBottomBorder  = mFrameBottom + halfUnitClipHeight;
+            float   moveLeftBorder     = mFrameLeft + unitClipWidth;
+            float   moveRightBorder    = mFrameRight - unitClipWidth;
+            float   moveTopBorder      = mFrameTop + unitClipHeight;
+            float   moveBottomBorder   = mFrameBottom - unitClipHeight;
+
+            if (x >= touchLeftBorder && x <= moveLeftBorder) {
+                verticalAction = MOTION_ACTION_LEFT;
+            } else if (x >= moveLeftBorder && x <= moveRightBorder) {
+                verticalAction = MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT;
+            } else if (x > moveRightBorder && x <= touchRightBorder) {
+                verticalAction = MOTION_ACTION_RIGHT;
+            }
+            if (y >= touchTopBorder && y <= moveTopBorder) {
+                horizontalAction = MOTION_ACTION_TOP;
+            } else if (y >= moveTopBorder && y <= moveBottomBorder) {
+                horizontalAction = MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM;
+            } else if (y > moveBottomBorder && y <= touchBottomBorder) {
+                horizontalAction = MOTION_ACTION_BOTTOM;
+            }
+        } else {
+            float acturalCornerLineHeight = mCornerLineHeight;
+            float cornerBlockWidth        = acturalCornerLineHeight;
+            float cornerBlockHeight       = acturalCornerLineHeight;
+            float touchLeftBorder         = mFrameLeft - cornerBlockWidth;
+            float touchRightBorder        = mFrameRight + cornerBlockWidth;
+            float touchTopBorder          = mFrameTop - cornerBlockHeight;
+            float touchBottomBorder       = mFrameBottom + currentClipHeight;
+            float moveLeftBorder          = mFrameLeft + cornerBlockWidth * 2;
+            float moveRightBorder         = mFrameRight - cornerBlockWidth * 2;
+            float moveTopBorder           = mFrameTop + cornerBlockHeight * 2;
+            float moveBottomBorder        = mFrameBottom - cornerBlockHeight * 2;
+            if (x >= touchLeftBorder && x <= moveLeftBorder) {
+                verticalAction = MOTION_ACTION_LEFT;
+            } else if (x >= moveRightBorder && x <= touchRightBorder) {
+                verticalAction = MOTION_ACTION_RIGHT;
+            } else {
+                verticalAction = MOTION_ACTION_NONE;
+            }
+            if (y >= touchTopBorder && y <= moveTopBorder) {
+                horizontalAction = MOTION_ACTION_TOP;
+            } else if (y >= moveBottomBorder && y <= touchBottomBorder) {
+                horizontalAction = MOTION_ACTION_BOTTOM;
+            } else {
+                horizontalAction = MOTION_ACTION_NONE;
+            }
+        }
+
+        mMotionActions = verticalAction | horizontalAction;
+        return mMotionActions;
+    }
+
+    /**
+     * Move the edges selected by the current motion actions by a scroll
+     * distance, keeping the frame inside the limit area and no smaller
+     * than three corner mark lengths
+     * @param distanceX scroll distance, positive when the finger moves left
+     * @param distanceY scroll distance, positive when the finger moves up
+     * @return true if the frame has changed
+     */
+    public boolean drag(float distanceX, float distanceY) {
+        return drag(distanceX, distanceY, true);
+    }
+
+    /**
+     * Move the edges selected by the current motion actions by a scroll
+     * distance, see {@link #drag(float, float)}
+     * @param distanceX scroll distance, positive when the finger moves left
+     * @param distanceY scroll distance, positive when the finger moves up
+     * @param isSnapEnabled false to leave the edges off the snap lines, as
+     *                      an animation moving the frame settles it afterwards
+     * @return true if the frame has changed
+     */
+    public boolean drag(float distanceX, float distanceY, boolean isSnapEnabled) {
+        float previousLeft            = mFrameLeft;
+        float previousTop             = mFrameTop;
+        float previousRight           = mFrameRight;
+        float previousBottom          = mFrameBottom;
+        float acturalCornerLineHeight = mCornerLineHeight;
+        float horizontalSpacing       = 3 * acturalCornerLineHeight;
+        float verticalSpacing         = 3 * acturalCornerLineHeight;
+
+        // Snapped edges would never get away by small steps, so the drag goes on from the raw frame
+        boolean isSnapping = isSnapEnabled && mSnapIndex != null && mSnapSpanX > 0 && mSnapSpanY > 0 && !isRotatedLimitActive()
+                && (!isAspectRatioLocked() || mMotionActions == MOTION_ACTION_MOVE);
+        if (isSnapping) {
+            restoreRawFrame();
+        }
+
+        // Moving the whole frame along an axis is a rigid translation, so the
+        // frame stops at the limit area instead of being squeezed against it
+        if ((mMotionActions & (MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT)) == (MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT)) {
+            distanceX = MathUtils.clamp(distanceX, mFrameRight - mLimitRight, mFrameLeft - mLimitLeft);
+        }
+        if ((mMotionActions & (MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM)) == (MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM)) {
+            distanceY = MathUtils.clamp(distanceY, mFrameBottom - mLimitBottom, mFrameTop - mLimitTop);
+        }
+
+        if (isAspectRatioLocked() && mMotionActions != MOTION_ACTION_MOVE) {
+            dragWithAspectRatio(distanceX, distanceY, horizontalSpacing);
+            constrainDragToRotatedLimit(previousLeft, previousTop, previousRight, previousBottom);
+            return previousLeft != mFrameLeft || previousTop != mFrameTop
+                    || previousRight != mFrameRight || previousBottom != mFrameBottom;
+        }
+
+        if ((mMotionActions & MOTION_ACTION_LEFT) == MOTION_ACTION_LEFT) {
+            mFrameLeft -= distanceX;
+            mFrameLeft = MathUtils.clamp(mFrameLeft, mLimitLeft, mFrameRight - horizontalSpacing);
+        }
+        if ((mMotionActions & MOTION_ACTION_RIGHT) == MOTION_ACTION_RIGHT) {
+            mFrameRight -= distanceX;
+            mFrameRight = MathUtils.clamp(mFrameRight, mFrameLeft + horizontalSpacing, mLimitRight);
+        }
+        if ((mMotionActions & MOTION_ACTION_TOP) == MOTION_ACTION_TOP) {
+            mFrameTop -= distanceY;
+            mFrameTop = MathUtils.clamp(mFrameTop, mLimitTop, mFrameBottom - verticalSpacing);
+        }
+        if ((mMotionActions & MOTION_ACTION_BOTTOM) == MOTION_ACTION_BOTTOM) {
+            mFrameBottom -= distanceY;
+            mFrameBottom = MathUtils.clamp(mFrameBottom, mFrameTop + verticalSpacing, mLimitBottom);
+        }
+        if (isSnapping) {
+            snapFrame(horizontalSpacing, verticalSpacing);
+        }
+        constrainDragToRotatedLimit(previousLeft, previousTop, previousRight, previousBottom);
+
+        return previousLeft != mFrameLeft || previousTop != mFrameTop
+                || previousRight != mFrameRight || previousBottom != mFrameBottom;
+    }
+
+    /**
+     * Pull a dragged frame back along its way, to the last position inside the rotated
+     * image. Every step from there on is linear in the edges, so a locked ratio holds.
+     */
+    private void constrainDragToRotatedLimit(float previousLeft, float previousTop,
+                                             float previousRight, float previousBottom) {
+        if (!isRotatedLimitActive()) {
+            return;
+        }
+        if (!isInsideRotatedLimit(previousLeft, previousTop, previousRight, previousBottom)) {
+            fitRotatedLimit();
+            return;
+        }
+        float left     = mFrameLeft;
+        float top      = mFrameTop;
+        float right    = mFrameRight;
+        float bottom   = mFrameBottom;
+        float fraction = findRotatedLimitFraction(previousLeft, previousTop, previousRight, previousBottom,
+                left, top, right, bottom);
+        if (fraction >= 1) {
+            return;
+        }
+        mFrameLeft   = previousLeft + (left - previousLeft) * fraction;
+        mFrameTop    = previousTop + (top - previousTop) * fraction;
+        mFrameRight  = previousRight + (right - previousRight) * fraction;
+        mFrameBottom = previousBottom + (bottom - previousBottom) * fraction;
+
+        // A moved frame slides along the rotated border: give each axis its rest of the way separately
+        if (mMotionActions == MOTION_ACTION_MOVE) {
+            float restX = left - mFrameLeft;
+            float restY = top - mFrameTop;
+            fraction = findRotatedLimitFraction(mFrameLeft, mFrameTop, mFrameRight, mFrameBottom,
+                    mFrameLeft + restX, mFrameTop, mFrameRight + restX, mFrameBottom);
+            mFrameLeft  += restX * fraction;
+            mFrameRight += restX * fraction;
+            fraction = findRotatedLimitFraction(mFrameLeft, mFrameTop, mFrameRight, mFrameBottom,
+                    mFrameLeft, mFrameTop + restY, mFrameRight, mFrameBottom + restY);
+            mFrameTop    += restY * fraction;
+            mFrameBottom += restY * fraction;
+        }
+    }
+
+    private boolean isInsideRotatedLimit(float left, float top, float right, float bottom) {
+        return findRotatedLimitFraction(left, top, right, bottom, left, top, right, bottom) > 0;
+    }
+
+    /**
+     * Largest fraction of the way from one frame to another, with edges moving
+     * linearly, for which all four corners stay inside the rotated image
+     * @return the fraction in [0, 1], 0 if the start frame is already outside
+     */
+    private float findRotatedLimitFraction(float fromLeft, float fromTop, float fromRight, float fromBottom,
+                                           float toLeft, float toTop, float toRight, float toBottom) {
+        float fraction = 1;
+        for (int corner = 0; corner < 4; corner++) {
+            float fromX = (corner & 1) == 0 ? fromLeft : fromRight;
+            float fromY = (corner & 2) == 0 ? fromTop : fromBottom;
+            float toX   = (corner & 1) == 0 ? toLeft : toRight;
+            float toY   = (corner & 2) == 0 ? toTop : toBottom;
+            float fromU = projectU(fromX, fromY);
+            float fromV = projectV(fromX, fromY);
+            fraction = Math.min(fraction, findAxisFraction(fromU, projectU(toX, toY) - fromU, mRotatedHalfWidth));
+            fraction = Math.min(fraction, findAxisFraction(fromV, projectV(toX, toY) - fromV, mRotatedHalfHeight));
+        }
+        return Math.max(0, fraction);
+    }
+
+    private static float findAxisFraction(float from, float delta, float halfExtent) {
+        // Let rounding on the border pass, or the frame would stick to it
+        halfExtent += RotatedLimitTolerance;
+        if (from > halfExtent || from < -halfExtent) {
+            return 0;
+        } else if (delta > 0) {
+            return (halfExtent - from) / delta;
+        } else if (delta < 0) {
+            return (-halfExtent - from) / delta;
+        } else {
+            return 1;
+        }
+    }
+
+    private float projectU(float x, float y) {
+        return (x - mRotatedCenterX) * mRotationCos + (y - mRotatedCenterY) * mRotationSin;
+    }
+
+    private float projectV(float x, float y) {
+        return (y - mRotatedCenterY) * mRotationCos - (x - mRotatedCenterX) * mRotationSin;
+    }
+
+    /**
+     * Fit the frame into the rotated image: keep its center and shape, shrink it
+     * only as much as it must, then slide it inside along the image axes
+     * @return true if the frame has changed
+     */
+    public boolean fitRotatedLimit() {
+        if (!isRotatedLimitActive()) {
+            return false;
+        }
+        float cos        = Math.abs(mRotationCos);
+        float sin        = Math.abs(mRotationSin);
+        float halfWidth  = (mFrameRight - mFrameLeft) * 0.5f;
+        float halfHeight = (mFrameBottom - mFrameTop) * 0.5f;
+        float extentU    = halfWidth * cos + halfHeight * sin;
+        float extentV    = halfWidth * sin + halfHeight * cos;
+        float scale      = Math.min(1, Math.min(mRotatedHalfWidth / extentU, mRotatedHalfHeight / extentV));
+        halfWidth  *= scale;
+        halfHeight *= scale;
+        extentU    *= scale;
+        extentV    *= scale;
+
+        float centerX = (mFrameLeft + mFrameRight) * 0.5f;
+        float centerY = (mFrameTop + mFrameBottom) * 0.5f;
+        float u       = MathUtils.clamp(projectU(centerX, centerY),
+                extentU - mRotatedHalfWidth, mRotatedHalfWidth - extentU);
+        float v       = MathUtils.clamp(projectV(centerX, centerY),
+                extentV - mRotatedHalfHeight, mRotatedHalfHeight - extentV);
+        centerX = mRotatedCenterX + u * mRotationCos - v * mRotationSin;
+        centerY = mRotatedCenterY + u * mRotationSin + v * mRotationCos;
+
+        float previousLeft   = mFrameLeft;
+        float previousTop    = mFrameTop;
+        float previousRight  = mFrameRight;
+        float previousBottom = mFrameBottom;
+        mFrameLeft   = centerX - halfWidth;
+        mFrameTop    = centerY - halfHeight;
+        mFrameRight  = centerX + halfWidth;
+        mFrameBottom = centerY + halfHeight;
+        return previousLeft != mFrameLeft || previousTop != mFrameTop
+                || previousRight != mFrameRight || previousBottom != mFrameBottom;
+    }
+
+    private void restoreRawFrame() {
+        if (mHasRawFrame && mFrameLeft == mSnappedFrame[0] && mFrameTop == mSnappedFrame[1]
+                && mFrameRight == mSnappedFrame[2] && mFrameBottom == mSnappedFrame[3]) {
+            mFrameLeft   = mRawFrame[0];
+            mFrameTop    = mRawFrame[1];
+            mFrameRight  = mRawFrame[2];
+            mFrameBottom = mRawFrame[3];
+        }
+    }
+
+    /**
+     * Snap the dragged edges of the raw frame. An axis grabbed on both edges
+     * shifts by the smaller of its two snap distances, within the limit area.
+     */
+    private void snapFrame(float horizontalSpacing, float verticalSpacing) {
+        mRawFrame[0] = mFrameLeft;
+        mRawFrame[1] = mFrameTop;
+        mRawFrame[2] = mFrameRight;
+        mRawFrame[3] = mFrameBottom;
+        mHasRawFrame = true;
+
+        int horizontal = mMotionActions & (MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT);
+        int vertical   = mMotionActions & (MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM);
+        if (horizontal == (MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT)) {
+            float shift = findSnapShift(SnapIndex.AXIS_X, mFrameLeft, mFrameRight, mLimitLeft, mLimitRight);
+            mFrameLeft  += shift;
+            mFrameRight += shift;
+        } else if (horizontal == MOTION_ACTION_LEFT) {
+            mFrameLeft = snapEdge(SnapIndex.AXIS_X, mFrameLeft, mLimitLeft, mFrameRight - horizontalSpacing);
+        } else if (horizontal == MOTION_ACTION_RIGHT) {
+            mFrameRight = snapEdge(SnapIndex.AXIS_X, mFrameRight, mFrameLeft + horizontalSpacing, mLimitRight);
+        }
+        if (vertical == (MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM)) {
+            float shift = findSnapShift(SnapIndex.AXIS_Y, mFrameTop, mFrameBottom, mLimitTop, mLimitBottom);
+            mFrameTop    += shift;
+            mFrameBottom += shift;
+        } else if (vertical == MOTION_ACTION_TOP) {
+            mFrameTop = snapEdge(SnapIndex.AXIS_Y, mFrameTop, mLimitTop, mFrameBottom - verticalSpacing);
+        } else if (vertical == MOTION_ACTION_BOTTOM) {
+            mFrameBottom = snapEdge(SnapIndex.AXIS_Y, mFrameBottom, mFrameTop + verticalSpacing, mLimitBottom);
+        }
+
+        mSnappedFrame[0] = mFrameLeft;
+        mSnappedFrame[1] = mFrameTop;
+        mSnappedFrame[2] = mFrameRight;
+        mSnappedFrame[3] = mFrameBottom;
+    }
+
+    /**
+     * @return the snapped coordinate, or {@link Float#NaN} if nothing is in reach
+     */
+    private float findSnapCoordinate(int axis, float value) {
+        float origin  = axis == SnapIndex.AXIS_X ? mSnapOriginX : mSnapOriginY;
+        float span    = axis == SnapIndex.AXIS_X ? mSnapSpanX : mSnapSpanY;
+        float nearest = mSnapIndex.findNearest(axis, (value - origin) / span, mSnapDistance / span);
+        return origin + nearest * span;
+    }
+
+    private float snapEdge(int axis, float edge, float min, float max) {
+        float snapped = findSnapCoordinate(axis, edge);
+        return snapped >= min && snapped <= max ? snapped : edge;
+    }
+
+    private float findSnapShift(int axis, float start, float end, float limitStart, float limitEnd) {
+        float startShift = findSnapCoordinate(axis, start) - start;
+        float endShift   = findSnapCoordinate(axis, end) - end;
+        // NaN means no snap in reach, a start edge already on a line snaps with a shift of 0
+        float shift      = startShift;
+        if (!Float.isNaN(endShift) && (Float.isNaN(shift) || Math.abs(endShift) < Math.abs(shift))) {
+            shift = endShift;
+        }
+        if (Float.isNaN(shift)) {
+            shift = 0;
+        }
+        return MathUtils.clamp(shift, limitStart - start, limitEnd - end);
+    }
+
+    /**
+     * Resolve an edge or corner drag under the aspect ratio and the limit
+     * area in closed form. The dragged corner or edge proposes a size, which
+     * is projected onto the ratio, then clamped between the minimum size and
+     * the largest size the limit area leaves on the anchored side.
+     */
+    private void dragWithAspectRatio(float distanceX, float distanceY, float minSpacing) {
+        float ratio      = mAspectRatio;
+        float minWidth   = Math.max(minSpacing, minSpacing * ratio);
+        int   horizontal = mMotionActions & (MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT);
+        int   vertical   = mMotionActions & (MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM);
+
+        // An axis grabbed on both edges only translates, the distance is already clamped
+        if (horizontal == (MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT)) {
+            mFrameLeft  -= distanceX;
+            mFrameRight -= distanceX;
+            horizontal   = MOTION_ACTION_NONE;
+        }
+        if (vertical == (MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM)) {
+            mFrameTop    -= distanceY;
+            mFrameBottom -= distanceY;
+            vertical      = MOTION_ACTION_NONE;
+        }
+
+        if (horizontal != MOTION_ACTION_NONE && vertical != MOTION_ACTION_NONE) {
+            // Corner: the opposite corner stays, the size follows the projection
+            // of the dragged diagonal onto the ratio diagonal
+            boolean isLeft   = horizontal == MOTION_ACTION_LEFT;
+            boolean isTop    = vertical == MOTION_ACTION_TOP;
+            float   anchorX  = isLeft ? mFrameRight : mFrameLeft;
+            float   anchorY  = isTop ? mFrameBottom : mFrameTop;
+            float   width    = isLeft ? anchorX - (mFrameLeft - distanceX) : (mFrameRight - distanceX) - anchorX;
+            float   height   = isTop ? anchorY - (mFrameTop - distanceY) : (mFrameBottom - distanceY) - anchorY;
+            float   maxWidth = Math.min(
+                    isLeft ? anchorX - mLimitLeft : mLimitRight - anchorX,
+                    (isTop ? anchorY - mLimitTop : mLimitBottom - anchorY) * ratio);
+            width  = clampSize((width * ratio + height) / (ratio * ratio + 1) * ratio, minWidth, maxWidth);
+            height = width / ratio;
+            mFrameLeft   = isLeft ? anchorX - width : anchorX;
+            mFrameRight  = isLeft ? anchorX : anchorX + width;
+            mFrameTop    = isTop ? anchorY - height : anchorY;
+            mFrameBottom = isTop ? anchorY : anchorY + height;
+        } else if (horizontal != MOTION_ACTION_NONE) {
+            // Vertical edge: the opposite edge stays, the height follows around the center
+            boolean isLeft   = horizontal == MOTION_ACTION_LEFT;
+            float   anchorX  = isLeft ? mFrameRight : mFrameLeft;
+            float   width    = isLeft ? anchorX - (mFrameLeft - distanceX) : (mFrameRight - distanceX) - anchorX;
+            float   maxWidth = Math.min(
+                    isLeft ? anchorX - mLimitLeft : mLimitRight - anchorX,
+                    (mLimitBottom - mLimitTop) * ratio);
+            width = clampSize(width, minWidth, maxWidth);
+            mFrameLeft  = isLeft ? anchorX - width : anchorX;
+            mFrameRight = isLeft ? anchorX : anchorX + width;
+            centerSpan(width / ratio, false);
+        } else if (vertical != MOTION_ACTION_NONE) {
+            // Horizontal edge: the opposite edge stays, the width follows around the center
+            boolean isTop     = vertical == MOTION_ACTION_TOP;
+            float   anchorY   = isTop ? mFrameBottom : mFrameTop;
+            float   height    = isTop ? anchorY - (mFrameTop - distanceY) : (mFrameBottom - distanceY) - anchorY;
+            float   maxHeight = Math.min(
+                    isTop ? anchorY - mLimitTop : mLimitBottom - anchorY,
+                    (mLimitRight - mLimitLeft) / ratio);
+            height = clampSize(height, minWidth / ratio, maxHeight);
+            mFrameTop    = isTop ? anchorY - height : anchorY;
+            mFrameBottom = isTop ? anchorY : anchorY + height;
+            centerSpan(height * ratio, true);
+        }
+    }
+
+    /**
+     * Clamp a size, the limit wins over the minimum when they conflict
+     */
+    private static float clampSize(float size, float min, float max) {
+        return Math.min(Math.max(size, min), max);
+    }
+
+    /**
+     * Resize the free axis to <tt>size</tt> around its current center,
+     * shifting it back inside the limit area if it sticks out
+     */
+    private void centerSpan(float size, boolean isHorizontal) {
+        float halfSize = size * 0.5f;
+        if (isHorizontal) {
+            float center = MathUtils.clamp((mFrameLeft + mFrameRight) * 0.5f,
+                    mLimitLeft + halfSize, mLimitRight - halfSize);
+            mFrameLeft  = center - halfSize;
+            mFrameRight = center + halfSize;
+        } else {
+            float center = MathUtils.clamp((mFrameTop + mFrameBottom) * 0.5f,
+                    mLimitTop + halfSize, mLimitBottom - halfSize);
+            mFrameTop    = center - halfSize;
+            mFrameBottom = center + halfSize;
+        }
+    }
+
+    /**
+     * Compute where the frame ends up when every edge closer than
+     * <tt>snapDistance</tt> to the matching limit edge snaps onto it
+     * @param snapDistance
+     * @param out {left, top, right, bottom}
+     * @return true if any edge snaps
+     */
+    public boolean computeSnapTarget(float snapDistance, float[] out) {
+        if (isRotatedLimitActive()) {
+            // The limit edges are outside the rotated image, snapping onto them would leave it
+            return false;
+        }
+        if (isAspectRatioLocked()) {
+            // Snapping single edges would break the ratio, so shift the whole frame instead
+            float shiftX = Math.abs(mFrameLeft - mLimitLeft) < snapDistance ? mLimitLeft - mFrameLeft
+                    : Math.abs(mFrameRight - mLimitRight) < snapDistance ? mLimitRight - mFrameRight : 0;
+            float shiftY = Math.abs(mFrameTop - mLimitTop) < snapDistance ? mLimitTop - mFrameTop
+                    : Math.abs(mFrameBottom - mLimitBottom) < snapDistance ? mLimitBottom - mFrameBottom : 0;
+            out[0] = mFrameLeft + shiftX;
+            out[1] = mFrameTop + shiftY;
+            out[2] = mFrameRight + shiftX;
+            out[3] = mFrameBottom + shiftY;
+            return shiftX != 0 || shiftY != 0;
+        }
+        out[0] = Math.abs(mFrameLeft - mLimitLeft) < snapDistance ? mLimitLeft : mFrameLeft;
+        out[1] = Math.abs(mFrameTop - mLimitTop) < snapDistance ? mLimitTop : mFrameTop;
+        out[2] = Math.abs(mFrameRight - mLimitRight) < snapDistance ? mLimitRight : mFrameRight;
+        out[3] = Math.abs(mFrameBottom - mLimitBottom) < snapDistance ? mLimitBottom : mFrameBottom;
+        return out[0] != mFrameLeft || out[1] != mFrameTop || out[2] != mFrameRight || out[3] != mFrameBottom;
+    }
+
+    /**
+     * Pull the frame back inside the limit area, shrinking it only if it
+     * no longer fits, and never below three corner mark lengths. A locked
+     * aspect ratio is restored afterwards.
+     * @return true if the frame has changed
+     */
+    public boolean constrainToLimit() {
+        float previousLeft   = mFrameLeft;
+        float previousTop    = mFrameTop;
+        float previousRight  = mFrameRight;
+        float previousBottom = mFrameBottom;
+        float minWidth       = Math.min(3 * mCornerLineHeight, mLimitRight - mLimitLeft);
+        float minHeight      = Math.min(3 * mCornerLineHeight, mLimitBottom - mLimitTop);
+
+        mFrameLeft   = MathUtils.clamp(mFrameLeft, mLimitLeft, mLimitRight - minWidth);
+        mFrameRight  = MathUtils.clamp(mFrameRight, mFrameLeft + minWidth, mLimitRight);
+        mFrameTop    = MathUtils.clamp(mFrameTop, mLimitTop, mLimitBottom - minHeight);
+        mFrameBottom = MathUtils.clamp(mFrameBottom, mFrameTop + minHeight, mLimitBottom);
+        fitAspectRatio();
+        fitRotatedLimit();
+
+        return previousLeft != mFrameLeft || previousTop != mFrameTop
+                || previousRight != mFrameRight || previousBottom != mFrameBottom;
+    }
+
+    public int getMaskBufferSize() {
+        return MaskRectCount * FloatsPerRect;
+    }
+
+    /**
+     * Generate the dim mask around the frame as non-overlapping rectangles
+     * (left, top, right, bottom) which tile <tt>area</tt> minus the frame,
+     * so every masked pixel is painted exactly once and none inside the frame
+     * @param rects buffer of at least {@link #getMaskBufferSize()} floats
+     */
+    public void buildMaskRects(float areaLeft, float areaTop, float areaRight, float areaBottom, float[] rects) {
+        float frameLeft   = MathUtils.clamp(mFrameLeft, areaLeft, areaRight);
+        float frameTop    = MathUtils.clamp(mFrameTop, areaTop, areaBottom);
+        float frameRight  = MathUtils.clamp(mFrameRight, frameLeft, areaRight);
+        float frameBottom = MathUtils.clamp(mFrameBottom, frameTop, areaBottom);
+        int   offset      = 0;
+        offset = putRect(rects, offset, areaLeft, areaTop, areaRight, frameTop);
+        offset = putRect(rects, offset, areaLeft, frameBottom, areaRight, areaBottom);
+        offset = putRect(rects, offset, areaLeft, frameTop, frameLeft, frameBottom);
+        putRect(rects, offset, frameRight, frameTop, areaRight, frameBottom);
+    }
+
+    /**
+     * Generate frame, grid and corner mark lines for the current frame into one
+     * buffer, laid out as frame lines, then grid lines, then corner mark lines,
+     * so all of them can be drawn with a single <tt>drawLines</tt> call
+     * @param lines buffer of at least {@link #getLineBufferSize()} floats
+     */
+    public void buildLines(float[] lines) {
+        float clipLeft        = mFrameLeft;
+        float clipRight       = mFrameRight;
+        float clipTop         = mFrameTop;
+        float clipBottom      = mFrameBottom;
+        float clipWidth       = clipRight - clipLeft;
+        float clipHeight      = clipBottom - clipTop;
+        float halfLineWidth   = mFrameLineWidth * 0.5f;
+        float halfCornerLine  = mCornerLineHeight * 0.5f;
+        float centerX         = clipLeft + clipWidth * 0.5f;
+        float centerY         = clipTop + clipHeight * 0.5f;
+        int   offset          = getFrameLineOffset();
+
+        // Frame line, horizontal lines cover the corners so no pixel is drawn twice
+        offset = putLine(lines, offset, clipLeft - halfLineWidth, clipTop, clipRight + halfLineWidth, clipTop);
+        offset = putLine(lines, offset, clipLeft - halfLineWidth, clipBottom, clipRight + halfLineWidth, clipBottom);
+        offset = putLine(lines, offset, clipLeft, clipTop + halfLineWidth, clipLeft, clipBottom - halfLineWidth);
+        offset = putLine(lines, offset, clipRight, clipTop + halfLineWidth, clipRight, clipBottom - halfLineWidth);
+
+        // Column grid line
+        for (int column = 1; column < mColumnCount; column++) {
+            float xOffset = clipLeft + clipWidth * mColumnStops[column];
+            offset = putLine(lines, offset, xOffset, clipTop + halfLineWidth, xOffset, clipBottom - halfLineWidth);
+        }
+
+        // Row grid line
+        for (int row = 1; row < mRowCount; row++) {
+            float yOffset = clipTop + clipHeight * mRowStops[row];
+            offset = putLine(lines, offset, clipLeft + halfLineWidth, yOffset, clipRight - halfLineWidth, yOffset);
+        }
+
+        // Corner column line
+        offset = putLine(lines, offset, clipLeft, clipTop - halfLineWidth, clipLeft, clipTop + mCornerLineHeight + halfLineWidth);
+        offset = putLine(lines, offset, clipRight, clipTop - halfLineWidth, clipRight, clipTop + mCornerLineHeight + halfLineWidth);
+        offset = putLine(lines, offset, clipLeft, clipBottom - mCornerLineHeight - halfLineWidth, clipLeft, clipBottom + halfLineWidth);
+        offset = putLine(lines, offset, clipRight, clipBottom - mCornerLineHeight - halfLineWidth, clipRight, clipBottom + halfLineWidth);
+
+        // Corner row line
+        offset = putLine(lines, offset, clipLeft - halfLineWidth, clipTop, clipLeft + mCornerLineHeight + halfLineWidth, clipTop);
+        offset = putLine(lines, offset, clipRight - mCornerLineHeight - halfLineWidth, clipTop, clipRight + halfLineWidth, clipTop);
+        offset = putLine(lines, offset, clipLeft - halfLineWidth, clipBottom, clipLeft + mCornerLineHeight + halfLineWidth, clipBottom);
+        offset = putLine(lines, offset, clipRight - mCornerLineHeight - halfLineWidth, clipBottom, clipRight + halfLineWidth, clipBottom);
+
+        // Edge center mark
+        offset = putLine(lines, offset, clipLeft, centerY - halfCornerLine, clipLeft, centerY + halfCornerLine);
+        offset = putLine(lines, offset, clipRight, centerY - halfCornerLine, clipRight, centerY + halfCornerLine);
+        offset = putLine(lines, offset, centerX - halfCornerLine, clipTop, centerX + halfCornerLine, clipTop);
+        offset = putLine(lines, offset, centerX - halfCornerLine, clipBottom, centerX + halfCornerLine, clipBottom);
+    }
+
+    private static int putLine(float[] lines, int offset, float startX, float startY, float stopX, float stopY) {
+        lines[offset + 0] = startX;
+        lines[offset + 1] = startY;
+        lines[offset + 2] = stopX;
+        lines[offset + 3] = stopY;
+        return offset + FloatsPerLine;
+    }
+
+    private static int putRect(float[] rects, int offset, float left, float top, float right, float bottom) {
+        rects[offset + 0] = left;
+        rects[offset + 1] = top;
+        rects[offset + 2] = right;
+        rects[offset + 3] = bottom;
+        return offset + FloatsPerRect;
+    }
+
+}
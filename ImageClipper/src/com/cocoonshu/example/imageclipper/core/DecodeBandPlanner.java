@@ -0,0 +1,167 @@
+package com.cocoonshu.example.imageclipper.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plans one decode pass over the source for a batch of crop regions. The
+ * source is cut into horizontal bands at every region top and bottom, so
+ * each band is overlapped by a fixed set of regions. Regions overlapping
+ * each other horizontally inside a band share one decode of their union;
+ * disjoint groups get separate bands, so the gap between them is never
+ * decoded. Every source pixel needed by any region is decoded exactly once.
+ */
+public class DecodeBandPlanner {
+
+    private static final int     IntsPerRegion   = 4;
+
+    /**
+     * A source rectangle decoded once and drawn into every region it overlaps
+     */
+    public static class Band {
+        public final int   left;
+        public final int   top;
+        public final int   right;
+        public final int   bottom;
+        /** Decode sample size, the finest one required by the overlapping regions */
+        public final int   sampleSize;
+        /** Indices of the regions overlapping this band */
+        public final int[] regions;
+
+        Band(int left, int top, int right, int bottom, int sampleSize, int[] regions) {
+            this.left       = left;
+            this.top        = top;
+            this.right      = right;
+            this.bottom     = bottom;
+            this.sampleSize = sampleSize;
+            this.regions    = regions;
+        }
+
+        public int width() {
+            return right - left;
+        }
+
+        public int height() {
+            return bottom - top;
+        }
+
+        @Override
+        public String toString() {
+            return "Band(" + left + ", " + top + ", " + right + ", " + bottom
+                    + ", sample " + sampleSize + ", regions " + Arrays.toString(regions) + ")";
+        }
+    }
+
+    /**
+     * Plan the bands for a batch
+     * @param regions       source rectangles, left, top, right, bottom per region
+     * @param sampleSizes   decode sample size each region needs
+     * @param maxBandPixels upper bound of decoded pixels per band, keeps band bitmaps small
+     * @return bands ordered by top, so each region receives its rows top to bottom
+     */
+    public static List<Band> plan(int[] regions, int[] sampleSizes, int maxBandPixels) {
+        int regionCount = regions.length / IntsPerRegion;
+        if (sampleSizes.length < regionCount) {
+            throw new IllegalArgumentException("Expected " + regionCount + " sample sizes, got " + sampleSizes.length);
+        }
+
+        // Every region edge starts a new band, so the overlapping set is constant inside it
+        int[] edges = new int[regionCount * 2];
+        for (int i = 0; i < regionCount; i++) {
+            edges[i * 2 + 0] = regions[i * IntsPerRegion + 1];
+            edges[i * 2 + 1] = regions[i * IntsPerRegion + 3];
+        }
+        Arrays.sort(edges);
+
+        List<Band>    bands   = new ArrayList<Band>();
+        int[]         order   = new int[regionCount];
+        List<Integer> cluster = new ArrayList<Integer>();
+        for (int e = 0; e + 1 < edges.length; e++) {
+            int top    = edges[e];
+            int bottom = edges[e + 1];
+            if (top == bottom) {
+                continue;
+            }
+
+            // Regions covering [top, bottom), ordered by left edge
+            int activeCount = 0;
+            for (int i = 0; i < regionCount; i++) {
+                if (regions[i * IntsPerRegion + 1] <= top && regions[i * IntsPerRegion + 3] >= bottom
+                        && regions[i * IntsPerRegion + 2] > regions[i * IntsPerRegion]) {
+                    order[activeCount++] = i;
+                }
+            }
+            if (activeCount == 0) {
+                continue;
+            }
+            sortByLeft(order, activeCount, regions);
+
+            // Merge horizontally overlapping regions into clusters
+            int clusterLeft  = regions[order[0] * IntsPerRegion];
+            int clusterRight = regions[order[0] * IntsPerRegion + 2];
+            cluster.clear();
+            cluster.add(order[0]);
+            for (int a = 1; a <= activeCount; a++) {
+                int region = a < activeCount ? order[a] : -1;
+                if (region >= 0 && regions[region * IntsPerRegion] < clusterRight) {
+                    clusterRight = Math.max(clusterRight, regions[region * IntsPerRegion + 2]);
+                    cluster.add(region);
+                    continue;
+                }
+                addBands(bands, clusterLeft, top, clusterRight, bottom, cluster, sampleSizes, maxBandPixels);
+                if (region >= 0) {
+                    clusterLeft  = regions[region * IntsPerRegion];
+                    clusterRight = regions[region * IntsPerRegion + 2];
+                    cluster.clear();
+                    cluster.add(region);
+                }
+            }
+        }
+        return bands;
+    }
+
+    /**
+     * Total source pixels the plan decodes, to compare against decoding every region on its own
+     */
+    public static long countSourcePixels(List<Band> bands) {
+        long pixels = 0;
+        for (Band band : bands) {
+            pixels += (long) band.width() * band.height();
+        }
+        return pixels;
+    }
+
+    private static void addBands(List<Band> bands, int left, int top, int right, int bottom,
+                                 List<Integer> cluster, int[] sampleSizes, int maxBandPixels) {
+        int   sampleSize = Integer.MAX_VALUE;
+        int[] members    = new int[cluster.size()];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = cluster.get(i);
+            sampleSize = Math.min(sampleSize, Math.max(1, sampleSizes[members[i]]));
+        }
+        Arrays.sort(members);
+
+        // Rows per band from the decoded pixel budget, kept a multiple of the sample size
+        int decodedWidth = Math.max(1, (right - left + sampleSize - 1) / sampleSize);
+        int bandRows     = Math.max(1, maxBandPixels / decodedWidth) * sampleSize;
+        for (int bandTop = top; bandTop < bottom; bandTop += bandRows) {
+            bands.add(new Band(left, bandTop, right, Math.min(bottom, bandTop + bandRows), sampleSize, members));
+        }
+    }
+
+    private static void sortByLeft(int[] order, int count, int[] regions) {
+        // Batches are a handful of regions, insertion sort is enough
+        for (int i = 1; i < count; i++) {
+            int region = order[i];
+            int left   = regions[region * IntsPerRegion];
+            int j      = i - 1;
+            while (j >= 0 && regions[order[j] * IntsPerRegion] > left) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = region;
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Vsync driven clip frame animation: inertial fling with exponential
+ * friction, and critically damped spring snapping of the frame edges.
+ * Both are stepped in closed form from the frame timestamp, so the
+ * result does not depend on the refresh rate and a step never allocates.
+ */
+public class FrameAnimator {
+
+    public static final int      STATE_IDLE            = 0;
+    public static final int      STATE_FLING           = 1;
+    public static final int      STATE_SNAP            = 2;
+
+    private static final float   NanosPerSecond        = 1e9f;
+    private static final float   MaxStepSeconds        = 1f / 30f;
+    private static final float   FlingFriction         = 6f;
+    private static final float   MinFlingVelocity      = 30f;
+    private static final float   SnapStiffness         = 22f;
+    private static final float   SnapRestDistance      = 0.5f;
+    private static final float   SnapRestVelocity      = 10f;
+    private static final int     EdgeCount             = 4;
+
+    private int                  mState                = STATE_IDLE;
+    private long                 mLastFrameTimeNanos   = 0;
+    private float                mVelocityX            = 0;
+    private float                mVelocityY            = 0;
+    private final float[]        mEdgeOffsets          = new float[EdgeCount];
+    private final float[]        mEdgeVelocities       = new float[EdgeCount];
+    private final float[]        mEdgeTargets          = new float[EdgeCount];
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isRunning() {
+        return mState != STATE_IDLE;
+    }
+
+    public void stop() {
+        mState = STATE_IDLE;
+    }
+
+    /**
+     * Start moving the whole frame with a fling velocity
+     * @param velocityX finger velocity in pixels per second
+     * @param velocityY finger velocity in pixels per second
+     * @param timeNanos start time on the vsync clock
+     */
+    public void startFling(float velocityX, float velocityY, long timeNanos) {
+        mVelocityX          = velocityX;
+        mVelocityY          = velocityY;
+        mLastFrameTimeNanos = timeNanos;
+        mState              = STATE_FLING;
+    }
+
+    /**
+     * Start snapping the frame edges which are close to the limit area onto it
+     * @param geometry
+     * @param snapDistance distance within which an edge snaps
+     * @param timeNanos    start time on the vsync clock
+     * @return true if any edge needs to move
+     */
+    public boolean startSnap(ClipGeometry geometry, float snapDistance, long timeNanos) {
+        if (!geometry.computeSnapTarget(snapDistance, mEdgeTargets)) {
+            mState = STATE_IDLE;
+            return false;
+        }
+        mEdgeOffsets[0] = geometry.getFrameLeft() - mEdgeTargets[0];
+        mEdgeOffsets[1] = geometry.getFrameTop() - mEdgeTargets[1];
+        mEdgeOffsets[2] = geometry.getFrameRight() - mEdgeTargets[2];
+        mEdgeOffsets[3] = geometry.getFrameBottom() - mEdgeTargets[3];
+        for (int edge = 0; edge < EdgeCount; edge++) {
+            mEdgeVelocities[edge] = 0;
+        }
+        mLastFrameTimeNanos = timeNanos;
+        mState              = STATE_SNAP;
+        return true;
+    }
+
+    /**
+     * Advance the animation to <tt>frameTimeNanos</tt> and apply it to the geometry
+     * @param geometry
+     * @param frameTimeNanos vsync timestamp of the frame being produced
+     * @return true if the frame has changed
+     */
+    public boolean step(ClipGeometry geometry, long frameTimeNanos) {
+        float seconds = (frameTimeNanos - mLastFrameTimeNanos) / NanosPerSecond;
+        mLastFrameTimeNanos = frameTimeNanos;
+        if (seconds <= 0) {
+            return false;
+        }
+        seconds = Math.min(seconds, MaxStepSeconds);
+
+        switch (mState) {
+        case STATE_FLING:
+            return stepFling(geometry, seconds);
+        case STATE_SNAP:
+            return stepSnap(geometry, seconds);
+        default:
+            return false;
+        }
+    }
+
+    private boolean stepFling(ClipGeometry geometry, float seconds) {
+        // v(t) = v0 * e^(-kt), x(t) = v0 * (1 - e^(-kt)) / k
+        float decay     = (float) Math.exp(-FlingFriction * seconds);
+        float distanceX = mVelocityX * (1f - decay) / FlingFriction;
+        float distanceY = mVelocityY * (1f - decay) / FlingFriction;
+        mVelocityX *= decay;
+        mVelocityY *= decay;
+
+        // The finger is already up, so move the frame as a whole for this step.
+        // Snapping every step would pull the frame back onto the line it rests on,
+        // the snap started when the fling ends settles it instead.
+        int     motionActions = geometry.getMotionActions();
+        float   previousLeft  = geometry.getFrameLeft();
+        float   previousTop   = geometry.getFrameTop();
+        geometry.setMotionActions(ClipGeometry.MOTION_ACTION_MOVE);
+        boolean isChanged     = geometry.drag(-distanceX, -distanceY, false);
+        geometry.setMotionActions(motionActions);
+
+        // An axis blocked by the limit area loses its velocity
+        if (isBlocked(mVelocityX, geometry.getFrameLeft() - previousLeft,
+                geometry.getFrameLeft() - geometry.getLimitLeft(),
+                geometry.getLimitRight() - geometry.getFrameRight())) {
+            mVelocityX = 0;
+        }
+        if (isBlocked(mVelocityY, geometry.getFrameTop() - previousTop,
+                geometry.getFrameTop() - geometry.getLimitTop(),
+                geometry.getLimitBottom() - geometry.getFrameBottom())) {
+            mVelocityY = 0;
+        }
+        if (Math.abs(mVelocityX) < MinFlingVelocity && Math.abs(mVelocityY) < MinFlingVelocity) {
+            mState = STATE_IDLE;
+        }
+        return isChanged;
+    }
+
+    /**
+     * Whether a flinging axis can go no further: the frame touches the limit
+     * on the side it heads to, or the rotated image border held it in place
+     * @param velocity    velocity along the axis
+     * @param moved       distance the frame moved along the axis this step
+     * @param startMargin room left between the limit start and the frame
+     * @param endMargin   room left between the frame and the limit end
+     */
+    private static boolean isBlocked(float velocity, float moved, float startMargin, float endMargin) {
+        if (velocity < 0 && startMargin <= 0 || velocity > 0 && endMargin <= 0) {
+            return true;
+        }
+        return velocity != 0 && moved == 0;
+    }
+
+    private boolean stepSnap(ClipGeometry geometry, float seconds) {
+        // Critically damped spring:
+        // x(t) = (x0 + (v0 + w*x0) * t) * e^(-wt), v(t) = (v0 - w * (v0 + w*x0) * t) * e^(-wt)
+        float   decay    = (float) Math.exp(-SnapStiffness * seconds);
+        boolean isAtRest = true;
+        for (int edge = 0; edge < EdgeCount; edge++) {
+            float offset   = mEdgeOffsets[edge];
+            float velocity = mEdgeVelocities[edge];
+            float impulse  = velocity + SnapStiffness * offset;
+            offset   = (offset + impulse * seconds) * decay;
+            velocity = (velocity - SnapStiffness * impulse * seconds) * decay;
+            if (Math.abs(offset) < SnapRestDistance && Math.abs(velocity) < SnapRestVelocity) {
+                offset   = 0;
+                velocity = 0;
+            } else {
+                isAtRest = false;
+            }
+            mEdgeOffsets[edge]    = offset;
+            mEdgeVelocities[edge] = velocity;
+        }
+
+        float previousLeft   = geometry.getFrameLeft();
+        float previousTop    = geometry.getFrameTop();
+        float previousRight  = geometry.getFrameRight();
+        float previousBottom = geometry.getFrameBottom();
+        geometry.setFrame(
+                mEdgeTargets[0] + mEdgeOffsets[0],
+                mEdgeTargets[1] + mEdgeOffsets[1],
+                mEdgeTargets[2] + mEdgeOffsets[2],
+                mEdgeTargets[3] + mEdgeOffsets[3]);
+        if (isAtRest) {
+            mState = STATE_IDLE;
+        }
+        return previousLeft != geometry.getFrameLeft() || previousTop != geometry.getFrameTop()
+                || previousRight != geometry.getFrameRight() || previousBottom != geometry.getFrameBottom();
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Frame time and input latency histograms of the clipper view. All of
+ * them can be recorded from the UI thread while another thread reads
+ * snapshots.
+ */
+public class FrameMetrics {
+
+    private final LatencyHistogram mDrawTime         = new LatencyHistogram("draw");
+    private final LatencyHistogram mLinesUpdateTime  = new LatencyHistogram("updateLines");
+    private final LatencyHistogram mTouchHandleTime  = new LatencyHistogram("touchEvent");
+    private final LatencyHistogram mTouchToDrawTime  = new LatencyHistogram("touchToDraw");
+
+    /**
+     * @return time spent in <tt>onDraw</tt>, per frame
+     */
+    public LatencyHistogram getDrawTime() {
+        return mDrawTime;
+    }
+
+    /**
+     * @return time spent regenerating the line and mask buffers, per rebuild
+     */
+    public LatencyHistogram getLinesUpdateTime() {
+        return mLinesUpdateTime;
+    }
+
+    /**
+     * @return time spent in <tt>onTouchEvent</tt>, per event
+     */
+    public LatencyHistogram getTouchHandleTime() {
+        return mTouchHandleTime;
+    }
+
+    /**
+     * @return time from a touch event which changed the frame to the next
+     *         draw, per drawn frame
+     */
+    public LatencyHistogram getTouchToDrawTime() {
+        return mTouchToDrawTime;
+    }
+
+    public void reset() {
+        mDrawTime.reset();
+        mLinesUpdateTime.reset();
+        mTouchHandleTime.reset();
+        mTouchToDrawTime.reset();
+    }
+
+    /**
+     * @return one line per histogram, with count, mean, percentiles and maximum
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mDrawTime.snapshot()).append('\n');
+        builder.append(mLinesUpdateTime.snapshot()).append('\n');
+        builder.append(mTouchHandleTime.snapshot()).append('\n');
+        builder.append(mTouchToDrawTime.snapshot());
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.cocoonshu.example.imageclipper.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock-free latency histogram. Values are recorded in
+ * microseconds into log-linear buckets: every power of two range is split
+ * into 8 sub-buckets, so a reported percentile is within 12.5% of the
+ * recorded value. Recording is a few integer operations and one atomic
+ * increment, safe from any thread and free of allocation; readers take an
+ * immutable {@link Snapshot}.
+ */
+public class LatencyHistogram {
+
+    private static final int     SubBucketBits     = 3;
+    private static final int     SubBucketCount    = 1 << SubBucketBits;
+    // Highest tracked power of two, 2^24 us is about 16.7 seconds
+    private static final int     MaxExponent       = 24;
+    private static final int     BucketCount       = (MaxExponent - SubBucketBits + 2) * SubBucketCount;
+    private static final long    NanosPerMicro     = 1000;
+
+    private final String          mName;
+    private final AtomicLongArray mCounts          = new AtomicLongArray(BucketCount);
+    private final AtomicLong      mTotalMicros     = new AtomicLong();
+    private final AtomicLong      mMaxMicros       = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Record one duration
+     * @param nanos duration in nanoseconds, negative values count as zero
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / NanosPerMicro);
+    }
+
+    /**
+     * Record one duration
+     * @param micros duration in microseconds, negative values count as zero
+     */
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts.incrementAndGet(bucketIndex(micros));
+        mTotalMicros.addAndGet(micros);
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BucketCount; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    /**
+     * Copy the current state. Concurrent recordings may or may not be
+     * included, but every bucket count is read atomically.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BucketCount];
+        long   count  = 0;
+        for (int i = 0; i < BucketCount; i++) {
+            counts[i] = mCounts.get(i);
+            count    += counts[i];
+        }
+        return new Snapshot(mName, counts, count, mTotalMicros.get(), mMaxMicros.get());
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SubBucketCount) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MaxExponent) {
+            return BucketCount - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SubBucketBits)) & (SubBucketCount - 1);
+        return (exponent - SubBucketBits + 1) * SubBucketCount + subBucket;
+    }
+
+    /**
+     * @return smallest value falling into the bucket
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SubBucketCount) {
+            return index;
+        }
+        int exponent  = index / SubBucketCount + SubBucketBits - 1;
+        int subBucket = index % SubBucketCount;
+        return (long) (SubBucketCount + subBucket) << (exponent - SubBucketBits);
+    }
+
+    /**
+     * @return largest value falling into the bucket
+     */
+    static long bucketUpperBound(int index) {
+        return bucketLowerBound(index + 1) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram
+     */
+    public static class Snapshot {
+
+        private final String mName;
+        private final long[] mCounts;
+        private final long   mCount;
+        private final long   mTotalMicros;
+        private final long   mMaxMicros;
+
+        Snapshot(String name, long[] counts, long count, long totalMicros, long maxMicros) {
+            mName        = name;
+            mCounts      = counts;
+            mCount       = count;
+            mTotalMicros = totalMicros;
+            mMaxMicros   = maxMicros;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxMicros() {
+            return mMaxMicros;
+        }
+
+        public double getMeanMicros() {
+            return mCount == 0 ? 0 : (double) mTotalMicros / mCount;
+        }
+
+        /**
+         * @param percentile in [0, 100]
+         * @return upper bound of the bucket holding the percentile, in
+         *         microseconds, never above the recorded maximum
+         */
+        public long getPercentileMicros(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(MathUtils.clamp((float) percentile, 0f, 100f) / 100.0 * mCount);
+            rank = Math.max(rank, 1);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    // The last bucket is open ended, only the maximum bounds it
+                    return i == mCounts.length - 1 ? mMaxMicros : Math.min(bucketUpperBound(i), mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+
+        /**
+         * @return number of recordings above <tt>thresholdMicros</tt>,
+         *         counted on bucket granularity
+         */
+        public long getCountAbove(long thresholdMicros) {
+            long count = 0;
+            for (int i = bucketIndex(thresholdMicros) + 1; i < mCounts.length; i++) {
+                count += mCounts[i];
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: n=%d mean=%.0fus p50=%dus p90=%dus p99=%dus max=%dus",
+                    mName, mCount, getMeanMicros(), getPercentileMicros(50),
+                    getPercentileMicros(90), getPercentileMicros(99), mMaxMicros);
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Math tools
+ * @author Cocoonshu@Plf.MediaCenter.Gallery
+ * @date 2015-09-14 17:09:49
+ */
+public class MathUtils {
+
+    public static final float PI_2   = (float) (Math.PI * 2.0);
+    public static final float PI     = (float) Math.PI;
+    public static final float PI_1_2 = (float) (Math.PI * 0.5);
+    public static final float PI_1_4 = (float) (Math.PI * 0.25);
+
+    /**
+     * Clamp value between <tt>min</tt> and <tt>max</tt>
+     * @param src
+     * @param min
+     * @param max
+     * @return
+     */
+    public static float clamp(float src, float min, float max) {
+        return src < min ? min : src > max ? max : src;
+    }
+
+    /**
+     * Clamp value between <tt>min</tt> and <tt>max</tt>
+     * @param src
+     * @param min
+     * @param max
+     * @return
+     */
+    public static int clamp(int src, int min, int max) {
+        return src < min ? min : src > max ? max : src;
+    }
+
+    /**
+     * Width of the bounding box of a <tt>width</tt> x <tt>height</tt> rectangle rotated by <tt>radians</tt>
+     */
+    public static float getRotatedWidth(float width, float height, float radians) {
+        return (float) (width * Math.abs(Math.cos(radians)) + height * Math.abs(Math.sin(radians)));
+    }
+
+    /**
+     * Height of the bounding box of a <tt>width</tt> x <tt>height</tt> rectangle rotated by <tt>radians</tt>
+     */
+    public static float getRotatedHeight(float width, float height, float radians) {
+        return (float) (width * Math.abs(Math.sin(radians)) + height * Math.abs(Math.cos(radians)));
+    }
+
+    /**
+     * Compute the largest power-of-two decode sample size which still keeps
+     * a <tt>srcWidth</tt> x <tt>srcHeight</tt> region at least as large as
+     * its fit-center size inside <tt>reqWidth</tt> x <tt>reqHeight</tt>
+     * @param srcWidth
+     * @param srcHeight
+     * @param reqWidth  requested width, <= 0 means unbounded
+     * @param reqHeight requested height, <= 0 means unbounded
+     * @return sample size, at least 1
+     */
+    public static int computeSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0) {
+            return 1;
+        }
+        float scale = 1f;
+        if (reqWidth > 0) {
+            scale = Math.min(scale, (float) reqWidth / srcWidth);
+        }
+        if (reqHeight > 0) {
+            scale = Math.min(scale, (float) reqHeight / srcHeight);
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+}
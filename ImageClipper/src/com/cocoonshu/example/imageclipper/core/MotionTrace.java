@@ -0,0 +1,514 @@
+package com.cocoonshu.example.imageclipper.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compact record of what the clipper view was fed during a session, so a
+ * field gesture can be replayed on a plain JVM and timed there:
+ * <ul>
+ * <li>every touch event, with the samples batched into its history</li>
+ * <li>the display frame ticks which apply drags and run animations</li>
+ * <li>the decisions of platform gesture detectors which can't run off
+ * device: where a drag started after the touch slop, and fling velocities</li>
+ * </ul>
+ * The clip geometry at the first touch, snap lines included, is kept as
+ * the replay start point.
+ * Recording appends to growable primitive arrays, so it does not allocate
+ * once they have grown to the gesture size.
+ * <p>
+ * Binary format, big endian: <tt>int</tt> magic, <tt>short</tt> version,
+ * the geometry, the snap state, <tt>int</tt> record count, then one type
+ * byte per record. The snap state is a <tt>boolean</tt> for whether there
+ * is a snap index, and if so the snap distance and mapping floats, then
+ * per axis a varint candidate count and the normalized candidate floats.
+ * Version 1 traces have no snap state and replay without snapping.
+ * <pre>
+ * MOTION      action byte, pointer count byte, varint sample count, and per sample
+ *             zigzag varints of the time delta in ms and x, y deltas in 1/16 px
+ * FRAME       zigzag varint of the frame time delta in ns
+ * DRAG_START  x, y floats
+ * FLING       velocity x, y floats, pixels per second
+ * </pre>
+ */
+public class MotionTrace {
+
+    public static final int      RECORD_MOTION         = 1;
+    public static final int      RECORD_FRAME          = 2;
+    public static final int      RECORD_DRAG_START     = 3;
+    public static final int      RECORD_FLING          = 4;
+
+    // Same values as android.view.MotionEvent
+    public static final int      ACTION_DOWN           = 0;
+    public static final int      ACTION_UP             = 1;
+    public static final int      ACTION_MOVE           = 2;
+    public static final int      ACTION_CANCEL         = 3;
+
+    private static final int     Magic                 = 0x4D545243; // "MTRC"
+    private static final int     Version               = 2;
+    private static final int     SnapStateVersion      = 2;
+    private static final int     InitialCapacity       = 64;
+    private static final float   SubPixels             = 16f;
+
+    // Geometry floats: frame, limit, rotated limit, aspect ratio, line metrics
+    private static final int     GeometryFrame         = 0;
+    private static final int     GeometryLimit         = 4;
+    private static final int     GeometryRotatedLimit  = 8;
+    private static final int     GeometryAspectRatio   = 13;
+    private static final int     GeometryLineWidth     = 14;
+    private static final int     GeometryCornerHeight  = 15;
+    private static final int     GeometryFloatCount    = 16;
+
+    // Snap floats: distance, mapping
+    private static final int     SnapDistance          = 0;
+    private static final int     SnapMapping           = 1;
+    private static final int     SnapFloatCount        = 5;
+
+    private boolean              mHasGeometry          = false;
+    private int                  mViewWidth            = 0;
+    private int                  mViewHeight           = 0;
+    private int                  mColumnCount          = 0;
+    private int                  mRowCount             = 0;
+    private int                  mGridStyle            = ClipGeometry.GRID_STYLE_UNIFORM;
+    private boolean              mIsFullAreaTouchable  = true;
+    private final float[]        mGeometry             = new float[GeometryFloatCount];
+    private final float[]        mSnap                 = new float[SnapFloatCount];
+    private float[]              mSnapXs               = null;
+    private float[]              mSnapYs               = null;
+
+    private int                  mRecordCount          = 0;
+    private byte[]               mTypes                = new byte[InitialCapacity];
+    private byte[]               mActions              = new byte[InitialCapacity];
+    private byte[]               mPointerCounts        = new byte[InitialCapacity];
+    private long[]               mFrameTimes           = new long[InitialCapacity];
+    private float[]              mValueXs              = new float[InitialCapacity];
+    private float[]              mValueYs              = new float[InitialCapacity];
+    private int[]                mSampleEnds           = new int[InitialCapacity];
+
+    private int                  mSampleCount          = 0;
+    private long[]               mSampleTimes          = new long[InitialCapacity];
+    private float[]              mSampleXs             = new float[InitialCapacity];
+    private float[]              mSampleYs             = new float[InitialCapacity];
+
+    /**
+     * Keep the replay start point. Only the first call counts.
+     * @param geometry   geometry of the view, before the first recorded event touches it
+     * @param viewWidth
+     * @param viewHeight
+     */
+    public void setGeometry(ClipGeometry geometry, int viewWidth, int viewHeight) {
+        if (mHasGeometry) {
+            return;
+        }
+        mHasGeometry         = true;
+        mViewWidth           = viewWidth;
+        mViewHeight          = viewHeight;
+        mColumnCount         = geometry.getColumnCount();
+        mRowCount            = geometry.getRowCount();
+        mGridStyle           = geometry.getGridStyle();
+        mIsFullAreaTouchable = geometry.isFullAreaTouchable();
+        mGeometry[GeometryFrame + 0] = geometry.getFrameLeft();
+        mGeometry[GeometryFrame + 1] = geometry.getFrameTop();
+        mGeometry[GeometryFrame + 2] = geometry.getFrameRight();
+        mGeometry[GeometryFrame + 3] = geometry.getFrameBottom();
+        mGeometry[GeometryLimit + 0] = geometry.getLimitLeft();
+        mGeometry[GeometryLimit + 1] = geometry.getLimitTop();
+        mGeometry[GeometryLimit + 2] = geometry.getLimitRight();
+        mGeometry[GeometryLimit + 3] = geometry.getLimitBottom();
+        geometry.getRotatedLimit(mGeometry, GeometryRotatedLimit);
+        mGeometry[GeometryAspectRatio]  = geometry.getAspectRatio();
+        mGeometry[GeometryLineWidth]    = geometry.getFrameLineWidth();
+        mGeometry[GeometryCornerHeight] = geometry.getCornerLineHeight();
+
+        SnapIndex snapIndex = geometry.getSnapIndex();
+        mSnapXs = snapIndex != null ? getSnapCoordinates(snapIndex, SnapIndex.AXIS_X) : null;
+        mSnapYs = snapIndex != null ? getSnapCoordinates(snapIndex, SnapIndex.AXIS_Y) : null;
+        mSnap[SnapDistance] = geometry.getSnapDistance();
+        geometry.getSnapMapping(mSnap, SnapMapping);
+    }
+
+    private static float[] getSnapCoordinates(SnapIndex index, int axis) {
+        float[] coordinates = new float[index.getCount(axis)];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = index.getCoordinate(axis, i);
+        }
+        return coordinates;
+    }
+
+    public boolean hasGeometry() {
+        return mHasGeometry;
+    }
+
+    /**
+     * Set <tt>geometry</tt> up as it was when recording started
+     * @param geometry
+     */
+    public void applyGeometry(ClipGeometry geometry) {
+        float[] values = mGeometry;
+        geometry.setLineMetrics(values[GeometryLineWidth], values[GeometryCornerHeight]);
+        geometry.setFullAreaTouchable(mIsFullAreaTouchable);
+        geometry.setGrid(Math.max(1, mColumnCount), Math.max(1, mRowCount), mGridStyle);
+        geometry.setAspectRatio(values[GeometryAspectRatio]);
+        geometry.setLimit(values[GeometryLimit + 0], values[GeometryLimit + 1],
+                values[GeometryLimit + 2], values[GeometryLimit + 3]);
+        geometry.setRotatedLimit(values[GeometryRotatedLimit + 0], values[GeometryRotatedLimit + 1],
+                values[GeometryRotatedLimit + 2], values[GeometryRotatedLimit + 3], values[GeometryRotatedLimit + 4]);
+        geometry.setSnapIndex(mSnapXs != null ? new SnapIndex(mSnapXs, mSnapYs) : null, mSnap[SnapDistance]);
+        geometry.setSnapMapping(mSnap[SnapMapping + 0], mSnap[SnapMapping + 1],
+                mSnap[SnapMapping + 2], mSnap[SnapMapping + 3]);
+        geometry.setFrame(values[GeometryFrame + 0], values[GeometryFrame + 1],
+                values[GeometryFrame + 2], values[GeometryFrame + 3]);
+        geometry.clearMotionActions();
+    }
+
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    /**
+     * Start a motion record, its samples follow through {@link #addSample(long, float, float)}
+     * @param action       masked action, one of the <tt>ACTION_*</tt> values or any other MotionEvent action
+     * @param pointerCount
+     */
+    public void beginMotion(int action, int pointerCount) {
+        int index = appendRecord(RECORD_MOTION);
+        mActions[index]       = (byte) action;
+        mPointerCounts[index] = (byte) Math.min(pointerCount, Byte.MAX_VALUE);
+    }
+
+    /**
+     * Add a sample of the primary pointer to the current motion record, oldest first
+     * @param timeMillis event time, uptime milliseconds
+     * @param x
+     * @param y
+     */
+    public void addSample(long timeMillis, float x, float y) {
+        if (mRecordCount == 0 || mTypes[mRecordCount - 1] != RECORD_MOTION) {
+            throw new IllegalStateException("No motion record to add samples to");
+        }
+        if (mSampleCount == mSampleTimes.length) {
+            int capacity = mSampleCount * 2;
+            mSampleTimes = Arrays.copyOf(mSampleTimes, capacity);
+            mSampleXs    = Arrays.copyOf(mSampleXs, capacity);
+            mSampleYs    = Arrays.copyOf(mSampleYs, capacity);
+        }
+        mSampleTimes[mSampleCount] = timeMillis;
+        mSampleXs[mSampleCount]    = x;
+        mSampleYs[mSampleCount]    = y;
+        mSampleCount++;
+        mSampleEnds[mRecordCount - 1] = mSampleCount;
+    }
+
+    /**
+     * @param frameTimeNanos vsync time of a display frame the view handled
+     */
+    public void addFrame(long frameTimeNanos) {
+        int index = appendRecord(RECORD_FRAME);
+        mFrameTimes[index] = frameTimeNanos;
+    }
+
+    /**
+     * @param x where the frame drag starts from, usually the down position
+     * @param y
+     */
+    public void addDragStart(float x, float y) {
+        int index = appendRecord(RECORD_DRAG_START);
+        mValueXs[index] = x;
+        mValueYs[index] = y;
+    }
+
+    /**
+     * @param velocityX pixels per second
+     * @param velocityY pixels per second
+     */
+    public void addFling(float velocityX, float velocityY) {
+        int index = appendRecord(RECORD_FLING);
+        mValueXs[index] = velocityX;
+        mValueYs[index] = velocityY;
+    }
+
+    private int appendRecord(int type) {
+        if (mRecordCount == mTypes.length) {
+            int capacity = mRecordCount * 2;
+            mTypes         = Arrays.copyOf(mTypes, capacity);
+            mActions       = Arrays.copyOf(mActions, capacity);
+            mPointerCounts = Arrays.copyOf(mPointerCounts, capacity);
+            mFrameTimes    = Arrays.copyOf(mFrameTimes, capacity);
+            mValueXs       = Arrays.copyOf(mValueXs, capacity);
+            mValueYs       = Arrays.copyOf(mValueYs, capacity);
+            mSampleEnds    = Arrays.copyOf(mSampleEnds, capacity);
+        }
+        int index = mRecordCount++;
+        mTypes[index]         = (byte) type;
+        mActions[index]       = 0;
+        mPointerCounts[index] = 0;
+        mFrameTimes[index]    = 0;
+        mValueXs[index]       = 0;
+        mValueYs[index]       = 0;
+        mSampleEnds[index]    = mSampleCount;
+        return index;
+    }
+
+    /**
+     * Drop all records and the start point
+     */
+    public void clear() {
+        mHasGeometry = false;
+        mSnapXs      = null;
+        mSnapYs      = null;
+        mRecordCount = 0;
+        mSampleCount = 0;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public int getType(int record) {
+        return mTypes[record];
+    }
+
+    public int getAction(int record) {
+        return mActions[record];
+    }
+
+    public int getPointerCount(int record) {
+        return mPointerCounts[record];
+    }
+
+    public long getFrameTimeNanos(int record) {
+        return mFrameTimes[record];
+    }
+
+    /**
+     * @return drag start x or fling velocity x
+     */
+    public float getValueX(int record) {
+        return mValueXs[record];
+    }
+
+    /**
+     * @return drag start y or fling velocity y
+     */
+    public float getValueY(int record) {
+        return mValueYs[record];
+    }
+
+    /**
+     * @return index of the first sample of a motion record
+     */
+    public int getSampleStart(int record) {
+        return record > 0 ? mSampleEnds[record - 1] : 0;
+    }
+
+    /**
+     * @return index after the last sample of a motion record, the last one is the event position
+     */
+    public int getSampleEnd(int record) {
+        return mSampleEnds[record];
+    }
+
+    public long getSampleTimeMillis(int sample) {
+        return mSampleTimes[sample];
+    }
+
+    public float getSampleX(int sample) {
+        return mSampleXs[sample];
+    }
+
+    public float getSampleY(int sample) {
+        return mSampleYs[sample];
+    }
+
+    /**
+     * Write the trace, the stream is flushed but not closed
+     * @param output
+     * @throws IOException
+     */
+    public void write(OutputStream output) throws IOException {
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(Magic);
+        data.writeShort(Version);
+        data.writeInt(mViewWidth);
+        data.writeInt(mViewHeight);
+        data.writeByte(mColumnCount);
+        data.writeByte(mRowCount);
+        data.writeByte(mGridStyle);
+        data.writeBoolean(mIsFullAreaTouchable);
+        for (int i = 0; i < GeometryFloatCount; i++) {
+            data.writeFloat(mGeometry[i]);
+        }
+        data.writeBoolean(mSnapXs != null);
+        if (mSnapXs != null) {
+            for (int i = 0; i < SnapFloatCount; i++) {
+                data.writeFloat(mSnap[i]);
+            }
+            writeFloats(data, mSnapXs);
+            writeFloats(data, mSnapYs);
+        }
+
+        data.writeInt(mRecordCount);
+        long lastFrameTime  = 0;
+        long lastSampleTime = 0;
+        int  lastX          = 0;
+        int  lastY          = 0;
+        for (int record = 0; record < mRecordCount; record++) {
+            int type = mTypes[record];
+            data.writeByte(type);
+            switch (type) {
+            case RECORD_MOTION:
+                int sampleStart = getSampleStart(record);
+                int sampleEnd   = getSampleEnd(record);
+                data.writeByte(mActions[record]);
+                data.writeByte(mPointerCounts[record]);
+                writeVarLong(data, sampleEnd - sampleStart);
+                for (int sample = sampleStart; sample < sampleEnd; sample++) {
+                    int x = Math.round(mSampleXs[sample] * SubPixels);
+                    int y = Math.round(mSampleYs[sample] * SubPixels);
+                    writeVarLong(data, zigzag(mSampleTimes[sample] - lastSampleTime));
+                    writeVarLong(data, zigzag(x - lastX));
+                    writeVarLong(data, zigzag(y - lastY));
+                    lastSampleTime = mSampleTimes[sample];
+                    lastX          = x;
+                    lastY          = y;
+                }
+                break;
+            case RECORD_FRAME:
+                writeVarLong(data, zigzag(mFrameTimes[record] - lastFrameTime));
+                lastFrameTime = mFrameTimes[record];
+                break;
+            default:
+                data.writeFloat(mValueXs[record]);
+                data.writeFloat(mValueYs[record]);
+                break;
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a trace written by {@link #write(OutputStream)}. Sample positions come back
+     * rounded to 1/16 pixel.
+     * @param input
+     * @return the trace
+     * @throws IOException if the data is not a supported trace
+     */
+    public static MotionTrace read(InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != Magic) {
+            throw new IOException("Not a motion trace");
+        }
+        int version = data.readShort();
+        if (version < 1 || version > Version) {
+            throw new IOException("Unsupported motion trace version " + version);
+        }
+        MotionTrace trace = new MotionTrace();
+        trace.mHasGeometry         = true;
+        trace.mViewWidth           = data.readInt();
+        trace.mViewHeight          = data.readInt();
+        trace.mColumnCount         = data.readUnsignedByte();
+        trace.mRowCount            = data.readUnsignedByte();
+        trace.mGridStyle           = data.readUnsignedByte();
+        trace.mIsFullAreaTouchable = data.readBoolean();
+        for (int i = 0; i < GeometryFloatCount; i++) {
+            trace.mGeometry[i] = data.readFloat();
+        }
+        if (version >= SnapStateVersion && data.readBoolean()) {
+            for (int i = 0; i < SnapFloatCount; i++) {
+                trace.mSnap[i] = data.readFloat();
+            }
+            trace.mSnapXs = readFloats(data);
+            trace.mSnapYs = readFloats(data);
+        }
+
+        int  recordCount    = data.readInt();
+        long lastFrameTime  = 0;
+        long lastSampleTime = 0;
+        long lastX          = 0;
+        long lastY          = 0;
+        for (int record = 0; record < recordCount; record++) {
+            int type = data.readUnsignedByte();
+            switch (type) {
+            case RECORD_MOTION:
+                trace.beginMotion(data.readByte(), data.readByte());
+                long sampleCount = readVarLong(data);
+                for (long sample = 0; sample < sampleCount; sample++) {
+                    lastSampleTime += unzigzag(readVarLong(data));
+                    lastX          += unzigzag(readVarLong(data));
+                    lastY          += unzigzag(readVarLong(data));
+                    trace.addSample(lastSampleTime, lastX / SubPixels, lastY / SubPixels);
+                }
+                break;
+            case RECORD_FRAME:
+                lastFrameTime += unzigzag(readVarLong(data));
+                trace.addFrame(lastFrameTime);
+                break;
+            case RECORD_DRAG_START:
+                trace.addDragStart(data.readFloat(), data.readFloat());
+                break;
+            case RECORD_FLING:
+                trace.addFling(data.readFloat(), data.readFloat());
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " at record " + record);
+            }
+        }
+        return trace;
+    }
+
+    private static void writeFloats(DataOutputStream data, float[] values) throws IOException {
+        writeVarLong(data, values.length);
+        for (float value : values) {
+            data.writeFloat(value);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream data) throws IOException {
+        long count = readVarLong(data);
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Malformed float count " + count);
+        }
+        float[] values = new float[(int) count];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.readFloat();
+        }
+        return values;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream data, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            data.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int part = data.readUnsignedByte();
+            value |= (long) (part & 0x7F) << shift;
+            if ((part & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
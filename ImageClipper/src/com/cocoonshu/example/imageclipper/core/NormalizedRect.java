@@ -0,0 +1,132 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Crop rectangle expressed in normalized [0, 1] coordinates of the
+ * clip limit area, independent of view size and source resolution.
+ * This class has no Android dependencies so the same model can be
+ * mapped onto source pixels on device and on a plain JVM.
+ */
+public class NormalizedRect {
+
+    public float left   = 0f;
+    public float top    = 0f;
+    public float right  = 1f;
+    public float bottom = 1f;
+
+    public NormalizedRect() {
+    }
+
+    public NormalizedRect(float left, float top, float right, float bottom) {
+        set(left, top, right, bottom);
+    }
+
+    public NormalizedRect(NormalizedRect src) {
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    public final void set(float left, float top, float right, float bottom) {
+        this.left   = left;
+        this.top    = top;
+        this.right  = right;
+        this.bottom = bottom;
+    }
+
+    public final void set(NormalizedRect src) {
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    /**
+     * Normalize a frame rectangle against its limit rectangle, clamping
+     * the result into [0, 1]
+     * @return this
+     */
+    public final NormalizedRect setFromFrame(float frameLeft, float frameTop, float frameRight, float frameBottom,
+                                             float limitLeft, float limitTop, float limitRight, float limitBottom) {
+        float limitWidth  = limitRight - limitLeft;
+        float limitHeight = limitBottom - limitTop;
+        if (limitWidth <= 0 || limitHeight <= 0) {
+            set(0f, 0f, 1f, 1f);
+            return this;
+        }
+        left   = MathUtils.clamp((frameLeft - limitLeft) / limitWidth, 0f, 1f);
+        top    = MathUtils.clamp((frameTop - limitTop) / limitHeight, 0f, 1f);
+        right  = MathUtils.clamp((frameRight - limitLeft) / limitWidth, left, 1f);
+        bottom = MathUtils.clamp((frameBottom - limitTop) / limitHeight, top, 1f);
+        return this;
+    }
+
+    public final float width() {
+        return right - left;
+    }
+
+    public final float height() {
+        return bottom - top;
+    }
+
+    public final boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    /**
+     * Map this rectangle onto a source image of <tt>sourceWidth</tt> x <tt>sourceHeight</tt>
+     * pixels. Edges are rounded outwards so the whole selected area is covered.
+     * @param out {left, top, right, bottom} in source pixels
+     * @return out
+     */
+    public final int[] mapToSource(int sourceWidth, int sourceHeight, int[] out) {
+        out[0] = (int) MathUtils.clamp((float) Math.floor(left * sourceWidth), 0, sourceWidth);
+        out[1] = (int) MathUtils.clamp((float) Math.floor(top * sourceHeight), 0, sourceHeight);
+        out[2] = (int) MathUtils.clamp((float) Math.ceil(right * sourceWidth), out[0], sourceWidth);
+        out[3] = (int) MathUtils.clamp((float) Math.ceil(bottom * sourceHeight), out[1], sourceHeight);
+        return out;
+    }
+
+    /**
+     * Parse a rectangle written as <tt>left,top,right,bottom</tt>
+     * @throws IllegalArgumentException if the text is not four comma separated floats
+     */
+    public static NormalizedRect parse(String text) {
+        String[] parts = text.trim().split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Expected left,top,right,bottom but was: " + text);
+        }
+        try {
+            return new NormalizedRect(
+                    Float.parseFloat(parts[0].trim()),
+                    Float.parseFloat(parts[1].trim()),
+                    Float.parseFloat(parts[2].trim()),
+                    Float.parseFloat(parts[3].trim()));
+        } catch (NumberFormatException exp) {
+            throw new IllegalArgumentException("Expected left,top,right,bottom but was: " + text, exp);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NormalizedRect)) {
+            return false;
+        }
+        NormalizedRect other = (NormalizedRect) obj;
+        return Float.floatToIntBits(left) == Float.floatToIntBits(other.left)
+                && Float.floatToIntBits(top) == Float.floatToIntBits(other.top)
+                && Float.floatToIntBits(right) == Float.floatToIntBits(other.right)
+                && Float.floatToIntBits(bottom) == Float.floatToIntBits(other.bottom);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Float.floatToIntBits(left);
+        hash = 31 * hash + Float.floatToIntBits(top);
+        hash = 31 * hash + Float.floatToIntBits(right);
+        hash = 31 * hash + Float.floatToIntBits(bottom);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return left + "," + top + "," + right + "," + bottom;
+    }
+}
@@ -0,0 +1,195 @@
+package com.cocoonshu.example.imageclipper.core;
+
+import java.util.Arrays;
+
+/**
+ * Sorted snap coordinates per axis, normalized to the image, so they stay
+ * valid across zoom and pan. Built once per image off the UI thread from
+ * the strong straight edges of a preview plus the grid lines laid over the
+ * whole image; looked up by binary search on every drag event, which costs
+ * a handful of comparisons and never allocates.
+ */
+public class SnapIndex {
+
+    public static final int      AXIS_X                = 0;
+    public static final int      AXIS_Y                = 1;
+
+    /** Edge candidates kept per axis */
+    public static final int      DefaultMaxEdges       = 16;
+
+    // A column or row must stand this many deviations above the mean to count as an edge
+    private static final float   EdgeDeviations        = 2f;
+    private static final int     SuppressionDivisor    = 64;
+
+    private final float[]        mXs;
+    private final float[]        mYs;
+
+    /**
+     * @param xs normalized x coordinates, in any order
+     * @param ys normalized y coordinates, in any order
+     */
+    public SnapIndex(float[] xs, float[] ys) {
+        mXs = sortUnique(xs);
+        mYs = sortUnique(ys);
+    }
+
+    private static float[] sortUnique(float[] values) {
+        float[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[i] != sorted[count - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    public int getCount(int axis) {
+        return axis == AXIS_X ? mXs.length : mYs.length;
+    }
+
+    public float getCoordinate(int axis, int index) {
+        return axis == AXIS_X ? mXs[index] : mYs[index];
+    }
+
+    /**
+     * Find the candidate nearest to <tt>value</tt>
+     * @param axis        {@link #AXIS_X} or {@link #AXIS_Y}
+     * @param value       normalized coordinate
+     * @param maxDistance normalized snap distance
+     * @return the nearest candidate within <tt>maxDistance</tt>, or {@link Float#NaN}
+     */
+    public float findNearest(int axis, float value, float maxDistance) {
+        float[] values = axis == AXIS_X ? mXs : mYs;
+        int     low    = 0;
+        int     high   = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        // values[low - 1] < value <= values[low]
+        float nearest  = Float.NaN;
+        float distance = maxDistance;
+        if (low < values.length && values[low] - value <= distance) {
+            nearest  = values[low];
+            distance = values[low] - value;
+        }
+        if (low > 0 && value - values[low - 1] < distance) {
+            nearest = values[low - 1];
+        }
+        return nearest;
+    }
+
+    /**
+     * Build the index from the strongest straight edges of an image and its grid lines
+     * @param pixels      ARGB pixels, row major
+     * @param width
+     * @param height
+     * @param columnCount grid columns laid over the whole image, as in the clip frame
+     * @param rowCount    grid rows laid over the whole image
+     * @param gridStyle   {@link ClipGeometry#GRID_STYLE_UNIFORM} or {@link ClipGeometry#GRID_STYLE_GOLDEN_RATIO}
+     * @param maxEdges    edge candidates kept per axis
+     */
+    public static SnapIndex build(int[] pixels, int width, int height,
+                                  int columnCount, int rowCount, int gridStyle, int maxEdges) {
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("Invalid image " + width + "x" + height);
+        }
+        int[] luminance = new int[width * height];
+        for (int i = 0; i < luminance.length; i++) {
+            int color = pixels[i];
+            luminance[i] = (((color >> 16) & 0xFF) * 77 + ((color >> 8) & 0xFF) * 150 + (color & 0xFF) * 29) >> 8;
+        }
+
+        // A vertical edge shows up as a column whose horizontal gradients add up, and vice versa
+        float[] columnEnergy = new float[width];
+        float[] rowEnergy    = new float[height];
+        for (int y = 0; y < height; y++) {
+            int row  = y * width;
+            int up   = (y > 0 ? y - 1 : y) * width;
+            int down = (y < height - 1 ? y + 1 : y) * width;
+            for (int x = 0; x < width; x++) {
+                int left  = x > 0 ? x - 1 : x;
+                int right = x < width - 1 ? x + 1 : x;
+                columnEnergy[x] += Math.abs(luminance[row + right] - luminance[row + left]);
+                rowEnergy[y]    += Math.abs(luminance[down + x] - luminance[up + x]);
+            }
+        }
+
+        float[] edgeXs = findPeaks(columnEnergy, maxEdges);
+        float[] edgeYs = findPeaks(rowEnergy, maxEdges);
+        return new SnapIndex(
+                concatInner(edgeXs, ClipGeometry.computeGridStops(Math.max(1, columnCount), gridStyle)),
+                concatInner(edgeYs, ClipGeometry.computeGridStops(Math.max(1, rowCount), gridStyle)));
+    }
+
+    /**
+     * Normalized positions of the strongest local maxima of a profile
+     */
+    static float[] findPeaks(float[] profile, int maxPeaks) {
+        int    length = profile.length;
+        double sum    = 0;
+        double sumSq  = 0;
+        for (float value : profile) {
+            sum   += value;
+            sumSq += value * value;
+        }
+        double mean      = sum / length;
+        double deviation = Math.sqrt(Math.max(0, sumSq / length - mean * mean));
+        double threshold = mean + EdgeDeviations * deviation;
+        int    radius    = Math.max(2, length / SuppressionDivisor);
+
+        // Non maximum suppression, ties go to the first position
+        int[] peaks     = new int[length];
+        int   peakCount = 0;
+        for (int i = 0; i < length; i++) {
+            float value = profile[i];
+            if (value <= threshold || deviation == 0) {
+                continue;
+            }
+            boolean isMaximum = true;
+            for (int j = Math.max(0, i - radius); j <= Math.min(length - 1, i + radius) && isMaximum; j++) {
+                isMaximum = j == i || (j < i ? profile[j] < value : profile[j] <= value);
+            }
+            if (isMaximum) {
+                peaks[peakCount++] = i;
+            }
+        }
+
+        // Keep the strongest ones by partial selection sort, maxPeaks is small
+        int     keptCount = Math.min(peakCount, maxPeaks);
+        float[] result    = new float[keptCount];
+        for (int k = 0; k < keptCount; k++) {
+            int strongest = k;
+            for (int i = k + 1; i < peakCount; i++) {
+                if (profile[peaks[i]] > profile[peaks[strongest]]) {
+                    strongest = i;
+                }
+            }
+            int swap = peaks[k];
+            peaks[k]         = peaks[strongest];
+            peaks[strongest] = swap;
+            result[k] = (peaks[k] + 0.5f) / length;
+        }
+        return result;
+    }
+
+    /**
+     * Append the inner stops, the outer ones are the image border which the limit snapping covers
+     */
+    private static float[] concatInner(float[] values, float[] stops) {
+        int     innerCount = Math.max(0, stops.length - 2);
+        float[] result     = Arrays.copyOf(values, values.length + innerCount);
+        for (int i = 0; i < innerCount; i++) {
+            result[values.length + i] = stops[i + 1];
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.cocoonshu.example.imageclipper.core;
+
+/**
+ * Fixed size history of single pointer touch samples, resampled to a
+ * display frame timestamp. Between two samples the position is linearly
+ * interpolated; past the newest sample it is extrapolated from the last
+ * two, at most half their interval and never more than 8ms, the same
+ * bounds the platform input resampler uses. Samples older than the one
+ * preceding the last resample time are dropped, so the buffer only holds
+ * the input of about one frame.
+ */
+public class TouchResampler {
+
+    private static final int     Capacity               = 64;
+    private static final long    MinExtrapolationNanos  = 2000000L;
+    private static final long    MaxExtrapolationNanos  = 20000000L;
+    private static final long    MaxPredictionNanos     = 8000000L;
+
+    private final long[]         mTimes                 = new long[Capacity];
+    private final float[]        mXs                    = new float[Capacity];
+    private final float[]        mYs                    = new float[Capacity];
+    private int                  mHead                  = 0;
+    private int                  mSize                  = 0;
+
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Append a sample, the oldest one is dropped when the buffer is full
+     * @param timeNanos sample time, samples must arrive in time order
+     */
+    public void addSample(long timeNanos, float x, float y) {
+        if (mSize > 0 && timeNanos <= mTimes[index(mSize - 1)]) {
+            // Same timestamp, or out of order: the newer report wins
+            int last = index(mSize - 1);
+            mXs[last] = x;
+            mYs[last] = y;
+            return;
+        }
+        if (mSize == Capacity) {
+            mHead = (mHead + 1) % Capacity;
+            mSize--;
+        }
+        int slot = index(mSize);
+        mTimes[slot] = timeNanos;
+        mXs[slot]    = x;
+        mYs[slot]    = y;
+        mSize++;
+    }
+
+    /**
+     * Estimate the pointer position at <tt>timeNanos</tt>
+     * @param timeNanos
+     * @param outXY receives x and y
+     * @return false if there is no sample
+     */
+    public boolean resample(long timeNanos, float[] outXY) {
+        if (mSize == 0) {
+            return false;
+        }
+
+        // Newest sample not after the target time
+        int older = -1;
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mTimes[index(i)] <= timeNanos) {
+                older = i;
+                break;
+            }
+        }
+
+        if (older < 0) {
+            // Target precedes every sample
+            int first = index(0);
+            outXY[0] = mXs[first];
+            outXY[1] = mYs[first];
+            return true;
+        }
+
+        if (older < mSize - 1) {
+            interpolate(index(older), index(older + 1), timeNanos, outXY);
+        } else if (mSize >= 2) {
+            int  previous = index(mSize - 2);
+            int  last     = index(mSize - 1);
+            long interval = mTimes[last] - mTimes[previous];
+            if (interval < MinExtrapolationNanos || interval > MaxExtrapolationNanos) {
+                outXY[0] = mXs[last];
+                outXY[1] = mYs[last];
+            } else {
+                long maxTime = mTimes[last] + Math.min(interval / 2, MaxPredictionNanos);
+                interpolate(previous, last, Math.min(timeNanos, maxTime), outXY);
+            }
+        } else {
+            int last = index(mSize - 1);
+            outXY[0] = mXs[last];
+            outXY[1] = mYs[last];
+        }
+
+        // Everything before the bracketing pair is no longer needed
+        int dropCount = Math.max(0, older - 1);
+        mHead = (mHead + dropCount) % Capacity;
+        mSize -= dropCount;
+        return true;
+    }
+
+    private void interpolate(int from, int to, long timeNanos, float[] outXY) {
+        float alpha = (float) (timeNanos - mTimes[from]) / (mTimes[to] - mTimes[from]);
+        outXY[0] = mXs[from] + (mXs[to] - mXs[from]) * alpha;
+        outXY[1] = mYs[from] + (mYs[to] - mYs[from]) * alpha;
+    }
+
+    private int index(int offset) {
+        return (mHead + offset) % Capacity;
+    }
+
+}
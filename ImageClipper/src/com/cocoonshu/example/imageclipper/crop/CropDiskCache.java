@@ -0,0 +1,798 @@
+package com.cocoonshu.example.imageclipper.crop;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+import com.cocoonshu.example.imageclipper.crop.CropExporter.ExportOptions;
+
+import android.util.Log;
+
+/**
+ * Byte bounded, least recently used disk cache of encoded crops, so that
+ * exporting the same crop of the same image again is a file copy instead
+ * of a decode and an encode. Entries are keyed by {@link #createKey}, a
+ * digest of the source content hash, the normalized crop rect and the
+ * output options.
+ * <p>
+ * Every change is appended to a journal before it takes effect. On open
+ * the journal is replayed, and entries which were still being written
+ * when the process died are deleted, so a crash never leaves a truncated
+ * crop behind. Hits go from the cache file to the output through
+ * {@link FileChannel#transferTo} or a memory map, not through a heap
+ * buffer. The directory is opened lazily on first use, so the cache may
+ * be created on the main thread. All methods are thread safe.
+ */
+public class CropDiskCache {
+
+    private static final String TAG = "CropDiskCache";
+
+    private static final String JournalFileName      = "journal";
+    private static final String JournalTempFileName  = "journal.tmp";
+    private static final String JournalMagic         = "com.cocoonshu.example.imageclipper.crop.CropDiskCache";
+    private static final String JournalVersion       = "1";
+    private static final String EntrySuffix          = ".crop";
+    private static final String DirtySuffix          = ".crop.tmp";
+    private static final String OpDirty              = "DIRTY";
+    private static final String OpClean              = "CLEAN";
+    private static final String OpRemove             = "REMOVE";
+    private static final String OpRead               = "READ";
+    // The journal is rebuilt once it holds this many lines which no longer matter
+    private static final int    CompactOpCount       = 2000;
+    private static final int    MaxKeyLength         = 64;
+    private static final int    OutputBufferSize     = 64 * 1024;
+    private static final int    HashBufferSize       = 64 * 1024;
+    private static final char[] HexDigits            = "0123456789abcdef".toCharArray();
+
+    private final File                         mDirectory;
+    private final long                         mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries          = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private Writer                             mJournalWriter    = null;
+    private long                               mBytes            = 0;
+    private int                                mRedundantOpCount = 0;
+    private boolean                            mIsOpened         = false;
+    private boolean                            mIsClosed         = false;
+    private int                                mHitCount         = 0;
+    private int                                mMissCount        = 0;
+    private int                                mEvictionCount    = 0;
+
+    private static final class Entry {
+        private final String mKey;
+        private long         mLength        = 0;
+        private boolean      mIsReadable    = false;
+        private Editor       mCurrentEditor = null;
+
+        Entry(String key) {
+            mKey = key;
+        }
+    }
+
+    /**
+     * Pending write of one entry. The entry becomes visible on {@link #commit()},
+     * a failed or cancelled export calls {@link #abort()} instead.
+     */
+    public final class Editor {
+
+        private final Entry  mEntry;
+        private OutputStream mCacheOutput;
+        private boolean      mHasErrors = false;
+        private boolean      mIsDone    = false;
+
+        private Editor(Entry entry, OutputStream cacheOutput) {
+            mEntry       = entry;
+            mCacheOutput = cacheOutput;
+        }
+
+        /**
+         * Wrap <tt>output</tt> so everything written to it is also written into
+         * the entry. Errors on the cache side only abort the entry, they never
+         * reach the writer. Closing the returned stream closes <tt>output</tt>.
+         */
+        public OutputStream tee(OutputStream output) {
+            return new FilterOutputStream(output) {
+                @Override
+                public void write(int data) throws IOException {
+                    out.write(data);
+                    if (mCacheOutput != null) {
+                        try {
+                            mCacheOutput.write(data);
+                        } catch (IOException exp) {
+                            onCacheWriteFailed(exp);
+                        }
+                    }
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    out.write(data, offset, length);
+                    if (mCacheOutput != null) {
+                        try {
+                            mCacheOutput.write(data, offset, length);
+                        } catch (IOException exp) {
+                            onCacheWriteFailed(exp);
+                        }
+                    }
+                }
+            };
+        }
+
+        private void onCacheWriteFailed(IOException exp) {
+            Log.w(TAG, "[onCacheWriteFailed] Failed to write " + mEntry.mKey, exp);
+            mHasErrors = true;
+            closeCacheOutput();
+        }
+
+        private void closeCacheOutput() {
+            if (mCacheOutput != null) {
+                try {
+                    mCacheOutput.close();
+                } catch (IOException exp) {
+                    mHasErrors = true;
+                }
+                mCacheOutput = null;
+            }
+        }
+
+        /**
+         * Publish what has been written
+         * @return false if the entry could not be stored
+         */
+        public boolean commit() {
+            synchronized (CropDiskCache.this) {
+                if (mIsDone) {
+                    return false;
+                }
+                mIsDone = true;
+                closeCacheOutput();
+                return completeEdit(this, !mHasErrors);
+            }
+        }
+
+        /**
+         * Drop what has been written, the previous value of the entry stays
+         */
+        public void abort() {
+            synchronized (CropDiskCache.this) {
+                if (mIsDone) {
+                    return;
+                }
+                mIsDone = true;
+                closeCacheOutput();
+                completeEdit(this, false);
+            }
+        }
+    }
+
+    /**
+     * @param directory directory owned by this cache, created on first use
+     * @param maxBytes  byte budget of the cached files
+     */
+    public CropDiskCache(File directory, long maxBytes) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory is null");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mDirectory = directory;
+        mMaxBytes  = maxBytes;
+    }
+
+    /**
+     * Cache key of a crop, or null if the source has no content key
+     * @param sourceKey content hash of the source, see {@link #hashContent(InputStream)}
+     * @param region    normalized crop rect
+     * @param options   output options, only those which change the output bytes are keyed
+     */
+    public static String createKey(String sourceKey, NormalizedRect region, ExportOptions options) {
+        if (sourceKey == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(sourceKey.length() + 96);
+        builder.append(sourceKey)
+               .append('|').append(Float.floatToIntBits(region.left))
+               .append(',').append(Float.floatToIntBits(region.top))
+               .append(',').append(Float.floatToIntBits(region.right))
+               .append(',').append(Float.floatToIntBits(region.bottom))
+               .append('|').append(Math.max(0, options.maxWidth))
+               .append('x').append(Math.max(0, options.maxHeight))
+               .append('|').append(options.format.name());
+        if (options.format == CropExporter.Format.JPEG) {
+            builder.append(',').append(options.quality);
+        }
+        float rotation = options.rotation % 360;
+        if (rotation != 0) {
+            builder.append('|').append(Float.floatToIntBits(rotation < 0 ? rotation + 360 : rotation));
+        }
+        MessageDigest digest = createDigest();
+        try {
+            return toHex(digest.digest(builder.toString().getBytes("UTF-8")));
+        } catch (IOException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    /**
+     * Hash the content of an image, to key its crops by. Reads <tt>input</tt>
+     * to the end and leaves it open; call off the main thread.
+     */
+    public static String hashContent(InputStream input) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[]        buffer = new byte[HashBufferSize];
+        int           length;
+        while ((length = input.read(buffer)) != -1) {
+            digest.update(buffer, 0, length);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2]     = HexDigits[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HexDigits[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Copy the entry into <tt>file</tt>, replacing it
+     * @return false on a miss, <tt>file</tt> is then untouched
+     */
+    public boolean readTo(String key, File file) throws IOException {
+        FileInputStream input = openEntry(key);
+        if (input == null) {
+            return false;
+        }
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(file);
+            transfer(input.getChannel(), output.getChannel());
+            output.close();
+            output = null;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException exp) {
+                    // Ignore
+                }
+            }
+            input.close();
+        }
+        return true;
+    }
+
+    /**
+     * Write the entry into <tt>output</tt>, which is flushed but not closed
+     * @return false on a miss, nothing is then written
+     */
+    public boolean readTo(String key, OutputStream output) throws IOException {
+        FileInputStream input = openEntry(key);
+        if (input == null) {
+            return false;
+        }
+        try {
+            FileChannel channel = input.getChannel();
+            if (output instanceof FileOutputStream) {
+                transfer(channel, ((FileOutputStream) output).getChannel());
+            } else {
+                MappedByteBuffer    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                WritableByteChannel target = Channels.newChannel(output);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            output.flush();
+        } finally {
+            input.close();
+        }
+        return true;
+    }
+
+    private static void transfer(FileChannel source, FileChannel target) throws IOException {
+        long size     = source.size();
+        long position = 0;
+        while (position < size) {
+            long count = source.transferTo(position, size - position, target);
+            if (count <= 0) {
+                throw new IOException("Transfer stalled at " + position + " of " + size);
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Open the file of a readable entry. The open file stays valid if the
+     * entry is replaced or evicted meanwhile.
+     * @return the file, or null on a miss
+     */
+    private synchronized FileInputStream openEntry(String key) {
+        if (!ensureOpened() || !isValidKey(key)) {
+            mMissCount++;
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.mIsReadable) {
+            mMissCount++;
+            return null;
+        }
+        FileInputStream input;
+        try {
+            input = new FileInputStream(getCleanFile(key));
+        } catch (FileNotFoundException exp) {
+            // Deleted behind our back
+            mMissCount++;
+            removeEntry(entry);
+            return null;
+        }
+        mHitCount++;
+        mRedundantOpCount++;
+        try {
+            writeJournal(OpRead + ' ' + key, false);
+            compactIfNeeded();
+        } catch (IOException exp) {
+            Log.w(TAG, "[openEntry] Failed to write the journal", exp);
+        }
+        return input;
+    }
+
+    /**
+     * Start writing an entry
+     * @return the editor, or null if the entry is already being written or the cache is unusable
+     */
+    public synchronized Editor edit(String key) {
+        if (!ensureOpened() || !isValidKey(key)) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mCurrentEditor != null) {
+            return null;
+        }
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        }
+
+        File dirtyFile = getDirtyFile(key);
+        try {
+            // Journaled first, so the file is found and deleted if the process dies while writing it
+            writeJournal(OpDirty + ' ' + key, true);
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(dirtyFile), OutputBufferSize);
+            entry.mCurrentEditor = new Editor(entry, output);
+            return entry.mCurrentEditor;
+        } catch (IOException exp) {
+            Log.w(TAG, "[edit] Failed to start " + key, exp);
+            dirtyFile.delete();
+            if (!entry.mIsReadable) {
+                mEntries.remove(key);
+            }
+            return null;
+        }
+    }
+
+    private boolean completeEdit(Editor editor, boolean isSucceeded) {
+        Entry entry     = editor.mEntry;
+        File  dirtyFile = getDirtyFile(entry.mKey);
+        entry.mCurrentEditor = null;
+        if (mIsClosed) {
+            dirtyFile.delete();
+            return false;
+        }
+
+        boolean isCommitted = isSucceeded && dirtyFile.renameTo(getCleanFile(entry.mKey));
+        try {
+            mRedundantOpCount++;
+            if (isCommitted) {
+                long length = getCleanFile(entry.mKey).length();
+                mBytes += length - entry.mLength;
+                entry.mLength     = length;
+                entry.mIsReadable = true;
+                writeJournal(OpClean + ' ' + entry.mKey + ' ' + length, true);
+            } else {
+                dirtyFile.delete();
+                if (entry.mIsReadable) {
+                    writeJournal(OpClean + ' ' + entry.mKey + ' ' + entry.mLength, true);
+                } else {
+                    mEntries.remove(entry.mKey);
+                    writeJournal(OpRemove + ' ' + entry.mKey, true);
+                }
+            }
+            trimToSize();
+            compactIfNeeded();
+        } catch (IOException exp) {
+            Log.w(TAG, "[completeEdit] Failed to write the journal", exp);
+        }
+        return isCommitted;
+    }
+
+    /**
+     * @return false if there is no such entry, or it is being written
+     */
+    public synchronized boolean remove(String key) {
+        if (!ensureOpened() || !isValidKey(key)) {
+            return false;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mCurrentEditor != null) {
+            return false;
+        }
+        removeEntry(entry);
+        return true;
+    }
+
+    private void removeEntry(Entry entry) {
+        getCleanFile(entry.mKey).delete();
+        mBytes -= entry.mLength;
+        mEntries.remove(entry.mKey);
+        mRedundantOpCount++;
+        try {
+            writeJournal(OpRemove + ' ' + entry.mKey, true);
+            compactIfNeeded();
+        } catch (IOException exp) {
+            Log.w(TAG, "[removeEntry] Failed to write the journal", exp);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits its budget.
+     * Entries being written are skipped.
+     */
+    private void trimToSize() {
+        while (mBytes > mMaxBytes) {
+            Entry eldest = null;
+            for (Entry entry : mEntries.values()) {
+                if (entry.mIsReadable && entry.mCurrentEditor == null) {
+                    eldest = entry;
+                    break;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            removeEntry(eldest);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Open the cache directory and replay the journal, once
+     * @return false if the cache is closed or could not be opened
+     */
+    private boolean ensureOpened() {
+        if (mIsClosed) {
+            return false;
+        }
+        if (mIsOpened) {
+            return mJournalWriter != null;
+        }
+        mIsOpened = true;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Failed to create " + mDirectory);
+            }
+            File journalFile = new File(mDirectory, JournalFileName);
+            if (journalFile.exists() && readJournal(journalFile)) {
+                mJournalWriter = openJournalWriter(journalFile);
+            } else {
+                rebuildJournal();
+            }
+            deleteStrayFiles();
+            trimToSize();
+            return true;
+        } catch (IOException exp) {
+            Log.w(TAG, "[ensureOpened] Failed to open " + mDirectory + ", starting over", exp);
+        }
+
+        // A broken journal can not tell which files are complete, so nothing is kept
+        mEntries.clear();
+        mBytes = 0;
+        deleteContents();
+        try {
+            rebuildJournal();
+            return true;
+        } catch (IOException exp) {
+            Log.w(TAG, "[ensureOpened] Disk cache disabled", exp);
+            return false;
+        }
+    }
+
+    /**
+     * Replay the journal into the entries
+     * @return true if the journal can be appended to, false if it must be rebuilt
+     */
+    private boolean readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+        Set<String> dirtyKeys   = new HashSet<String>();
+        boolean     isTruncated = false;
+        int         lineCount   = 0;
+        try {
+            if (!JournalMagic.equals(reader.readLine()) || !JournalVersion.equals(reader.readLine())
+                    || !"".equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readJournalLine(line, dirtyKeys)) {
+                    // Only the last line may be cut short, by a crash while it was written
+                    if (reader.readLine() != null) {
+                        throw new IOException("Corrupt journal line: " + line);
+                    }
+                    isTruncated = true;
+                    break;
+                }
+                lineCount++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Entries which were never committed, or whose files are gone, are dropped
+        for (String key : dirtyKeys) {
+            getDirtyFile(key).delete();
+            Entry entry = mEntries.get(key);
+            if (entry != null && !entry.mIsReadable) {
+                mEntries.remove(key);
+            }
+        }
+        mBytes = 0;
+        for (Iterator<Entry> iterator = mEntries.values().iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (getCleanFile(entry.mKey).length() != entry.mLength) {
+                getCleanFile(entry.mKey).delete();
+                iterator.remove();
+            } else {
+                mBytes += entry.mLength;
+            }
+        }
+        mRedundantOpCount = Math.max(0, lineCount - mEntries.size());
+        return !isTruncated && dirtyKeys.isEmpty();
+    }
+
+    private boolean readJournalLine(String line, Set<String> dirtyKeys) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2 || !isValidKey(parts[1])) {
+            return false;
+        }
+        String key = parts[1];
+        if (OpDirty.equals(parts[0]) && parts.length == 2) {
+            dirtyKeys.add(key);
+            if (!mEntries.containsKey(key)) {
+                mEntries.put(key, new Entry(key));
+            }
+        } else if (OpClean.equals(parts[0]) && parts.length == 3) {
+            long length;
+            try {
+                length = Long.parseLong(parts[2]);
+            } catch (NumberFormatException exp) {
+                return false;
+            }
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                mEntries.put(key, entry);
+            }
+            entry.mLength     = length;
+            entry.mIsReadable = true;
+            dirtyKeys.remove(key);
+        } else if (OpRemove.equals(parts[0]) && parts.length == 2) {
+            mEntries.remove(key);
+            dirtyKeys.remove(key);
+        } else if (OpRead.equals(parts[0]) && parts.length == 2) {
+            // Access order only
+            mEntries.get(key);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write a journal holding only the current entries, then swap it in
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+        File   tempFile = new File(mDirectory, JournalTempFileName);
+        Writer writer   = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "US-ASCII"));
+        try {
+            writer.write(JournalMagic + '\n' + JournalVersion + "\n\n");
+            for (Entry entry : mEntries.values()) {
+                if (entry.mCurrentEditor != null) {
+                    writer.write(OpDirty + ' ' + entry.mKey + '\n');
+                } else {
+                    writer.write(OpClean + ' ' + entry.mKey + ' ' + entry.mLength + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        File journalFile = new File(mDirectory, JournalFileName);
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Failed to rename " + tempFile + " to " + journalFile);
+        }
+        mJournalWriter    = openJournalWriter(journalFile);
+        mRedundantOpCount = 0;
+    }
+
+    private static Writer openJournalWriter(File journalFile) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "US-ASCII"));
+    }
+
+    private void writeJournal(String line, boolean isFlushed) throws IOException {
+        if (mJournalWriter == null) {
+            throw new IOException("Journal is closed");
+        }
+        mJournalWriter.write(line);
+        mJournalWriter.write('\n');
+        if (isFlushed) {
+            mJournalWriter.flush();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (mRedundantOpCount >= CompactOpCount && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Delete cache files the journal does not know about
+     */
+    private void deleteStrayFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(DirtySuffix)) {
+                Entry entry = mEntries.get(name.substring(0, name.length() - DirtySuffix.length()));
+                if (entry == null || entry.mCurrentEditor == null) {
+                    file.delete();
+                }
+            } else if (name.endsWith(EntrySuffix)) {
+                if (!mEntries.containsKey(name.substring(0, name.length() - EntrySuffix.length()))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void deleteContents() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                file.delete();
+            }
+        }
+    }
+
+    private static boolean isValidKey(String key) {
+        if (key == null || key.length() == 0 || key.length() > MaxKeyLength) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File getCleanFile(String key) {
+        return new File(mDirectory, key + EntrySuffix);
+    }
+
+    private File getDirtyFile(String key) {
+        return new File(mDirectory, key + DirtySuffix);
+    }
+
+    /**
+     * Write out the pending journal lines
+     */
+    public synchronized void flush() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.flush();
+            } catch (IOException exp) {
+                Log.w(TAG, "[flush] Failed to write the journal", exp);
+            }
+        }
+    }
+
+    /**
+     * Close the journal. Entries still being written are discarded when
+     * their editor completes; the cache is unusable afterwards.
+     */
+    public synchronized void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException exp) {
+                Log.w(TAG, "[close] Failed to write the journal", exp);
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("CropDiskCache[").append(mBytes).append('/').append(mMaxBytes).append(" bytes in ")
+               .append(mEntries.size()).append(" entries, ")
+               .append(mHitCount).append(" hits, ").append(mMissCount).append(" misses, ")
+               .append(mEvictionCount).append(" evictions]");
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,1036 @@
+package com.cocoonshu.example.imageclipper.crop;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cocoonshu.example.imageclipper.core.DecodeBandPlanner;
+import com.cocoonshu.example.imageclipper.core.DecodeBandPlanner.Band;
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+import com.cocoonshu.example.imageclipper.crop.CropDiskCache.Editor;
+import com.cocoonshu.example.imageclipper.view.BitmapPool;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Asynchronous crop export pipeline. Each export runs on a bounded
+ * background executor, decodes the crop region strip by strip and streams
+ * every strip into a {@link StripEncoder}. Exports can be cancelled at any
+ * strip boundary; progress and results are delivered on the main thread.
+ * Batches of crops from one source share a single decode pass, see
+ * {@link BatchExportTask}. Strip bitmaps come from a shared {@link BitmapPool}
+ * when one is set. Rotated crops are rendered tile by tile from small
+ * region decodes, so memory stays bounded by the tile and strip sizes
+ * whatever the size of the crop. With a {@link CropDiskCache} set, crops
+ * of sources with a content key are served from the cache when they have
+ * been exported before, and stored into it as they are encoded.
+ */
+public class CropExporter {
+
+    private static final String TAG = "CropExporter";
+
+    private static final int    DefaultThreadCount  = 2;
+    private static final int    DefaultQueueSize    = 8;
+    private static final int    DefaultStripHeight  = 64;
+    private static final int    DefaultTileSize     = 256;
+    private static final int    MinTileSize         = 16;
+    // Source pixels decoded around each rotated tile, so filtering has neighbours at the seams
+    private static final int    TileDecodeMargin    = 2;
+    private static final int    DefaultQuality      = 90;
+    private static final int    OutputBufferSize    = 64 * 1024;
+    private static final String PartialFileSuffix   = ".part";
+    // About 4MB of ARGB_8888 per decoded band
+    private static final int    MaxBandPixels       = 1024 * 1024;
+    // How long shutdown() lets running exports finish before the disk cache is closed under them
+    private static final long   ShutdownWaitMillis  = 10 * 1000;
+
+    public enum Format {
+        JPEG("jpg"),
+        PNG("png");
+
+        private final String mExtension;
+
+        private Format(String extension) {
+            mExtension = extension;
+        }
+
+        public String getExtension() {
+            return mExtension;
+        }
+    }
+
+    /**
+     * Export parameters, in the spirit of {@link BitmapFactory.Options}
+     */
+    public static class ExportOptions {
+        /** Output width bound, <= 0 means the source resolution */
+        public int    maxWidth    = 0;
+        /** Output height bound, <= 0 means the source resolution */
+        public int    maxHeight   = 0;
+        public Format format      = Format.JPEG;
+        /** JPEG quality, 0 - 100 */
+        public int    quality     = DefaultQuality;
+        /** Output rows decoded and encoded per step */
+        public int    stripHeight = DefaultStripHeight;
+        /**
+         * Image rotation in degrees, clockwise, as in {@link com.cocoonshu.example.imageclipper.view.ImageTransform}.
+         * The region is then normalized against the bounding box of the rotated image.
+         */
+        public float  rotation    = 0;
+        /** Edge of the output tiles a rotated export is rendered in */
+        public int    tileSize    = DefaultTileSize;
+    }
+
+    public interface ExportCallback {
+        void onExportProgress(ExportTask task, float progress);
+        void onExportCompleted(ExportTask task);
+        void onExportFailed(ExportTask task, Exception exception);
+        void onExportCancelled(ExportTask task);
+    }
+
+    public interface BatchExportCallback {
+        void onBatchExportProgress(BatchExportTask task, float progress);
+        void onBatchExportCompleted(BatchExportTask task);
+        void onBatchExportFailed(BatchExportTask task, Exception exception);
+        void onBatchExportCancelled(BatchExportTask task);
+    }
+
+    /**
+     * Handle of a submitted export
+     */
+    public final class ExportTask implements Runnable {
+
+        private final ImageRegionCropper mCropper;
+        private final NormalizedRect     mRegion;
+        private final ExportOptions      mOptions;
+        private final File               mOutputFile;
+        private final OutputStream       mOutputStream;
+        private final ExportCallback     mCallback;
+        private volatile boolean         mIsCancelled = false;
+        private volatile boolean         mIsDone      = false;
+
+        private ExportTask(ImageRegionCropper cropper, NormalizedRect region, ExportOptions options,
+                           File outputFile, OutputStream outputStream, ExportCallback callback) {
+            mCropper      = cropper;
+            mRegion       = new NormalizedRect(region);
+            mOptions      = options != null ? options : new ExportOptions();
+            mOutputFile   = outputFile;
+            mOutputStream = outputStream;
+            mCallback     = callback;
+        }
+
+        /**
+         * Request cancellation. The export stops at the next strip boundary
+         * and {@link ExportCallback#onExportCancelled(ExportTask)} is called.
+         */
+        public void cancel() {
+            mIsCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        public boolean isDone() {
+            return mIsDone;
+        }
+
+        public NormalizedRect getRegion() {
+            return mRegion;
+        }
+
+        /**
+         * @return output file, or null if exporting into a stream
+         */
+        public File getOutputFile() {
+            return mOutputFile;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mOutputFile != null) {
+                    exportToFile();
+                } else {
+                    exportToStream(mOutputStream);
+                }
+                if (mIsCancelled) {
+                    dispatchCancelled(this);
+                } else {
+                    dispatchCompleted(this);
+                }
+            } catch (Exception exp) {
+                Log.w(TAG, "[run] Export failed", exp);
+                dispatchFailed(this, exp);
+            }
+        }
+
+        private void exportToFile() throws IOException {
+            File          partialFile = new File(mOutputFile.getPath() + PartialFileSuffix);
+            CropDiskCache cache       = mDiskCache;
+            String        cacheKey    = createCacheKey(cache, mCropper, mRegion, mOptions);
+            OutputStream  output      = null;
+            boolean       isSucceeded = false;
+            try {
+                if (cacheKey == null || !cache.readTo(cacheKey, partialFile)) {
+                    output = new BufferedOutputStream(new FileOutputStream(partialFile), OutputBufferSize);
+                    encodeToStream(output, cache, cacheKey);
+                    output.close();
+                    output = null;
+                }
+                isSucceeded = !mIsCancelled && partialFile.renameTo(mOutputFile);
+                if (!isSucceeded && !mIsCancelled) {
+                    throw new IOException("Failed to rename " + partialFile + " to " + mOutputFile);
+                }
+            } finally {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException exp) {
+                        // Ignore
+                    }
+                }
+                if (!isSucceeded) {
+                    partialFile.delete();
+                }
+            }
+        }
+
+        private void exportToStream(OutputStream output) throws IOException {
+            CropDiskCache cache    = mDiskCache;
+            String        cacheKey = createCacheKey(cache, mCropper, mRegion, mOptions);
+            if (cacheKey == null || !cache.readTo(cacheKey, output)) {
+                encodeToStream(output, cache, cacheKey);
+            }
+        }
+
+        /**
+         * Encode the crop into <tt>output</tt>, and into the cache entry of <tt>cacheKey</tt> if there is one
+         */
+        private void encodeToStream(OutputStream output, CropDiskCache cache, String cacheKey) throws IOException {
+            Editor editor = cacheKey != null ? cache.edit(cacheKey) : null;
+            if (editor == null) {
+                encodeToStream(output);
+                return;
+            }
+            boolean isSucceeded = false;
+            try {
+                encodeToStream(editor.tee(output));
+                isSucceeded = !mIsCancelled;
+            } finally {
+                if (isSucceeded) {
+                    editor.commit();
+                } else {
+                    editor.abort();
+                }
+            }
+        }
+
+        private void encodeToStream(OutputStream output) throws IOException {
+            BitmapRegionDecoder decoder = mCropper.getDecoder();
+            if (decoder == null) {
+                throw new IllegalStateException("Cropper is released");
+            }
+            if (mOptions.rotation % 360 != 0) {
+                exportRotatedToStream(decoder, output);
+                return;
+            }
+            Rect region = mCropper.mapToSource(mRegion, new Rect());
+            if (region.isEmpty()) {
+                throw new IllegalArgumentException("Empty crop region: " + mRegion);
+            }
+
+            int   regionWidth  = region.width();
+            int   regionHeight = region.height();
+            float scale        = 1f;
+            if (mOptions.maxWidth > 0) {
+                scale = Math.min(scale, (float) mOptions.maxWidth / regionWidth);
+            }
+            if (mOptions.maxHeight > 0) {
+                scale = Math.min(scale, (float) mOptions.maxHeight / regionHeight);
+            }
+            int outputWidth  = Math.max(1, Math.round(regionWidth * scale));
+            int outputHeight = Math.max(1, Math.round(regionHeight * scale));
+            int stripHeight  = Math.max(1, Math.min(mOptions.stripHeight, outputHeight));
+
+            BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+            decodeOptions.inSampleSize = MathUtils.computeSampleSize(
+                    regionWidth, regionHeight, outputWidth, outputHeight);
+
+            StripEncoder encoder     = createEncoder(mOptions);
+            BitmapPool   bitmapPool  = mBitmapPool;
+            Bitmap       strip       = obtainStrip(bitmapPool, outputWidth, stripHeight);
+            Canvas       stripCanvas = new Canvas(strip);
+            Paint        stripPaint  = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Rect         decodeRect  = new Rect();
+            RectF        drawRect    = new RectF();
+            try {
+                encoder.begin(outputWidth, outputHeight, false, output);
+                for (int outputTop = 0; outputTop < outputHeight; outputTop += stripHeight) {
+                    if (mIsCancelled) {
+                        return;
+                    }
+
+                    int rows         = Math.min(stripHeight, outputHeight - outputTop);
+                    int sourceTop    = region.top + (int) Math.floor(outputTop / scale);
+                    int sourceBottom = region.top + (int) Math.ceil((outputTop + rows) / scale);
+                    sourceTop    = MathUtils.clamp(sourceTop, region.top, region.bottom - 1);
+                    sourceBottom = MathUtils.clamp(sourceBottom, sourceTop + 1, region.bottom);
+                    decodeRect.set(region.left, sourceTop, region.right, sourceBottom);
+
+                    Bitmap piece = decoder.decodeRegion(decodeRect, decodeOptions);
+                    if (piece == null) {
+                        throw new IOException("Failed to decode region " + decodeRect);
+                    }
+                    drawRect.set(
+                            0, (sourceTop - region.top) * scale - outputTop,
+                            outputWidth, (sourceBottom - region.top) * scale - outputTop);
+                    stripCanvas.drawBitmap(piece, null, drawRect, stripPaint);
+                    piece.recycle();
+
+                    encoder.writeStrip(strip, rows);
+                    dispatchProgress(this, (float) (outputTop + rows) / outputHeight);
+                }
+                encoder.finish();
+            } finally {
+                encoder.release();
+                releaseStrip(bitmapPool, strip);
+            }
+        }
+
+        /**
+         * Render the crop of the rotated image strip by strip, and every strip tile
+         * by tile: each output tile is mapped back onto the source, only the source
+         * pixels under it are decoded, and they are drawn rotated into the strip.
+         * At most one strip and one tile's worth of source pixels are held at once.
+         */
+        private void exportRotatedToStream(BitmapRegionDecoder decoder, OutputStream output) throws IOException {
+            int   sourceWidth   = mCropper.getSourceWidth();
+            int   sourceHeight  = mCropper.getSourceHeight();
+            float radians       = (float) Math.toRadians(mOptions.rotation);
+            float rotatedWidth  = MathUtils.getRotatedWidth(sourceWidth, sourceHeight, radians);
+            float rotatedHeight = MathUtils.getRotatedHeight(sourceWidth, sourceHeight, radians);
+            float regionLeft    = mRegion.left * rotatedWidth;
+            float regionTop     = mRegion.top * rotatedHeight;
+            float regionWidth   = mRegion.width() * rotatedWidth;
+            float regionHeight  = mRegion.height() * rotatedHeight;
+            if (regionWidth < 1 || regionHeight < 1) {
+                throw new IllegalArgumentException("Empty crop region: " + mRegion);
+            }
+
+            float scale = 1f;
+            if (mOptions.maxWidth > 0) {
+                scale = Math.min(scale, mOptions.maxWidth / regionWidth);
+            }
+            if (mOptions.maxHeight > 0) {
+                scale = Math.min(scale, mOptions.maxHeight / regionHeight);
+            }
+            int outputWidth  = Math.max(1, Math.round(regionWidth * scale));
+            int outputHeight = Math.max(1, Math.round(regionHeight * scale));
+            int tileSize     = Math.max(MinTileSize, mOptions.tileSize);
+            int stripHeight  = Math.min(tileSize, outputHeight);
+
+            // Source to output: rotate around the image center, move the rotated bounds to the origin, crop, scale
+            Matrix sourceToOutput = new Matrix();
+            sourceToOutput.setRotate(mOptions.rotation, sourceWidth * 0.5f, sourceHeight * 0.5f);
+            sourceToOutput.postTranslate((rotatedWidth - sourceWidth) * 0.5f - regionLeft,
+                    (rotatedHeight - sourceHeight) * 0.5f - regionTop);
+            sourceToOutput.postScale(scale, scale);
+            Matrix outputToSource = new Matrix();
+            sourceToOutput.invert(outputToSource);
+
+            BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+            int sampleSize = MathUtils.computeSampleSize(
+                    Math.round(regionWidth), Math.round(regionHeight), outputWidth, outputHeight);
+            decodeOptions.inSampleSize = sampleSize;
+
+            StripEncoder encoder     = createEncoder(mOptions);
+            BitmapPool   bitmapPool  = mBitmapPool;
+            Bitmap       strip       = obtainStrip(bitmapPool, outputWidth, stripHeight);
+            Canvas       stripCanvas = new Canvas(strip);
+            Paint        stripPaint  = new Paint(Paint.FILTER_BITMAP_FLAG);
+            Rect         decodeRect  = new Rect();
+            RectF        tileRect    = new RectF();
+            Matrix       pieceMatrix = new Matrix();
+            int          margin      = TileDecodeMargin * sampleSize;
+            try {
+                encoder.begin(outputWidth, outputHeight, false, output);
+                for (int outputTop = 0; outputTop < outputHeight; outputTop += stripHeight) {
+                    int rows = Math.min(stripHeight, outputHeight - outputTop);
+                    strip.eraseColor(Color.TRANSPARENT);
+                    for (int outputLeft = 0; outputLeft < outputWidth; outputLeft += tileSize) {
+                        if (mIsCancelled) {
+                            return;
+                        }
+
+                        // Source pixels under the tile
+                        int columns = Math.min(tileSize, outputWidth - outputLeft);
+                        tileRect.set(outputLeft, outputTop, outputLeft + columns, outputTop + rows);
+                        outputToSource.mapRect(tileRect);
+                        decodeRect.set(
+                                (int) Math.floor(tileRect.left) - margin, (int) Math.floor(tileRect.top) - margin,
+                                (int) Math.ceil(tileRect.right) + margin, (int) Math.ceil(tileRect.bottom) + margin);
+                        if (!decodeRect.intersect(0, 0, sourceWidth, sourceHeight)) {
+                            continue;
+                        }
+
+                        Bitmap piece = decoder.decodeRegion(decodeRect, decodeOptions);
+                        if (piece == null) {
+                            throw new IOException("Failed to decode region " + decodeRect);
+                        }
+                        pieceMatrix.setScale((float) decodeRect.width() / piece.getWidth(),
+                                (float) decodeRect.height() / piece.getHeight());
+                        pieceMatrix.postTranslate(decodeRect.left, decodeRect.top);
+                        pieceMatrix.postConcat(sourceToOutput);
+                        pieceMatrix.postTranslate(0, -outputTop);
+                        stripCanvas.save();
+                        stripCanvas.clipRect(outputLeft, 0, outputLeft + columns, rows);
+                        stripCanvas.drawBitmap(piece, pieceMatrix, stripPaint);
+                        stripCanvas.restore();
+                        piece.recycle();
+                    }
+
+                    encoder.writeStrip(strip, rows);
+                    dispatchProgress(this, (float) (outputTop + rows) / outputHeight);
+                }
+                encoder.finish();
+            } finally {
+                encoder.release();
+                releaseStrip(bitmapPool, strip);
+            }
+        }
+    }
+
+    /**
+     * Handle of a submitted batch export. The source is decoded once in
+     * bands planned by {@link DecodeBandPlanner}, and every band is drawn
+     * into the output strips of all the crops overlapping it.
+     */
+    public final class BatchExportTask implements Runnable {
+
+        private final ImageRegionCropper  mCropper;
+        private final NormalizedRect[]    mRegions;
+        private final ExportOptions[]     mOptions;
+        private final File[]              mOutputFiles;
+        private final BatchExportCallback mCallback;
+        private volatile boolean          mIsCancelled = false;
+        private volatile boolean          mIsDone      = false;
+
+        private BatchExportTask(ImageRegionCropper cropper, NormalizedRect[] regions, File[] outputFiles,
+                                ExportOptions[] options, BatchExportCallback callback) {
+            if (regions.length != outputFiles.length || (options != null && options.length != regions.length)) {
+                throw new IllegalArgumentException("Regions, output files and options must have the same length");
+            }
+            mCropper     = cropper;
+            mRegions     = new NormalizedRect[regions.length];
+            mOptions     = new ExportOptions[regions.length];
+            mOutputFiles = outputFiles.clone();
+            mCallback    = callback;
+            for (int i = 0; i < regions.length; i++) {
+                mRegions[i] = new NormalizedRect(regions[i]);
+                mOptions[i] = options != null && options[i] != null ? options[i] : new ExportOptions();
+                if (mOptions[i].rotation % 360 != 0) {
+                    // Bands are decoded axis aligned, a rotated crop goes through export() on its own
+                    throw new IllegalArgumentException("Rotated crops can not be batch exported");
+                }
+            }
+        }
+
+        /**
+         * Request cancellation. The export stops at the next band boundary and
+         * no output file is left behind.
+         */
+        public void cancel() {
+            mIsCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        public boolean isDone() {
+            return mIsDone;
+        }
+
+        public int getRegionCount() {
+            return mRegions.length;
+        }
+
+        public NormalizedRect getRegion(int index) {
+            return mRegions[index];
+        }
+
+        public File getOutputFile(int index) {
+            return mOutputFiles[index];
+        }
+
+        @Override
+        public void run() {
+            try {
+                exportAll();
+                if (mIsCancelled) {
+                    dispatchBatchCancelled(this);
+                } else {
+                    dispatchBatchCompleted(this);
+                }
+            } catch (Exception exp) {
+                Log.w(TAG, "[run] Batch export failed", exp);
+                dispatchBatchFailed(this, exp);
+            }
+        }
+
+        private void exportAll() throws IOException {
+            BitmapRegionDecoder decoder = mCropper.getDecoder();
+            if (decoder == null) {
+                throw new IllegalStateException("Cropper is released");
+            }
+
+            CropDiskCache cache       = mDiskCache;
+            int           count       = mRegions.length;
+            BatchOutput[] outputs     = new BatchOutput[count];
+            File[]        cachedFiles = new File[count];
+            // Outputs which are not cached, these alone go through the decode pass
+            int[]         misses      = new int[count];
+            int           missCount   = 0;
+            int[]         rects       = new int[count * 4];
+            int[]         sampleSizes = new int[count];
+            boolean       isSucceeded = false;
+            try {
+                for (int i = 0; i < count; i++) {
+                    String cacheKey = createCacheKey(cache, mCropper, mRegions[i], mOptions[i]);
+                    if (cacheKey != null) {
+                        cachedFiles[i] = new File(mOutputFiles[i].getPath() + PartialFileSuffix);
+                        if (cache.readTo(cacheKey, cachedFiles[i])) {
+                            continue;
+                        }
+                        cachedFiles[i] = null;
+                    }
+                    Editor editor = cacheKey != null ? cache.edit(cacheKey) : null;
+                    outputs[i] = new BatchOutput(mCropper, mRegions[i], mOptions[i], mOutputFiles[i], mBitmapPool,
+                            editor);
+                    Rect region = outputs[i].mRegion;
+                    int  miss   = missCount++;
+                    misses[miss] = i;
+                    rects[miss * 4 + 0] = region.left;
+                    rects[miss * 4 + 1] = region.top;
+                    rects[miss * 4 + 2] = region.right;
+                    rects[miss * 4 + 3] = region.bottom;
+                    sampleSizes[miss]   = MathUtils.computeSampleSize(region.width(), region.height(),
+                            outputs[i].mOutputWidth, outputs[i].mOutputHeight);
+                }
+
+                List<Band> bands         = DecodeBandPlanner.plan(
+                        Arrays.copyOf(rects, missCount * 4), sampleSizes, MaxBandPixels);
+                long       totalPixels   = Math.max(1, DecodeBandPlanner.countSourcePixels(bands));
+                long       decodedPixels = 0;
+                Rect       decodeRect    = new Rect();
+                BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+                for (Band band : bands) {
+                    if (mIsCancelled) {
+                        return;
+                    }
+                    decodeRect.set(band.left, band.top, band.right, band.bottom);
+                    decodeOptions.inSampleSize = band.sampleSize;
+                    Bitmap piece = decoder.decodeRegion(decodeRect, decodeOptions);
+                    if (piece == null) {
+                        throw new IOException("Failed to decode region " + decodeRect);
+                    }
+                    try {
+                        for (int region : band.regions) {
+                            outputs[misses[region]].drawBand(band, piece);
+                        }
+                    } finally {
+                        piece.recycle();
+                    }
+                    decodedPixels += (long) band.width() * band.height();
+                    dispatchBatchProgress(this, (float) decodedPixels / totalPixels);
+                }
+
+                for (int i = 0; i < missCount; i++) {
+                    outputs[misses[i]].finish();
+                }
+                isSucceeded = true;
+            } finally {
+                // Outputs are only moved into place when the whole batch has succeeded
+                boolean isCommitted = isSucceeded && !mIsCancelled;
+                for (int i = 0; i < count; i++) {
+                    if (outputs[i] != null && !outputs[i].release(isCommitted)) {
+                        isCommitted = false;
+                    } else if (cachedFiles[i] != null && !(isCommitted && cachedFiles[i].renameTo(mOutputFiles[i]))) {
+                        cachedFiles[i].delete();
+                        isCommitted = false;
+                    }
+                }
+                if (isSucceeded && !mIsCancelled && !isCommitted) {
+                    throw new IOException("Failed to write the batch outputs");
+                }
+            }
+        }
+    }
+
+    /**
+     * Output side of one crop in a batch: its strip bitmap, encoder and
+     * partial file, and the cache entry it is stored into, if any. Bands
+     * arrive top to bottom; a strip is encoded as soon as the band covering
+     * its last source row has been drawn.
+     */
+    private static class BatchOutput {
+
+        private final Rect         mRegion;
+        private final float        mScale;
+        private final int          mOutputWidth;
+        private final int          mOutputHeight;
+        private final int          mStripHeight;
+        private final File         mOutputFile;
+        private final File         mPartialFile;
+        private final OutputStream mOutput;
+        private final Editor       mCacheEditor;
+        private final StripEncoder mEncoder;
+        private final Bitmap       mStrip;
+        private final BitmapPool   mBitmapPool;
+        private final Canvas       mStripCanvas;
+        private final Paint        mStripPaint   = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final RectF        mDrawRect     = new RectF();
+        private int                mOutputTop    = 0;
+
+        BatchOutput(ImageRegionCropper cropper, NormalizedRect region, ExportOptions options, File outputFile,
+                    BitmapPool bitmapPool, Editor cacheEditor) throws IOException {
+            mRegion = cropper.mapToSource(region, new Rect());
+            if (mRegion.isEmpty()) {
+                if (cacheEditor != null) {
+                    cacheEditor.abort();
+                }
+                throw new IllegalArgumentException("Empty crop region: " + region);
+            }
+            float scale = 1f;
+            if (options.maxWidth > 0) {
+                scale = Math.min(scale, (float) options.maxWidth / mRegion.width());
+            }
+            if (options.maxHeight > 0) {
+                scale = Math.min(scale, (float) options.maxHeight / mRegion.height());
+            }
+            mScale        = scale;
+            mOutputWidth  = Math.max(1, Math.round(mRegion.width() * scale));
+            mOutputHeight = Math.max(1, Math.round(mRegion.height() * scale));
+            mStripHeight  = Math.max(1, Math.min(options.stripHeight, mOutputHeight));
+            mOutputFile   = outputFile;
+            mPartialFile  = new File(outputFile.getPath() + PartialFileSuffix);
+            mCacheEditor  = cacheEditor;
+            mOutput       = openOutput(mPartialFile, cacheEditor);
+            mEncoder      = createEncoder(options);
+            mBitmapPool   = bitmapPool;
+            mStrip        = obtainStrip(bitmapPool, mOutputWidth, mStripHeight);
+            mStripCanvas  = new Canvas(mStrip);
+            try {
+                mEncoder.begin(mOutputWidth, mOutputHeight, false, mOutput);
+            } catch (IOException exp) {
+                release(false);
+                throw exp;
+            }
+        }
+
+        /**
+         * Draw a decoded band into the pending strips, and encode every strip it completes
+         */
+        void drawBand(Band band, Bitmap piece) throws IOException {
+            while (mOutputTop < mOutputHeight) {
+                int rows = Math.min(mStripHeight, mOutputHeight - mOutputTop);
+
+                // The strip bitmap clips whatever part of the band lies outside it
+                mDrawRect.set(
+                        (band.left - mRegion.left) * mScale, (band.top - mRegion.top) * mScale - mOutputTop,
+                        (band.right - mRegion.left) * mScale, (band.bottom - mRegion.top) * mScale - mOutputTop);
+                mStripCanvas.drawBitmap(piece, null, mDrawRect, mStripPaint);
+
+                int sourceBottom = mRegion.top + (int) Math.ceil((mOutputTop + rows) / mScale);
+                if (Math.min(sourceBottom, mRegion.bottom) > band.bottom) {
+                    // Rest of the strip comes with the next band
+                    return;
+                }
+                mEncoder.writeStrip(mStrip, rows);
+                mOutputTop += rows;
+            }
+        }
+
+        void finish() throws IOException {
+            if (mOutputTop < mOutputHeight) {
+                throw new IOException("Missing rows " + mOutputTop + " - " + mOutputHeight + " of " + mOutputFile);
+            }
+            mEncoder.finish();
+        }
+
+        /**
+         * @param isCommitted true to move the finished output into place, false to delete it
+         * @return false if the output should have been committed but could not be
+         */
+        boolean release(boolean isCommitted) {
+            boolean isClosed = true;
+            mEncoder.release();
+            releaseStrip(mBitmapPool, mStrip);
+            try {
+                mOutput.close();
+            } catch (IOException exp) {
+                isClosed = false;
+            }
+            if (isCommitted && isClosed && mPartialFile.renameTo(mOutputFile)) {
+                if (mCacheEditor != null) {
+                    mCacheEditor.commit();
+                }
+                return true;
+            }
+            if (mCacheEditor != null) {
+                mCacheEditor.abort();
+            }
+            mPartialFile.delete();
+            return !isCommitted;
+        }
+
+        private static OutputStream openOutput(File partialFile, Editor cacheEditor) throws IOException {
+            OutputStream output;
+            try {
+                output = new BufferedOutputStream(new FileOutputStream(partialFile), OutputBufferSize);
+            } catch (IOException exp) {
+                if (cacheEditor != null) {
+                    cacheEditor.abort();
+                }
+                throw exp;
+            }
+            return cacheEditor != null ? cacheEditor.tee(output) : output;
+        }
+    }
+
+    private final ThreadPoolExecutor  mExecutor;
+    private final ExportThreadFactory mThreadFactory;
+    private final Handler             mMainHandler;
+    private volatile BitmapPool      mBitmapPool = null;
+    private volatile CropDiskCache   mDiskCache  = null;
+
+    public CropExporter() {
+        this(DefaultThreadCount, DefaultQueueSize);
+    }
+
+    public CropExporter(int threadCount, int queueSize) {
+        mMainHandler   = new Handler(Looper.getMainLooper());
+        mThreadFactory = new ExportThreadFactory();
+        mExecutor      = new ThreadPoolExecutor(
+                threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                mThreadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Take strip bitmaps from <tt>pool</tt> and give them back after each export
+     * @param pool shared pool, or null to allocate strips per export
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * Serve repeated exports from <tt>cache</tt>, and store new ones into it.
+     * Only crops of croppers with a source key are cached, see
+     * {@link ImageRegionCropper#setSourceKey(String)}. The cache is closed
+     * by {@link #shutdown()}.
+     * @param cache disk cache, or null to always encode
+     */
+    public void setDiskCache(CropDiskCache cache) {
+        mDiskCache = cache;
+    }
+
+    /**
+     * Write out the journal of the disk cache on a worker thread, behind the queued exports,
+     * so the caller never waits on disk IO
+     */
+    public void flushDiskCache() {
+        final CropDiskCache cache = mDiskCache;
+        if (cache == null) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    cache.flush();
+                }
+
+            });
+        } catch (RejectedExecutionException exp) {
+            // The queue is full or shut down, the next journal write flushes anyway
+            Log.w(TAG, "[flushDiskCache] Flush skipped", exp);
+        }
+    }
+
+    /**
+     * @return cache key of the crop, or null if it is not to be cached
+     */
+    private static String createCacheKey(CropDiskCache cache, ImageRegionCropper cropper, NormalizedRect region,
+                                         ExportOptions options) {
+        return cache != null ? CropDiskCache.createKey(cropper.getSourceKey(), region, options) : null;
+    }
+
+    /**
+     * Export a crop into <tt>outputFile</tt>. The file only appears once the
+     * export has completed; partial output is removed on failure or cancellation.
+     */
+    public ExportTask export(ImageRegionCropper cropper, NormalizedRect region, File outputFile,
+                             ExportOptions options, ExportCallback callback) {
+        return submit(new ExportTask(cropper, region, options, outputFile, null, callback));
+    }
+
+    /**
+     * Export a crop into <tt>outputStream</tt>. The stream is flushed but not closed.
+     */
+    public ExportTask export(ImageRegionCropper cropper, NormalizedRect region, OutputStream outputStream,
+                             ExportOptions options, ExportCallback callback) {
+        return submit(new ExportTask(cropper, region, options, null, outputStream, callback));
+    }
+
+    /**
+     * Export several crops of one source in a single decode pass, each into
+     * its own file. Source rows shared by several crops are decoded once.
+     * @param options per crop options, or null for defaults. Rotated crops are not supported.
+     */
+    public BatchExportTask exportBatch(ImageRegionCropper cropper, NormalizedRect[] regions, File[] outputFiles,
+                                       ExportOptions[] options, BatchExportCallback callback) {
+        BatchExportTask task = new BatchExportTask(cropper, regions, outputFiles, options, callback);
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException exp) {
+            dispatchBatchFailed(task, exp);
+        }
+        return task;
+    }
+
+    /**
+     * Cancel pending exports and stop the worker threads once they are idle.
+     * The disk cache is closed in the background after the running exports
+     * have stopped, so the caller never waits on disk IO.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        final CropDiskCache cache = mDiskCache;
+        if (cache == null) {
+            return;
+        }
+        mThreadFactory.newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (!mExecutor.awaitTermination(ShutdownWaitMillis, TimeUnit.MILLISECONDS)) {
+                        Log.w(TAG, "[shutdown] Exports still running, closing the disk cache anyway");
+                    }
+                } catch (InterruptedException exp) {
+                    // Close right away
+                }
+                cache.close();
+            }
+
+        }).start();
+    }
+
+    private ExportTask submit(ExportTask task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException exp) {
+            dispatchFailed(task, exp);
+        }
+        return task;
+    }
+
+    private static Bitmap obtainStrip(BitmapPool pool, int width, int height) {
+        if (pool == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        // Pooled bitmaps keep old pixels, strips start out transparent like new ones
+        Bitmap strip = pool.obtain(width, height, Bitmap.Config.ARGB_8888);
+        strip.eraseColor(Color.TRANSPARENT);
+        return strip;
+    }
+
+    private static void releaseStrip(BitmapPool pool, Bitmap strip) {
+        if (pool != null) {
+            pool.put(strip);
+        } else {
+            strip.recycle();
+        }
+    }
+
+    private static StripEncoder createEncoder(ExportOptions options) {
+        switch (options.format) {
+        case PNG:
+            return new PngStripEncoder();
+        case JPEG:
+        default:
+            return new JpegStripEncoder(options.quality);
+        }
+    }
+
+    private void dispatchProgress(final ExportTask task, final float progress) {
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!task.mIsCancelled) {
+                    task.mCallback.onExportProgress(task, progress);
+                }
+            }
+
+        });
+    }
+
+    private void dispatchCompleted(final ExportTask task) {
+        task.mIsDone = true;
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                task.mCallback.onExportCompleted(task);
+            }
+
+        });
+    }
+
+    private void dispatchFailed(final ExportTask task, final Exception exception) {
+        task.mIsDone = true;
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                task.mCallback.onExportFailed(task, exception);
+            }
+
+        });
+    }
+
+    private void dispatchCancelled(final ExportTask task) {
+        task.mIsDone = true;
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                task.mCallback.onExportCancelled(task);
+            }
+
+        });
+    }
+
+    private void dispatchBatchProgress(final BatchExportTask task, final float progress) {
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!task.mIsCancelled) {
+                    task.mCallback.onBatchExportProgress(task, progress);
+                }
+            }
+
+        });
+    }
+
+    private void dispatchBatchCompleted(final BatchExportTask task) {
+        task.mIsDone = true;
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                task.mCallback.onBatchExportCompleted(task);
+            }
+
+        });
+    }
+
+    private void dispatchBatchFailed(final BatchExportTask task, final Exception exception) {
+        task.mIsDone = true;
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                task.mCallback.onBatchExportFailed(task, exception);
+            }
+
+        });
+    }
+
+    private void dispatchBatchCancelled(final BatchExportTask task) {
+        task.mIsDone = true;
+        if (task.mCallback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                task.mCallback.onBatchExportCancelled(task);
+            }
+
+        });
+    }
+
+    private static class ExportThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mThreadIndex = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+
+            }, TAG + "#" + mThreadIndex.incrementAndGet());
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.cocoonshu.example.imageclipper.crop;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+import com.cocoonshu.example.imageclipper.view.BitmapPool;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+/**
+ * Crop engine which maps a normalized clip frame onto source pixels and
+ * decodes only that region, subsampled down to the requested output size.
+ * The full source bitmap is never decoded. With a {@link BitmapPool} set,
+ * scaled crops are drawn into pooled bitmaps and the intermediate decode
+ * goes back to the pool.
+ */
+public class ImageRegionCropper {
+
+    private BitmapRegionDecoder mDecoder      = null;
+    private int                 mSourceWidth  = 0;
+    private int                 mSourceHeight = 0;
+    private final int[]         mSourceBounds = new int[4];
+    private volatile BitmapPool mBitmapPool   = null;
+    private volatile String     mSourceKey    = null;
+
+    public ImageRegionCropper(BitmapRegionDecoder decoder) {
+        if (decoder == null) {
+            throw new IllegalArgumentException("decoder is null");
+        }
+        mDecoder      = decoder;
+        mSourceWidth  = decoder.getWidth();
+        mSourceHeight = decoder.getHeight();
+    }
+
+    public ImageRegionCropper(String imagePath) throws IOException {
+        this(BitmapRegionDecoder.newInstance(imagePath, false));
+    }
+
+    public ImageRegionCropper(InputStream imageStream) throws IOException {
+        this(BitmapRegionDecoder.newInstance(imageStream, false));
+    }
+
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    /**
+     * @param pool pool to take scaled crops from, or null to allocate them
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * Identify the source content, so its exported crops can be cached
+     * @param sourceKey content hash of the source, see {@link CropDiskCache#hashContent(InputStream)},
+     *                  or null to export uncached
+     */
+    public void setSourceKey(String sourceKey) {
+        mSourceKey = sourceKey;
+    }
+
+    public String getSourceKey() {
+        return mSourceKey;
+    }
+
+    public BitmapRegionDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * Map a normalized clip frame onto source image pixels
+     * @param normalizedFrame
+     * @param out
+     * @return out
+     */
+    public Rect mapToSource(NormalizedRect normalizedFrame, Rect out) {
+        synchronized (mSourceBounds) {
+            normalizedFrame.mapToSource(mSourceWidth, mSourceHeight, mSourceBounds);
+            out.set(mSourceBounds[0], mSourceBounds[1], mSourceBounds[2], mSourceBounds[3]);
+        }
+        return out;
+    }
+
+    /**
+     * Decode the region selected by <tt>normalizedFrame</tt>. The region is decoded
+     * with the largest power-of-two sample size which keeps it at least as large as
+     * <tt>maxWidth</tt> x <tt>maxHeight</tt>, then scaled down to fit exactly.
+     * @param normalizedFrame
+     * @param maxWidth  output width bound, <= 0 means unbounded
+     * @param maxHeight output height bound, <= 0 means unbounded
+     * @return cropped bitmap, or null if the region is empty or the cropper is released.
+     *         It may be given to the pool once the caller is done with it.
+     */
+    public Bitmap crop(NormalizedRect normalizedFrame, int maxWidth, int maxHeight) {
+        BitmapRegionDecoder decoder = mDecoder;
+        if (decoder == null || decoder.isRecycled()) {
+            return null;
+        }
+
+        Rect region = mapToSource(normalizedFrame, new Rect());
+        if (region.isEmpty()) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = MathUtils.computeSampleSize(region.width(), region.height(), maxWidth, maxHeight);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable         = true;
+        Bitmap decoded = decoder.decodeRegion(region, options);
+        if (decoded == null) {
+            return null;
+        }
+
+        float scale = 1f;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (float) maxWidth / decoded.getWidth());
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (float) maxHeight / decoded.getHeight());
+        }
+        if (scale >= 1f) {
+            return decoded;
+        }
+
+        int        scaledWidth  = Math.max(1, Math.round(decoded.getWidth() * scale));
+        int        scaledHeight = Math.max(1, Math.round(decoded.getHeight() * scale));
+        BitmapPool pool         = mBitmapPool;
+        if (pool == null) {
+            Bitmap scaled = Bitmap.createScaledBitmap(decoded, scaledWidth, scaledHeight, true);
+            if (scaled != decoded) {
+                decoded.recycle();
+            }
+            return scaled;
+        }
+
+        // SRC replaces every pixel, so the pooled content does not need clearing first
+        Bitmap scaled = pool.obtain(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(scaled);
+        Paint  paint  = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        canvas.drawBitmap(decoded, null, new Rect(0, 0, scaledWidth, scaledHeight), paint);
+        pool.put(decoded);
+        return scaled;
+    }
+
+    public void release() {
+        if (mDecoder != null) {
+            mDecoder.recycle();
+            mDecoder = null;
+        }
+    }
+
+}
@@ -0,0 +1,481 @@
+package com.cocoonshu.example.imageclipper.crop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+
+/**
+ * Streaming baseline JPEG encoder, YCbCr 4:2:0 with the standard tables
+ * scaled by quality as libjpeg does. Strips are gathered into one band of
+ * 16 rows, which is transformed and entropy coded as soon as it is full,
+ * so memory use is bounded by 16 rows of pixels regardless of the image
+ * size. The platform encoder would need the whole image as one bitmap.
+ */
+public class JpegStripEncoder implements StripEncoder {
+
+    private static final int      McuSize             = 16;
+    private static final int      BlockSize           = 8;
+    private static final int      MaxDimension        = 65535;
+    private static final int      OutputBufferSize    = 4 * 1024;
+    private static final int      MaxCoefficient      = 1023;
+
+    private static final int[]    NaturalOrder        = {
+         0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // Quantization tables of JPEG Annex K, in natural order
+    private static final int[]    LuminanceTable      = {
+        16,  11,  10,  16,  24,  40,  51,  61,
+        12,  12,  14,  19,  26,  58,  60,  55,
+        14,  13,  16,  24,  40,  57,  69,  56,
+        14,  17,  22,  29,  51,  87,  80,  62,
+        18,  22,  37,  56,  68, 109, 103,  77,
+        24,  35,  55,  64,  81, 104, 113,  92,
+        49,  64,  78,  87, 103, 121, 120, 101,
+        72,  92,  95,  98, 112, 100, 103,  99
+    };
+    private static final int[]    ChrominanceTable    = {
+        17,  18,  24,  47,  99,  99,  99,  99,
+        18,  21,  26,  66,  99,  99,  99,  99,
+        24,  26,  56,  99,  99,  99,  99,  99,
+        47,  66,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99
+    };
+
+    // Huffman tables of JPEG Annex K, code counts per length 1 - 16 and symbols
+    private static final int[]    DcLuminanceBits     = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[]    DcChrominanceBits   = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[]    DcValues            = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[]    AcLuminanceBits     = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7D};
+    private static final int[]    AcLuminanceValues   = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xA1, 0x08, 0x23, 0x42, 0xB1, 0xC1, 0x15, 0x52, 0xD1, 0xF0,
+        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0A, 0x16, 0x17, 0x18, 0x19, 0x1A, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2A, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+        0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5, 0xA6, 0xA7,
+        0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3, 0xC4, 0xC5,
+        0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA, 0xE1, 0xE2,
+        0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF1, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+        0xF9, 0xFA
+    };
+    private static final int[]    AcChrominanceBits   = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[]    AcChrominanceValues = {
+        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+        0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xA1, 0xB1, 0xC1, 0x09, 0x23, 0x33, 0x52, 0xF0,
+        0x15, 0x62, 0x72, 0xD1, 0x0A, 0x16, 0x24, 0x34, 0xE1, 0x25, 0xF1, 0x17, 0x18, 0x19, 0x1A, 0x26,
+        0x27, 0x28, 0x29, 0x2A, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3A, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+        0x49, 0x4A, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5A, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6A, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7A, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+        0x88, 0x89, 0x8A, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9A, 0xA2, 0xA3, 0xA4, 0xA5,
+        0xA6, 0xA7, 0xA8, 0xA9, 0xAA, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xB9, 0xBA, 0xC2, 0xC3,
+        0xC4, 0xC5, 0xC6, 0xC7, 0xC8, 0xC9, 0xCA, 0xD2, 0xD3, 0xD4, 0xD5, 0xD6, 0xD7, 0xD8, 0xD9, 0xDA,
+        0xE2, 0xE3, 0xE4, 0xE5, 0xE6, 0xE7, 0xE8, 0xE9, 0xEA, 0xF2, 0xF3, 0xF4, 0xF5, 0xF6, 0xF7, 0xF8,
+        0xF9, 0xFA
+    };
+
+    // Scale factors of the AAN forward DCT, folded into the quantization divisors
+    private static final double[] AanScales           = {
+        1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private final int     mQuality;
+    private OutputStream  mOutput               = null;
+    private int           mWidth                = 0;
+    private int           mHeight               = 0;
+    private int           mWrittenRows          = 0;
+    private int[]         mBandPixels           = null;
+    private int           mBandRows             = 0;
+    private final int[]   mLuminanceQuant       = new int[64];
+    private final int[]   mChrominanceQuant     = new int[64];
+    private final float[] mLuminanceDivisors    = new float[64];
+    private final float[] mChrominanceDivisors  = new float[64];
+    private final int[]   mDcLuminanceCodes     = new int[12];
+    private final int[]   mDcLuminanceLengths   = new int[12];
+    private final int[]   mDcChrominanceCodes   = new int[12];
+    private final int[]   mDcChrominanceLengths = new int[12];
+    private final int[]   mAcLuminanceCodes     = new int[256];
+    private final int[]   mAcLuminanceLengths   = new int[256];
+    private final int[]   mAcChrominanceCodes   = new int[256];
+    private final int[]   mAcChrominanceLengths = new int[256];
+    private final float[] mBlock                = new float[64];
+    private final int[]   mCoefficients         = new int[64];
+    private final float[] mCbBlock              = new float[64];
+    private final float[] mCrBlock              = new float[64];
+    private int           mPreviousY            = 0;
+    private int           mPreviousCb           = 0;
+    private int           mPreviousCr           = 0;
+    private int           mBitBuffer            = 0;
+    private int           mBitCount             = 0;
+    private byte[]        mOutputBuffer         = null;
+    private int           mOutputLength         = 0;
+
+    public JpegStripEncoder(int quality) {
+        mQuality = Math.max(1, Math.min(100, quality));
+        buildQuantTable(LuminanceTable, mQuality, mLuminanceQuant, mLuminanceDivisors);
+        buildQuantTable(ChrominanceTable, mQuality, mChrominanceQuant, mChrominanceDivisors);
+        buildHuffmanTable(DcLuminanceBits, DcValues, mDcLuminanceCodes, mDcLuminanceLengths);
+        buildHuffmanTable(DcChrominanceBits, DcValues, mDcChrominanceCodes, mDcChrominanceLengths);
+        buildHuffmanTable(AcLuminanceBits, AcLuminanceValues, mAcLuminanceCodes, mAcLuminanceLengths);
+        buildHuffmanTable(AcChrominanceBits, AcChrominanceValues, mAcChrominanceCodes, mAcChrominanceLengths);
+    }
+
+    /**
+     * Scale a base table by quality the way libjpeg does, and fold the AAN scale factors into its divisors
+     */
+    private static void buildQuantTable(int[] base, int quality, int[] quant, float[] divisors) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            quant[i]    = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+            divisors[i] = (float) (1.0 / (quant[i] * AanScales[i / 8] * AanScales[i % 8] * 8.0));
+        }
+    }
+
+    private static void buildHuffmanTable(int[] bits, int[] values, int[] codes, int[] lengths) {
+        int code  = 0;
+        int index = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[index]]   = code;
+                lengths[values[index]] = length;
+                index++;
+                code++;
+            }
+            code <<= 1;
+        }
+    }
+
+    @Override
+    public void begin(int width, int height, boolean hasAlpha, OutputStream output) throws IOException {
+        if (width > MaxDimension || height > MaxDimension) {
+            throw new IOException("JPEG size exceeded: " + width + "x" + height);
+        }
+        mOutput       = output;
+        mWidth        = width;
+        mHeight       = height;
+        mWrittenRows  = 0;
+        mBandPixels   = new int[width * McuSize];
+        mBandRows     = 0;
+        mPreviousY    = 0;
+        mPreviousCb   = 0;
+        mPreviousCr   = 0;
+        mBitBuffer    = 0;
+        mBitCount     = 0;
+        mOutputBuffer = new byte[OutputBufferSize];
+        mOutputLength = 0;
+        writeHeaders();
+    }
+
+    @Override
+    public void writeStrip(Bitmap strip, int rows) throws IOException {
+        if (mWrittenRows + rows > mHeight) {
+            throw new IllegalStateException("Image overflow: " + (mWrittenRows + rows) + " > " + mHeight);
+        }
+        int stripRow = 0;
+        while (stripRow < rows) {
+            int count = Math.min(rows - stripRow, McuSize - mBandRows);
+            strip.getPixels(mBandPixels, mBandRows * mWidth, mWidth, 0, stripRow, mWidth, count);
+            mBandRows += count;
+            stripRow  += count;
+            if (mBandRows == McuSize) {
+                encodeBand();
+            }
+        }
+        mWrittenRows += rows;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mWrittenRows != mHeight) {
+            throw new IllegalStateException("Image incomplete: " + mWrittenRows + " of " + mHeight + " rows");
+        }
+        if (mBandRows > 0) {
+            encodeBand();
+        }
+        if (mBitCount > 0) {
+            // Pad the last byte with ones
+            writeBits((1 << (8 - mBitCount)) - 1, 8 - mBitCount);
+        }
+        writeMarker(0xD9);
+        flushOutputBuffer();
+        mOutput.flush();
+    }
+
+    @Override
+    public void release() {
+        mOutput       = null;
+        mBandPixels   = null;
+        mOutputBuffer = null;
+    }
+
+    private void writeHeaders() throws IOException {
+        writeMarker(0xD8);
+
+        // JFIF APP0, 1:1 aspect without a thumbnail
+        writeMarker(0xE0);
+        writeShort(16);
+        writeBytes('J', 'F', 'I', 'F', 0, 1, 1, 0);
+        writeShort(1);
+        writeShort(1);
+        writeBytes(0, 0);
+
+        writeMarker(0xDB);
+        writeShort(2 + 2 * 65);
+        writeByte(0);
+        for (int i = 0; i < 64; i++) {
+            writeByte(mLuminanceQuant[NaturalOrder[i]]);
+        }
+        writeByte(1);
+        for (int i = 0; i < 64; i++) {
+            writeByte(mChrominanceQuant[NaturalOrder[i]]);
+        }
+
+        // Baseline frame, Y sampled 2x2 against Cb and Cr
+        writeMarker(0xC0);
+        writeShort(17);
+        writeByte(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        writeBytes(3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1);
+
+        writeMarker(0xC4);
+        writeShort(2 + 4 * 17 + DcValues.length * 2 + AcLuminanceValues.length + AcChrominanceValues.length);
+        writeHuffmanTable(0x00, DcLuminanceBits, DcValues);
+        writeHuffmanTable(0x10, AcLuminanceBits, AcLuminanceValues);
+        writeHuffmanTable(0x01, DcChrominanceBits, DcValues);
+        writeHuffmanTable(0x11, AcChrominanceBits, AcChrominanceValues);
+
+        writeMarker(0xDA);
+        writeShort(12);
+        writeBytes(3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0);
+    }
+
+    private void writeHuffmanTable(int tableClass, int[] bits, int[] values) throws IOException {
+        writeByte(tableClass);
+        for (int count : bits) {
+            writeByte(count);
+        }
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+
+    /**
+     * Encode the gathered band as one row of MCUs, replicating the last row
+     * and column into the padding
+     */
+    private void encodeBand() throws IOException {
+        for (int mcuX = 0; mcuX < mWidth; mcuX += McuSize) {
+            for (int blockY = 0; blockY < McuSize; blockY += BlockSize) {
+                for (int blockX = 0; blockX < McuSize; blockX += BlockSize) {
+                    loadLuminanceBlock(mcuX + blockX, blockY);
+                    mPreviousY = encodeBlock(mPreviousY, mLuminanceDivisors,
+                            mDcLuminanceCodes, mDcLuminanceLengths, mAcLuminanceCodes, mAcLuminanceLengths);
+                }
+            }
+            loadChrominanceBlocks(mcuX);
+            System.arraycopy(mCbBlock, 0, mBlock, 0, 64);
+            mPreviousCb = encodeBlock(mPreviousCb, mChrominanceDivisors,
+                    mDcChrominanceCodes, mDcChrominanceLengths, mAcChrominanceCodes, mAcChrominanceLengths);
+            System.arraycopy(mCrBlock, 0, mBlock, 0, 64);
+            mPreviousCr = encodeBlock(mPreviousCr, mChrominanceDivisors,
+                    mDcChrominanceCodes, mDcChrominanceLengths, mAcChrominanceCodes, mAcChrominanceLengths);
+        }
+        mBandRows = 0;
+    }
+
+    private int getPixel(int x, int y) {
+        return mBandPixels[Math.min(y, mBandRows - 1) * mWidth + Math.min(x, mWidth - 1)];
+    }
+
+    private void loadLuminanceBlock(int left, int top) {
+        for (int y = 0; y < BlockSize; y++) {
+            for (int x = 0; x < BlockSize; x++) {
+                int color = getPixel(left + x, top + y);
+                mBlock[y * BlockSize + x] = 0.299f * ((color >> 16) & 0xFF) + 0.587f * ((color >> 8) & 0xFF)
+                        + 0.114f * (color & 0xFF) - 128f;
+            }
+        }
+    }
+
+    /**
+     * Chroma of a 16x16 MCU, each sample the mean of 2x2 pixels
+     */
+    private void loadChrominanceBlocks(int left) {
+        for (int y = 0; y < BlockSize; y++) {
+            for (int x = 0; x < BlockSize; x++) {
+                int red   = 0;
+                int green = 0;
+                int blue  = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int color = getPixel(left + x * 2 + dx, y * 2 + dy);
+                        red   += (color >> 16) & 0xFF;
+                        green += (color >> 8) & 0xFF;
+                        blue  += color & 0xFF;
+                    }
+                }
+                mCbBlock[y * BlockSize + x] = (-0.168736f * red - 0.331264f * green + 0.5f * blue) * 0.25f;
+                mCrBlock[y * BlockSize + x] = (0.5f * red - 0.418688f * green - 0.081312f * blue) * 0.25f;
+            }
+        }
+    }
+
+    /**
+     * Transform, quantize and entropy code {@link #mBlock}
+     * @return the DC coefficient, to predict the next block of the component
+     */
+    private int encodeBlock(int previousDc, float[] divisors,
+                            int[] dcCodes, int[] dcLengths, int[] acCodes, int[] acLengths) throws IOException {
+        float[] block = mBlock;
+        forwardDct(block);
+        int[] coefficients = mCoefficients;
+        for (int i = 0; i < 64; i++) {
+            int natural = NaturalOrder[i];
+            int value   = Math.round(block[natural] * divisors[natural]);
+            coefficients[i] = Math.max(-MaxCoefficient, Math.min(MaxCoefficient, value));
+        }
+
+        int difference = coefficients[0] - previousDc;
+        int category   = getCategory(difference);
+        writeBits(dcCodes[category], dcLengths[category]);
+        if (category > 0) {
+            writeBits(difference < 0 ? difference - 1 : difference, category);
+        }
+
+        int run = 0;
+        for (int i = 1; i < 64; i++) {
+            int value = coefficients[i];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(acCodes[0xF0], acLengths[0xF0]);
+                run -= 16;
+            }
+            category = getCategory(value);
+            int symbol = (run << 4) | category;
+            writeBits(acCodes[symbol], acLengths[symbol]);
+            writeBits(value < 0 ? value - 1 : value, category);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acCodes[0x00], acLengths[0x00]);
+        }
+        return coefficients[0];
+    }
+
+    private static int getCategory(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * In place AAN forward DCT of an 8x8 block, rows then columns. The
+     * output is scaled, the quantization divisors undo the scaling.
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step   = pass == 0 ? 1 : BlockSize;
+            int stride = pass == 0 ? BlockSize : 1;
+            for (int line = 0; line < BlockSize; line++) {
+                int   o0    = line * stride;
+                int   o1    = o0 + step;
+                int   o2    = o1 + step;
+                int   o3    = o2 + step;
+                int   o4    = o3 + step;
+                int   o5    = o4 + step;
+                int   o6    = o5 + step;
+                int   o7    = o6 + step;
+                float tmp0  = data[o0] + data[o7];
+                float tmp7  = data[o0] - data[o7];
+                float tmp1  = data[o1] + data[o6];
+                float tmp6  = data[o1] - data[o6];
+                float tmp2  = data[o2] + data[o5];
+                float tmp5  = data[o2] - data[o5];
+                float tmp3  = data[o3] + data[o4];
+                float tmp4  = data[o3] - data[o4];
+
+                // Even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[o0] = tmp10 + tmp11;
+                data[o4] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[o2] = tmp13 + z1;
+                data[o6] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5  = (tmp10 - tmp12) * 0.382683433f;
+                float z2  = 0.541196100f * tmp10 + z5;
+                float z4  = 1.306562965f * tmp12 + z5;
+                float z3  = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[o5] = z13 + z2;
+                data[o3] = z13 - z2;
+                data[o1] = z11 + z4;
+                data[o7] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * Append the low <tt>length</tt> bits of <tt>bits</tt> to the entropy coded data, stuffing 0xFF bytes
+     */
+    private void writeBits(int bits, int length) throws IOException {
+        mBitBuffer = (mBitBuffer << length) | (bits & ((1 << length) - 1));
+        mBitCount += length;
+        while (mBitCount >= 8) {
+            int value = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+            writeByte(value);
+            if (value == 0xFF) {
+                writeByte(0);
+            }
+            mBitCount -= 8;
+        }
+        mBitBuffer &= (1 << mBitCount) - 1;
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        writeByte(0xFF);
+        writeByte(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeBytes(int... values) throws IOException {
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+
+    private void writeByte(int value) throws IOException {
+        if (mOutputLength == mOutputBuffer.length) {
+            flushOutputBuffer();
+        }
+        mOutputBuffer[mOutputLength++] = (byte) value;
+    }
+
+    private void flushOutputBuffer() throws IOException {
+        mOutput.write(mOutputBuffer, 0, mOutputLength);
+        mOutputLength = 0;
+    }
+
+}
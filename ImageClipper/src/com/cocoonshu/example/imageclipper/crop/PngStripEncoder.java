@@ -0,0 +1,159 @@
+package com.cocoonshu.example.imageclipper.crop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import android.graphics.Bitmap;
+
+/**
+ * Streaming PNG encoder. Rows are filtered and deflated as strips arrive
+ * and written out in fixed size IDAT chunks, so memory use is bounded by
+ * one row of pixels and one chunk buffer regardless of the image size.
+ */
+public class PngStripEncoder implements StripEncoder {
+
+    private static final byte[] Signature         = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] ChunkIHDR         = {'I', 'H', 'D', 'R'};
+    private static final byte[] ChunkIDAT         = {'I', 'D', 'A', 'T'};
+    private static final byte[] ChunkIEND         = {'I', 'E', 'N', 'D'};
+    private static final int    ColorTypeRGB      = 2;
+    private static final int    ColorTypeRGBA     = 6;
+    private static final int    FilterSub         = 1;
+    private static final int    ChunkBufferSize   = 64 * 1024;
+
+    private OutputStream mOutput        = null;
+    private Deflater     mDeflater      = null;
+    private CRC32        mCrc           = new CRC32();
+    private int          mWidth         = 0;
+    private int          mHeight        = 0;
+    private int          mBytesPerPixel = 0;
+    private int          mWrittenRows   = 0;
+    private int[]        mPixelRow      = null;
+    private byte[]       mRawRow        = null;
+    private byte[]       mChunkBuffer   = null;
+    private byte[]       mHeaderBuffer  = new byte[8];
+
+    private final int    mCompressionLevel;
+
+    public PngStripEncoder() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public PngStripEncoder(int compressionLevel) {
+        mCompressionLevel = compressionLevel;
+    }
+
+    @Override
+    public void begin(int width, int height, boolean hasAlpha, OutputStream output) throws IOException {
+        mOutput        = output;
+        mWidth         = width;
+        mHeight        = height;
+        mBytesPerPixel = hasAlpha ? 4 : 3;
+        mWrittenRows   = 0;
+        mPixelRow      = new int[width];
+        mRawRow        = new byte[1 + width * mBytesPerPixel];
+        mChunkBuffer   = new byte[ChunkBufferSize];
+        mDeflater      = new Deflater(mCompressionLevel);
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8]  = 8;                                         // Bit depth
+        header[9]  = (byte) (hasAlpha ? ColorTypeRGBA : ColorTypeRGB);
+        header[10] = 0;                                         // Compression
+        header[11] = 0;                                         // Filter
+        header[12] = 0;                                         // Interlace
+
+        mOutput.write(Signature);
+        writeChunk(ChunkIHDR, header, header.length);
+    }
+
+    @Override
+    public void writeStrip(Bitmap strip, int rows) throws IOException {
+        if (mWrittenRows + rows > mHeight) {
+            throw new IllegalStateException("Image overflow: " + (mWrittenRows + rows) + " > " + mHeight);
+        }
+        for (int row = 0; row < rows; row++) {
+            strip.getPixels(mPixelRow, 0, mWidth, 0, row, mWidth, 1);
+            filterRow();
+            mDeflater.setInput(mRawRow, 0, mRawRow.length);
+            while (!mDeflater.needsInput()) {
+                drainDeflater();
+            }
+        }
+        mWrittenRows += rows;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mWrittenRows != mHeight) {
+            throw new IllegalStateException("Image incomplete: " + mWrittenRows + " of " + mHeight + " rows");
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            drainDeflater();
+        }
+        writeChunk(ChunkIEND, mChunkBuffer, 0);
+        mOutput.flush();
+    }
+
+    @Override
+    public void release() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        mOutput      = null;
+        mPixelRow    = null;
+        mRawRow      = null;
+        mChunkBuffer = null;
+    }
+
+    private void filterRow() {
+        int[]  pixels        = mPixelRow;
+        byte[] raw           = mRawRow;
+        int    bytesPerPixel = mBytesPerPixel;
+        int    previous      = 0;
+        raw[0] = FilterSub;
+        for (int x = 0, offset = 1; x < mWidth; x++, offset += bytesPerPixel) {
+            int color = pixels[x];
+            raw[offset + 0] = (byte) ((color >> 16) - (previous >> 16));
+            raw[offset + 1] = (byte) ((color >> 8) - (previous >> 8));
+            raw[offset + 2] = (byte) (color - previous);
+            if (bytesPerPixel == 4) {
+                raw[offset + 3] = (byte) ((color >>> 24) - (previous >>> 24));
+            }
+            previous = color;
+        }
+    }
+
+    private void drainDeflater() throws IOException {
+        int length = mDeflater.deflate(mChunkBuffer, 0, mChunkBuffer.length);
+        if (length > 0) {
+            writeChunk(ChunkIDAT, mChunkBuffer, length);
+        }
+    }
+
+    private void writeChunk(byte[] type, byte[] data, int length) throws IOException {
+        writeInt(mHeaderBuffer, 0, length);
+        System.arraycopy(type, 0, mHeaderBuffer, 4, 4);
+        mOutput.write(mHeaderBuffer, 0, 8);
+        mOutput.write(data, 0, length);
+
+        mCrc.reset();
+        mCrc.update(type, 0, 4);
+        mCrc.update(data, 0, length);
+        writeInt(mHeaderBuffer, 0, (int) mCrc.getValue());
+        mOutput.write(mHeaderBuffer, 0, 4);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset + 0] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.cocoonshu.example.imageclipper.crop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+
+/**
+ * Encoder which receives an image as a sequence of horizontal strips,
+ * top to bottom, so the whole image never has to be held in memory
+ * as long as the output format allows it.
+ */
+public interface StripEncoder {
+
+    /**
+     * Start encoding an image of <tt>width</tt> x <tt>height</tt> pixels into <tt>output</tt>
+     * @param width
+     * @param height
+     * @param hasAlpha
+     * @param output
+     * @throws IOException
+     */
+    void begin(int width, int height, boolean hasAlpha, OutputStream output) throws IOException;
+
+    /**
+     * Append the first <tt>rows</tt> rows of <tt>strip</tt> to the image
+     * @param strip bitmap at least as wide as the image
+     * @param rows
+     * @throws IOException
+     */
+    void writeStrip(Bitmap strip, int rows) throws IOException;
+
+    /**
+     * Finish the image and flush all pending output. The output stream is not closed.
+     * @throws IOException
+     */
+    void finish() throws IOException;
+
+    /**
+     * Release resources held by this encoder, called also after failure or cancellation
+     */
+    void release();
+
+}
@@ -0,0 +1,223 @@
+package com.cocoonshu.example.imageclipper.view;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Byte bounded pool of mutable bitmaps, bucketed by allocation size, so
+ * tiles, previews and crop strips can be decoded into memory which is
+ * already allocated instead of churning the heap on every image switch.
+ * <p>
+ * On KitKat and later any pooled bitmap which is large enough is
+ * reconfigured to the requested size; before that only bitmaps of the
+ * exact size and config are handed out, which is what
+ * {@link BitmapFactory.Options#inBitmap} accepts there. The least recently
+ * released bitmaps are recycled when the pool exceeds its byte budget.
+ * All methods are thread safe.
+ */
+public class BitmapPool {
+
+    private static final int     DefaultMemoryFraction = 16;
+    // A reused bitmap may waste at most this much of its allocation
+    private static final int     MaxSizeRatio          = 2;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+    private final LinkedList<Bitmap> mLruOrder             = new LinkedList<Bitmap>();
+    private final int            mMaxBytes;
+    private int                  mBytes                = 0;
+    private int                  mHitCount             = 0;
+    private int                  mMissCount            = 0;
+    private int                  mEvictionCount        = 0;
+
+    public BitmapPool(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Create a pool bounded to a fraction of the application heap limit
+     */
+    public static BitmapPool createDefault() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        return new BitmapPool((int) Math.min(Integer.MAX_VALUE, maxMemory / DefaultMemoryFraction));
+    }
+
+    /**
+     * Take a pooled bitmap of exactly <tt>width</tt> x <tt>height</tt>, with undefined content
+     * @return the bitmap, or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int     byteCount = width * height * getBytesPerPixel(config);
+        boolean isReconfigurable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        Integer bucketSize = mBuckets.ceilingKey(byteCount);
+        while (bucketSize != null && bucketSize <= byteCount * MaxSizeRatio) {
+            if (!isReconfigurable && bucketSize != byteCount) {
+                break;
+            }
+            ArrayList<Bitmap> bucket = mBuckets.get(bucketSize);
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = bucket.get(i);
+                if (isReconfigurable) {
+                    reconfigure(bitmap, width, height, config);
+                } else if (bitmap.getWidth() != width || bitmap.getHeight() != height
+                        || bitmap.getConfig() != config) {
+                    continue;
+                }
+                removeFromBucket(bucketSize, bucket, i);
+                mLruOrder.remove(bitmap);
+                mBytes -= bucketSize;
+                mHitCount++;
+                return bitmap;
+            }
+            bucketSize = mBuckets.higherKey(bucketSize);
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Take a pooled bitmap, or allocate a new mutable one if none fits
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Let the next decode with <tt>options</tt> write into a pooled bitmap, when the
+     * platform can reuse one for a decode of <tt>width</tt> x <tt>height</tt> output pixels.
+     * The caller should retry without {@link BitmapFactory.Options#inBitmap} if the decode
+     * rejects it with an {@link IllegalArgumentException}.
+     * @param options
+     * @param width   expected decoded width
+     * @param height  expected decoded height
+     * @param isRegionDecode true for {@link android.graphics.BitmapRegionDecoder}, which
+     *                       keeps the size of the reused bitmap instead of resizing it
+     * @return true if a pooled bitmap was attached
+     */
+    public boolean attachInBitmap(BitmapFactory.Options options, int width, int height, boolean isRegionDecode) {
+        options.inMutable = true;
+        if (isRegionDecode ? Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                : (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && options.inSampleSize > 1)) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = get(width, height, config);
+        return options.inBitmap != null;
+    }
+
+    /**
+     * Give a bitmap back to the pool. Immutable bitmaps, and bitmaps which do not fit
+     * in the budget, are recycled instead. The caller must not use it afterwards.
+     * @param bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int byteCount = getAllocationByteCount(bitmap);
+        if (!bitmap.isMutable() || byteCount > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(byteCount);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(byteCount, bucket);
+        }
+        bucket.add(bitmap);
+        mLruOrder.addLast(bitmap);
+        mBytes += byteCount;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Recycle every pooled bitmap
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getBytes() {
+        return mBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    private void trimToSize(int maxBytes) {
+        while (mBytes > maxBytes && !mLruOrder.isEmpty()) {
+            Bitmap            eldest    = mLruOrder.removeFirst();
+            int               byteCount = getAllocationByteCount(eldest);
+            ArrayList<Bitmap> bucket    = mBuckets.get(byteCount);
+            removeFromBucket(byteCount, bucket, bucket.indexOf(eldest));
+            mBytes -= byteCount;
+            mEvictionCount++;
+            eldest.recycle();
+        }
+    }
+
+    private void removeFromBucket(int bucketSize, ArrayList<Bitmap> bucket, int index) {
+        bucket.remove(index);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(bucketSize);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else {
+            return 4;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("BitmapPool[").append(mBytes).append('/').append(mMaxBytes).append(" bytes in ")
+               .append(mLruOrder.size()).append(" bitmaps, ").append(mBuckets.size()).append(" buckets, ")
+               .append(mHitCount).append(" hits, ").append(mMissCount).append(" misses, ")
+               .append(mEvictionCount).append(" evictions]");
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.cocoonshu.example.imageclipper.view;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Posts one callback per display frame. Uses the vsync aligned
+ * Choreographer where available, and falls back to a main thread
+ * Handler ticking at the nominal 60Hz frame interval below API 16.
+ * Scheduling never allocates, so it can run on every frame.
+ */
+public class FrameScheduler {
+
+    private static final long    FallbackFrameDelayMS = 16;
+
+    public interface OnFrameListener {
+        /**
+         * Called on the main thread once per display frame
+         * @param frameTimeNanos frame timestamp on the {@link System#nanoTime()} clock
+         */
+        void onFrame(long frameTimeNanos);
+    }
+
+    private final OnFrameListener mListener;
+    private final Object          mFrameCallback;
+    private final Handler         mHandler;
+    private final Runnable        mFrameRunnable;
+    private boolean               mIsScheduled = false;
+
+    public FrameScheduler(OnFrameListener listener) {
+        mListener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameCallback = createFrameCallback();
+            mHandler       = null;
+            mFrameRunnable = null;
+        } else {
+            mFrameCallback = null;
+            mHandler       = new Handler(Looper.getMainLooper());
+            mFrameRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    dispatchFrame(System.nanoTime());
+                }
+
+            };
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Object createFrameCallback() {
+        return new Choreographer.FrameCallback() {
+
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                dispatchFrame(frameTimeNanos);
+            }
+
+        };
+    }
+
+    public boolean isScheduled() {
+        return mIsScheduled;
+    }
+
+    /**
+     * Request a callback for the next frame, does nothing if one is pending
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void scheduleFrame() {
+        if (mIsScheduled) {
+            return;
+        }
+        mIsScheduled = true;
+        if (mFrameCallback != null) {
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        } else {
+            mHandler.postDelayed(mFrameRunnable, FallbackFrameDelayMS);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void cancel() {
+        if (!mIsScheduled) {
+            return;
+        }
+        mIsScheduled = false;
+        if (mFrameCallback != null) {
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        } else {
+            mHandler.removeCallbacks(mFrameRunnable);
+        }
+    }
+
+    private void dispatchFrame(long frameTimeNanos) {
+        mIsScheduled = false;
+        mListener.onFrame(frameTimeNanos);
+    }
+
+}
@@ -1,37 +1,41 @@
 package com.cocoonshu.example.imageclipper.view;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.cocoonshu.example.imageclipper.R;
+import com.cocoonshu.example.imageclipper.core.ClipController;
+import com.cocoonshu.example.imageclipper.core.ClipGeometry;
+import com.cocoonshu.example.imageclipper.core.FrameMetrics;
+import com.cocoonshu.example.imageclipper.core.MotionTrace;
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+import com.cocoonshu.example.imageclipper.core.SnapIndex;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.GestureDetector.OnGestureListener;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.ScaleGestureDetector.SimpleOnScaleGestureListener;
 import android.view.View;
 
-public class ImageClipper extends View implements OnGestureListener {
+public class ImageClipper extends View implements OnGestureListener, ImageTransform.OnTransformChangedListener,
+		FrameScheduler.OnFrameListener, ClipController.OnFrameChangedListener {
 
 	private static final String TAG = "ImageClipper";
 	
-    private static final int     MOTION_ACTION_NONE              = 0b0000;
-    private static final int     MOTION_ACTION_LEFT              = 0b0001;
-    private static final int     MOTION_ACTION_TOP               = 0b0010;
-    private static final int     MOTION_ACTION_RIGHT             = 0b0100;
-    private static final int     MOTION_ACTION_BOTTOM            = 0b1000;
-    private static final int     MOTION_ACTION_LEFT_TOP          = 0b0011;
-    private static final int     MOTION_ACTION_TOP_RIGHT         = 0b0110;
-    private static final int     MOTION_ACTION_RIGHT_BOTTOM      = 0b1100;
-    private static final int     MOTION_ACTION_BOTTOM_LEFT       = 0b1001;
-    private static final int     MOTION_ACTION_MOVE              = 0b1111;
-
     private static final boolean ClipFrameAllowFullareaTouchable = true;
     private static final float   DefaultGridLineWidthDP          = 1f;
     private static final float   DefaultFrameLineWidthDP         = 3f;
@@ -40,19 +44,24 @@ public class ImageClipper extends View implements OnGestureListener {
     private static final int     DefaultGridLineColor            = 0x99FFFFFF;
     private static final int     DefaultFrameLineColor           = 0x99FFFFFF;
     private static final int     DefaultCornelLineColor          = 0xFFFFFFFF;
-    private static final int     WidthCount                      = 3;
-    private static final int     HeightCount                     = 3;
-    private static final int     GridLineCount                   = (WidthCount - 1) * (HeightCount - 1) * 4;
-    private static final int     FrameLineCount                  = 2 * 2 * 4;
-    private static final int     CornerLineCount                 = (WidthCount + HeightCount) * 2 * 2 * 2;
+    private static final int     DefaultMaskColor                = 0x99000000;
+    private static final float   DefaultSnapDistanceDP           = 8f;
+    private static final long    NanosPerMilli                   = 1000000L;
+    private static final int     DefaultGridColumnCount          = 3;
+    private static final int     DefaultGridRowCount             = 3;
 
     private float                mGridLineWidth                  = 0;
     private float                mFrameLineWidth                 = 0;
     private float                mCornerLineWidth                = 0;
     private float                mCornerLineHeight               = 0;
-    private float[]              mGridLines                      = null;
-    private float[]              mFrameLines                     = null;
-    private float[]              mCornerLines                    = null;
+    private int                  mGridColumnCount                = DefaultGridColumnCount;
+    private int                  mGridRowCount                   = DefaultGridRowCount;
+    private int                  mGridStyle                      = ClipGeometry.GRID_STYLE_UNIFORM;
+    private float                mAspectRatio                    = ClipGeometry.ASPECT_RATIO_FREE;
+    private float[]              mLines                          = null;
+    private boolean              mIsLinesBatchable               = false;
+    private float[]              mMaskRects                      = null;
+    private int                  mMaskColor                      = DefaultMaskColor;
 
     private ColorStateList       mGridLineColor                  = null;
     private ColorStateList       mFrameLineColor                 = null;
@@ -61,13 +70,50 @@ public class ImageClipper extends View implements OnGestureListener {
     private Paint                mGridLinePaint                  = null;
     private Paint                mFrameLinePaint                 = null;
     private Paint                mCornerLinePaint                = null;
+    private Paint                mMaskPaint                      = null;
+    private Paint                mRegionLinePaint                = null;
 
     private boolean              mIsUnderTouched                 = false;
+    private boolean              mIsLinesDirty                   = true;
     private int[]                mCurrentViewState               = ENABLED_STATE_SET;
     private GestureDetector      mGestureDetector                = null;
+    private ScaleGestureDetector mScaleGestureDetector           = null;
+    private ImageTransform       mImageTransform                 = null;
+    private float                mLastFocusX                     = 0;
+    private float                mLastFocusY                     = 0;
     private RectF                mFrameRect                      = new RectF();
     private RectF                mFrameLimitRect                 = new RectF();
-    private int                  mMotionActions                  = MOTION_ACTION_NONE;
+    private RectF                mImageBoundsRect                = new RectF();
+    private RectF                mPreviousFrameRect              = new RectF();
+    private RectF                mDirtyRect                      = new RectF();
+    private RectF                mMappingRect                    = new RectF();
+    private ClipGeometry         mGeometry                       = new ClipGeometry();
+    private ClipController       mClipController                 = new ClipController(mGeometry);
+    private FrameScheduler       mFrameScheduler                 = new FrameScheduler(this);
+    private FrameMetrics         mFrameMetrics                   = null;
+    private MotionTrace          mMotionTrace                    = null;
+    private long                 mHandlingEventTime              = -1;
+    private long                 mPendingEventTime               = -1;
+    private long                 mCoalescedEventTime             = -1;
+    private RectF                mRegionRect                     = new RectF();
+    private ArrayList<NormalizedRect> mClipRegions               = new ArrayList<NormalizedRect>();
+    private NormalizedRect       mNormalizedFrame                = new NormalizedRect();
+    private boolean              mHasNormalizedFrame             = false;
+    private boolean              mIsFrameSuggestible             = false;
+    private float                mSnapDistance                   = 0;
+    private int                  mImageWidth                     = 0;
+    private int                  mImageHeight                    = 0;
+    private float                mImageRotation                  = 0;
+    private boolean              mIsRestorePending               = false;
+    private OnClipFrameChangedListener mOnClipFrameChangedListener = null;
+
+    public interface OnClipFrameChangedListener {
+    	/**
+    	 * Called when the clip frame is moved or resized
+    	 * @param clipper
+    	 */
+    	void onClipFrameChanged(ImageClipper clipper);
+    }
 	
 	public ImageClipper(Context context) {
 		this(context, null);
@@ -81,34 +127,293 @@ public class ImageClipper extends View implements OnGestureListener {
 		super(context, attrs, defStyle);
 		setupDefaultValues(context);
 		setupLayoutValues(context, attrs, defStyle);
+		setupPaints();
 	}
 
 	private void setupDefaultValues(Context context) {
 		float density = context.getResources().getDisplayMetrics().density;
 		
-		mGridLines        = new float[GridLineCount];
-        mFrameLines       = new float[FrameLineCount];
-        mCornerLines      = new float[CornerLineCount];
-		
 		mGridLineWidth    = DefaultGridLineWidthDP * density;
 		mFrameLineWidth   = DefaultFrameLineWidthDP * density;
 		mCornerLineWidth  = DefaultCornerLineWidthDP * density;
 		mCornerLineHeight = DefaultCornerLineHeightDP * density;
+		mSnapDistance     = DefaultSnapDistanceDP * density;
 		mGridLineColor    = ColorStateList.valueOf(DefaultGridLineColor);
 		mFrameLineColor   = ColorStateList.valueOf(DefaultFrameLineColor);
 		mCornerLineColor  = ColorStateList.valueOf(DefaultCornelLineColor);
 		mGridLinePaint    = new Paint();
 		mFrameLinePaint   = new Paint();
 		mCornerLinePaint  = new Paint();
+		mMaskPaint        = new Paint();
+		mRegionLinePaint  = new Paint();
 		mGestureDetector  = new GestureDetector(context, this);
+		mClipController.setOnFrameChangedListener(this);
+		mScaleGestureDetector = new ScaleGestureDetector(context, new SimpleOnScaleGestureListener() {
+			
+			@Override
+			public boolean onScaleBegin(ScaleGestureDetector detector) {
+				mLastFocusX = detector.getFocusX();
+				mLastFocusY = detector.getFocusY();
+				return mImageTransform != null;
+			}
+			
+			@Override
+			public boolean onScale(ScaleGestureDetector detector) {
+				float focusX = detector.getFocusX();
+				float focusY = detector.getFocusY();
+				mImageTransform.zoom(detector.getScaleFactor(), focusX, focusY);
+				mImageTransform.pan(focusX - mLastFocusX, focusY - mLastFocusY);
+				mLastFocusX = focusX;
+				mLastFocusY = focusY;
+				return true;
+			}
+			
+		});
 		
 		mGridLinePaint.setStyle(Style.STROKE);
 		mFrameLinePaint.setStyle(Style.STROKE);
 		mCornerLinePaint.setStyle(Style.STROKE);
-		
+		mMaskPaint.setStyle(Style.FILL);
+		mRegionLinePaint.setStyle(Style.STROKE);
+	}
+
+	private void setupPaints() {
+		mGeometry.setLineMetrics(mFrameLineWidth, mCornerLineHeight);
+		mGeometry.setFullAreaTouchable(ClipFrameAllowFullareaTouchable);
+		mGeometry.setAspectRatio(mAspectRatio);
+		setGrid(mGridColumnCount, mGridRowCount, mGridStyle);
+		mMaskRects = new float[mGeometry.getMaskBufferSize()];
+		mMaskPaint.setColor(mMaskColor);
 		mGridLinePaint.setStrokeWidth(mGridLineWidth);
 		mFrameLinePaint.setStrokeWidth(mFrameLineWidth);
 		mCornerLinePaint.setStrokeWidth(mCornerLineWidth);
+		// Stored regions may reach outside the frame, which is all a view state change redraws,
+		// so they keep the default grid color whatever the state
+		mRegionLinePaint.setStrokeWidth(mGridLineWidth);
+		mRegionLinePaint.setColor(mGridLineColor.getDefaultColor());
+		updateLineColors();
+	}
+
+	/**
+	 * Resolve line colors for the current view state. Colors are only
+	 * resolved when the state changes, never per frame.
+	 */
+	private void updateLineColors() {
+		mGridLinePaint.setColor(mGridLineColor.getColorForState(
+				mCurrentViewState, mGridLineColor.getDefaultColor()));
+		mFrameLinePaint.setColor(mFrameLineColor.getColorForState(
+				mCurrentViewState, mFrameLineColor.getDefaultColor()));
+		mCornerLinePaint.setColor(mCornerLineColor.getColorForState(
+				mCurrentViewState, mCornerLineColor.getDefaultColor()));
+		
+		// When all strokes look the same, frame, grid and corners go out in one drawLines call
+		mIsLinesBatchable = mFrameLinePaint.getColor() == mGridLinePaint.getColor()
+				&& mFrameLinePaint.getColor() == mCornerLinePaint.getColor()
+				&& mFrameLineWidth == mGridLineWidth
+				&& mFrameLineWidth == mCornerLineWidth;
+	}
+
+	/**
+	 * Set the grid drawn inside the clip frame
+	 * @param columnCount number of columns, at least 1
+	 * @param rowCount    number of rows, at least 1
+	 * @param gridStyle   {@link ClipGeometry#GRID_STYLE_UNIFORM} or {@link ClipGeometry#GRID_STYLE_GOLDEN_RATIO}
+	 */
+	public void setGrid(int columnCount, int rowCount, int gridStyle) {
+		mGeometry.setGrid(columnCount, rowCount, gridStyle);
+		mGridColumnCount = columnCount;
+		mGridRowCount    = rowCount;
+		mGridStyle       = gridStyle;
+		
+		// Line buffer is reused across draws, only reallocated when the grid size changes
+		int lineBufferSize = mGeometry.getLineBufferSize();
+		if (mLines == null || mLines.length != lineBufferSize) {
+			mLines = new float[lineBufferSize];
+		}
+		mIsLinesDirty = true;
+		invalidate();
+	}
+
+	public int getGridColumnCount() {
+		return mGridColumnCount;
+	}
+
+	public int getGridRowCount() {
+		return mGridRowCount;
+	}
+
+	public int getGridStyle() {
+		return mGridStyle;
+	}
+
+	/**
+	 * Store the current clip frame as an extra crop region, so several crops
+	 * can be exported from one decode pass. Stored regions are outlined and
+	 * follow the image when it is zoomed or panned.
+	 * @return index of the stored region
+	 */
+	public int addClipRegion() {
+		mClipRegions.add(getNormalizedFrame(new NormalizedRect()));
+		invalidate();
+		return mClipRegions.size() - 1;
+	}
+
+	public void removeClipRegion(int index) {
+		mClipRegions.remove(index);
+		invalidate();
+	}
+
+	public void clearClipRegions() {
+		if (mClipRegions.isEmpty()) {
+			return;
+		}
+		mClipRegions.clear();
+		invalidate();
+	}
+
+	public int getClipRegionCount() {
+		return mClipRegions.size();
+	}
+
+	/**
+	 * @return copies of the stored regions, normalized like {@link #getNormalizedFrame(NormalizedRect)}
+	 */
+	public List<NormalizedRect> getClipRegions() {
+		ArrayList<NormalizedRect> regions = new ArrayList<NormalizedRect>(mClipRegions.size());
+		for (NormalizedRect region : mClipRegions) {
+			regions.add(new NormalizedRect(region));
+		}
+		return regions;
+	}
+
+	/**
+	 * Map a normalized region back into view coordinates, the inverse of {@link #getNormalizedFrame(NormalizedRect)}
+	 */
+	private RectF mapRegionToView(NormalizedRect region, RectF out) {
+		if (mImageTransform == null || !mImageTransform.isReady()) {
+			float width  = mFrameLimitRect.width();
+			float height = mFrameLimitRect.height();
+			out.set(mFrameLimitRect.left + region.left * width, mFrameLimitRect.top + region.top * height,
+					mFrameLimitRect.left + region.right * width, mFrameLimitRect.top + region.bottom * height);
+			return out;
+		}
+		float width  = mImageTransform.getRotatedImageWidth();
+		float height = mImageTransform.getRotatedImageHeight();
+		out.set(region.left * width, region.top * height, region.right * width, region.bottom * height);
+		mImageTransform.getDisplayMatrix().mapRect(out);
+		return out;
+	}
+
+	/**
+	 * Turn the built-in frame time and touch latency histograms on or off.
+	 * Nothing is timed while they are off.
+	 * @param isEnabled
+	 */
+	public void setMetricsEnabled(boolean isEnabled) {
+		if (isEnabled && mFrameMetrics == null) {
+			mFrameMetrics = new FrameMetrics();
+		} else if (!isEnabled) {
+			mFrameMetrics = null;
+		}
+		mPendingEventTime = -1;
+	}
+
+	/**
+	 * @return the recorded histograms, or null if metrics are disabled
+	 */
+	public FrameMetrics getFrameMetrics() {
+		return mFrameMetrics;
+	}
+
+	/**
+	 * Turn recording of touch events, display frames and gesture decisions
+	 * on or off. The trace replays the frame gestures off device, see
+	 * {@link MotionTrace}. Nothing is recorded while it is off.
+	 * @param isEnabled
+	 */
+	public void setMotionTraceEnabled(boolean isEnabled) {
+		if (isEnabled && mMotionTrace == null) {
+			mMotionTrace = new MotionTrace();
+		} else if (!isEnabled) {
+			mMotionTrace = null;
+		}
+	}
+
+	/**
+	 * @return the trace recorded so far, or null if recording is disabled
+	 */
+	public MotionTrace getMotionTrace() {
+		return mMotionTrace;
+	}
+
+	private void recordMotionEvent(MotionTrace trace, MotionEvent event) {
+		int action = event.getActionMasked();
+		if (action == MotionEvent.ACTION_DOWN) {
+			// Replays start from the geometry the first gesture found
+			trace.setGeometry(mGeometry, getWidth(), getHeight());
+		} else if (!trace.hasGeometry()) {
+			return;
+		}
+		trace.beginMotion(action, event.getPointerCount());
+		int historySize = event.getHistorySize();
+		for (int i = 0; i < historySize; i++) {
+			trace.addSample(event.getHistoricalEventTime(i), event.getHistoricalX(i), event.getHistoricalY(i));
+		}
+		trace.addSample(event.getEventTime(), event.getX(), event.getY());
+	}
+
+	/**
+	 * Set the color dimming the image outside the clip frame
+	 * @param maskColor ARGB color, fully transparent to disable the mask
+	 */
+	public void setMaskColor(int maskColor) {
+		if (mMaskColor == maskColor) {
+			return;
+		}
+		mMaskColor = maskColor;
+		mMaskPaint.setColor(maskColor);
+		invalidate();
+	}
+
+	public int getMaskColor() {
+		return mMaskColor;
+	}
+
+	/**
+	 * Lock the clip frame to a width / height ratio, the frame is reset to the
+	 * largest frame of that ratio inside the image
+	 * @param aspectRatio width / height, or {@link ClipGeometry#ASPECT_RATIO_FREE}
+	 */
+	public void setAspectRatio(float aspectRatio) {
+		mGeometry.setAspectRatio(aspectRatio);
+		mAspectRatio = aspectRatio;
+		stopFrameAnimation();
+		resetClipFrame(getMeasuredWidth(), getMeasuredHeight());
+		notifyClipFrameChanged();
+		invalidate();
+	}
+
+	/**
+	 * Lock the clip frame to <tt>width</tt> : <tt>height</tt>
+	 */
+	public void setAspectRatio(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid aspect ratio: " + width + ":" + height);
+		}
+		setAspectRatio((float) width / height);
+	}
+
+	public float getAspectRatio() {
+		return mAspectRatio;
+	}
+
+	private void setViewState(int[] viewState) {
+		if (mCurrentViewState == viewState) {
+			return;
+		}
+		mCurrentViewState = viewState;
+		updateLineColors();
+		invalidateFrame(mFrameRect, mFrameRect);
 	}
 	
 	private void setupLayoutValues(Context context, AttributeSet attrs, int defStyle) {
@@ -129,6 +434,18 @@ public class ImageClipper extends View implements OnGestureListener {
             case R.styleable.ImageClipper_cornerLineHeight:
             	mCornerLineHeight = typedArray.getDimension(attributeKey, mCornerLineHeight);
                 break;
+            case R.styleable.ImageClipper_gridColumns:
+            	mGridColumnCount = Math.max(1, typedArray.getInt(attributeKey, mGridColumnCount));
+                break;
+            case R.styleable.ImageClipper_gridRows:
+            	mGridRowCount = Math.max(1, typedArray.getInt(attributeKey, mGridRowCount));
+                break;
+            case R.styleable.ImageClipper_gridStyle:
+            	mGridStyle = typedArray.getInt(attributeKey, mGridStyle);
+                break;
+            case R.styleable.ImageClipper_aspectRatio:
+            	mAspectRatio = Math.max(ClipGeometry.ASPECT_RATIO_FREE, typedArray.getFloat(attributeKey, mAspectRatio));
+                break;
             case R.styleable.ImageClipper_lineColor:
             	ColorStateList lineColor = typedArray.getColorStateList(attributeKey);
             	if (lineColor != null) {
@@ -141,6 +458,9 @@ public class ImageClipper extends View implements OnGestureListener {
             		mFrameLineColor = frameLineColor;
             	}
                 break;
+            case R.styleable.ImageClipper_maskColor:
+            	mMaskColor = typedArray.getColor(attributeKey, mMaskColor);
+                break;
             case R.styleable.ImageClipper_cornerColor:
             	ColorStateList cornerLineColor = typedArray.getColorStateList(attributeKey);
             	if (cornerLineColor != null) {
@@ -152,6 +472,107 @@ public class ImageClipper extends View implements OnGestureListener {
         typedArray.recycle();
 	}
 
+	public void setOnClipFrameChangedListener(OnClipFrameChangedListener listener) {
+		mOnClipFrameChangedListener = listener;
+	}
+
+	/**
+	 * Get the current clip frame, normalized against the frame limit area, or
+	 * against the bounding box of the rotated image when an image transform is set
+	 * @param out
+	 * @return out
+	 */
+	public NormalizedRect getNormalizedFrame(NormalizedRect out) {
+		if (mImageTransform == null || !mImageTransform.isReady()) {
+			return mGeometry.getNormalizedFrame(out);
+		}
+		
+		// Normalize against the rotated image, so zoom and pan don't matter. It is the
+		// source image when there is no rotation, see ImageTransform#getRotation()
+		mMappingRect.set(mFrameRect);
+		mImageTransform.mapViewToRotatedImage(mMappingRect);
+		return out.setFromFrame(
+				mMappingRect.left, mMappingRect.top, mMappingRect.right, mMappingRect.bottom,
+				0, 0, mImageTransform.getRotatedImageWidth(), mImageTransform.getRotatedImageHeight());
+	}
+
+	/**
+	 * Share the image transform with the image layer. Multi-touch gestures then
+	 * zoom and pan the image, and the clip frame is limited to the displayed image.
+	 * @param transform
+	 */
+	public void setImageTransform(ImageTransform transform) {
+		if (mImageTransform != null) {
+			mImageTransform.removeOnTransformChangedListener(this);
+		}
+		mImageTransform = transform;
+		if (mImageTransform != null) {
+			mImageTransform.addOnTransformChangedListener(this);
+			if (mImageTransform.isReady()) {
+				onTransformReset(mImageTransform);
+			}
+		}
+	}
+
+	public ImageTransform getImageTransform() {
+		return mImageTransform;
+	}
+
+	@Override
+	public void onTransformReset(ImageTransform transform) {
+		boolean isSameImage = transform.getImageWidth() == mImageWidth && transform.getImageHeight() == mImageHeight;
+		boolean isSameRotation = transform.getRotation() == mImageRotation;
+		if (!transform.isReady()) {
+			if (!mIsRestorePending) {
+				mImageWidth    = transform.getImageWidth();
+				mImageHeight   = transform.getImageHeight();
+				mImageRotation = transform.getRotation();
+			}
+			return;
+		}
+		mImageWidth       = transform.getImageWidth();
+		mImageHeight      = transform.getImageHeight();
+		mImageRotation    = transform.getRotation();
+		mIsRestorePending = false;
+		if (!isSameImage || !isSameRotation) {
+			// A new image starts with a new frame, a straightened one with the largest frame inside it
+			setImageBounds(transform.getDisplayBounds(mMappingRect));
+			return;
+		}
+		
+		// Only the view size changed, the frame keeps its place on the image
+		transform.getDisplayBounds(mImageBoundsRect);
+		stopFrameAnimation();
+		if (remapClipFrame(getWidth(), getHeight())) {
+			dispatchClipFrameChanged();
+			invalidate();
+		}
+	}
+
+	@Override
+	public void onTransformChanged(ImageTransform transform) {
+		if (!mClipRegions.isEmpty()) {
+			// Stored regions move with the image
+			invalidate();
+		}
+		
+		// Keep the frame where it is on screen, only pull it back inside the image
+		transform.getDisplayBounds(mImageBoundsRect);
+		updateSnapMapping();
+		mFrameLimitRect.set(0, 0, getWidth(), getHeight());
+		if (!mFrameLimitRect.intersect(mImageBoundsRect)) {
+			return;
+		}
+		mGeometry.setLimit(mFrameLimitRect.left, mFrameLimitRect.top, mFrameLimitRect.right, mFrameLimitRect.bottom);
+		updateRotatedLimit();
+		mPreviousFrameRect.set(mFrameRect);
+		if (mGeometry.constrainToLimit()) {
+			syncFrameRect();
+			invalidateFrame(mPreviousFrameRect, mFrameRect);
+		}
+		notifyClipFrameChanged();
+	}
+
 	@Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         int backgroundWidth  = 0;
@@ -196,163 +617,412 @@ public class ImageClipper extends View implements OnGestureListener {
         }
         
         setMeasuredDimension(measuredWidth, measuredHeight);
-        mFrameLimitRect.set(0, 0, measuredWidth, measuredHeight);
-        mFrameRect.set(0, 0, measuredWidth, measuredHeight);
-        mFrameRect.inset(
-        		Math.max(mCornerLineWidth, mFrameLineWidth) * 0.5f,
-        		Math.max(mCornerLineWidth, mFrameLineWidth) * 0.5f);
     }
+
+	@Override
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		super.onSizeChanged(width, height, oldWidth, oldHeight);
+		stopFrameAnimation();
+		if (remapClipFrame(width, height)) {
+			dispatchClipFrameChanged();
+		}
+	}
+
+	/**
+	 * Limit the clip frame to the area where the image is displayed
+	 * @param imageBounds image bounds in view coordinates, or null to use the whole view
+	 */
+	public void setImageBounds(RectF imageBounds) {
+		if (imageBounds == null) {
+			mImageBoundsRect.setEmpty();
+		} else {
+			mImageBoundsRect.set(imageBounds);
+		}
+		resetClipFrame(getMeasuredWidth(), getMeasuredHeight());
+		notifyClipFrameChanged();
+		invalidate();
+	}
+
+	/**
+	 * The frame was changed on purpose: remember it in normalized form, so
+	 * relayouts can put it back, then tell the listener
+	 */
+	private void notifyClipFrameChanged() {
+		getNormalizedFrame(mNormalizedFrame);
+		mHasNormalizedFrame = true;
+		dispatchClipFrameChanged();
+	}
+
+	private void dispatchClipFrameChanged() {
+		if (mOnClipFrameChangedListener != null) {
+			mOnClipFrameChangedListener.onClipFrameChanged(this);
+		}
+	}
+
+	/**
+	 * Set the clip frame from normalized coordinates, as returned by {@link #getNormalizedFrame(NormalizedRect)}
+	 * @param frame
+	 */
+	public void setNormalizedFrame(NormalizedRect frame) {
+		mNormalizedFrame.set(frame);
+		mHasNormalizedFrame = true;
+		mIsFrameSuggestible = false;
+		stopFrameAnimation();
+		if (remapClipFrame(getWidth(), getHeight())) {
+			dispatchClipFrameChanged();
+			invalidate();
+		}
+	}
+
+	/**
+	 * Offer an initial clip frame, such as one from
+	 * {@link com.cocoonshu.example.imageclipper.core.AutoCropEngine}. It is only
+	 * taken while the frame is still the default one of the current image, so
+	 * a late suggestion never overrides the user.
+	 * @param frame
+	 * @return true if the suggestion has been applied
+	 */
+	public boolean suggestClipFrame(NormalizedRect frame) {
+		if (!mIsFrameSuggestible) {
+			return false;
+		}
+		setNormalizedFrame(frame);
+		mIsFrameSuggestible = true;
+		return true;
+	}
+
+	private void updateFrameLimit(int width, int height) {
+		mFrameLimitRect.set(0, 0, width, height);
+		if (!mImageBoundsRect.isEmpty() && !mFrameLimitRect.intersect(mImageBoundsRect)) {
+			mFrameLimitRect.set(0, 0, width, height);
+		}
+		mGeometry.setLimit(mFrameLimitRect.left, mFrameLimitRect.top, mFrameLimitRect.right, mFrameLimitRect.bottom);
+		updateRotatedLimit();
+		updateSnapMapping();
+	}
+
+	/**
+	 * Keep the frame inside the rotated image, the limit area only bounds its bounding box
+	 */
+	private void updateRotatedLimit() {
+		if (mImageTransform == null || !mImageTransform.isReady() || mImageTransform.getRotation() == 0
+				|| mImageBoundsRect.isEmpty()) {
+			mGeometry.setRotatedLimit(0, 0, 0, 0, 0);
+			return;
+		}
+		float scale = mImageTransform.getScale();
+		mGeometry.setRotatedLimit(mImageBoundsRect.centerX(), mImageBoundsRect.centerY(),
+				mImageTransform.getImageWidth() * scale * 0.5f, mImageTransform.getImageHeight() * scale * 0.5f,
+				(float) Math.toRadians(mImageTransform.getRotation()));
+	}
+
+	/**
+	 * Snap dragged frame edges to strong image edges and grid lines, see
+	 * {@link SnapIndex#build(int[], int, int, int, int, int, int)}. The index is
+	 * normalized to the image, so it stays valid across zoom and pan.
+	 * @param index the index of the current image, or null to stop snapping
+	 */
+	public void setSnapIndex(SnapIndex index) {
+		mGeometry.setSnapIndex(index, mSnapDistance);
+		updateSnapMapping();
+	}
+
+	public SnapIndex getSnapIndex() {
+		return mGeometry.getSnapIndex();
+	}
+
+	private void updateSnapMapping() {
+		if (mImageTransform != null && mImageTransform.getRotation() != 0) {
+			// The index follows the source image axes, which no longer line up with the frame
+			mGeometry.setSnapMapping(0, 0, 0, 0);
+			return;
+		}
+		RectF imageArea = mImageBoundsRect.isEmpty() ? mFrameLimitRect : mImageBoundsRect;
+		mGeometry.setSnapMapping(imageArea.left, imageArea.top, imageArea.width(), imageArea.height());
+	}
+
+	private void resetClipFrame(int width, int height) {
+		updateFrameLimit(width, height);
+		mFrameRect.set(mFrameLimitRect);
+		mFrameRect.inset(
+				Math.max(mCornerLineWidth, mFrameLineWidth) * 0.5f,
+				Math.max(mCornerLineWidth, mFrameLineWidth) * 0.5f);
+		mGeometry.setFrame(mFrameRect.left, mFrameRect.top, mFrameRect.right, mFrameRect.bottom);
+		mGeometry.fitAspectRatio();
+		mGeometry.fitRotatedLimit();
+		syncFrameRect();
+		mIsFrameSuggestible = true;
+	}
+
+	/**
+	 * Lay the remembered normalized frame out for a new view size. The
+	 * normalized frame itself is left alone, so an intermediate layout
+	 * can't wear it down by clamping.
+	 * @return true if the frame has been laid out
+	 */
+	private boolean remapClipFrame(int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return false;
+		}
+		if (!mHasNormalizedFrame) {
+			resetClipFrame(width, height);
+			return true;
+		}
+		updateFrameLimit(width, height);
+		mapRegionToView(mNormalizedFrame, mMappingRect);
+		mGeometry.setFrame(mMappingRect.left, mMappingRect.top, mMappingRect.right, mMappingRect.bottom);
+		mGeometry.constrainToLimit();
+		syncFrameRect();
+		return true;
+	}
+
+	@Override
+	protected Parcelable onSaveInstanceState() {
+		SavedState state = new SavedState(super.onSaveInstanceState());
+		state.mAspectRatio = mAspectRatio;
+		state.mRotation    = mImageTransform != null ? mImageTransform.getRotation() : 0;
+		state.mImageWidth  = mImageWidth;
+		state.mImageHeight = mImageHeight;
+		if (mHasNormalizedFrame) {
+			state.mFrame = toArray(mNormalizedFrame);
+		}
+		state.mRegions = new float[mClipRegions.size() * 4];
+		for (int i = 0; i < mClipRegions.size(); i++) {
+			NormalizedRect region = mClipRegions.get(i);
+			state.mRegions[i * 4 + 0] = region.left;
+			state.mRegions[i * 4 + 1] = region.top;
+			state.mRegions[i * 4 + 2] = region.right;
+			state.mRegions[i * 4 + 3] = region.bottom;
+		}
+		return state;
+	}
+
+	@Override
+	protected void onRestoreInstanceState(Parcelable parcelable) {
+		if (!(parcelable instanceof SavedState)) {
+			super.onRestoreInstanceState(parcelable);
+			return;
+		}
+		SavedState state = (SavedState) parcelable;
+		super.onRestoreInstanceState(state.getSuperState());
+		
+		mAspectRatio = state.mAspectRatio;
+		mGeometry.setAspectRatio(mAspectRatio);
+		if ((mImageTransform == null || !mImageTransform.isReady()) && state.mImageWidth > 0 && state.mImageHeight > 0) {
+			// The image is still loading. The restored frame is already set when its size arrives,
+			// so remember the saved image, or onTransformReset takes it for a new one and resets the frame
+			mImageWidth       = state.mImageWidth;
+			mImageHeight      = state.mImageHeight;
+			mImageRotation    = state.mRotation;
+			mIsRestorePending = true;
+		}
+		if (mImageTransform != null) {
+			// The saved frame is normalized against the image rotated this way
+			mImageTransform.setRotation(state.mRotation);
+		}
+		mClipRegions.clear();
+		for (int i = 0; i + 3 < state.mRegions.length; i += 4) {
+			mClipRegions.add(new NormalizedRect(
+					state.mRegions[i], state.mRegions[i + 1], state.mRegions[i + 2], state.mRegions[i + 3]));
+		}
+		if (state.mFrame != null) {
+			setNormalizedFrame(new NormalizedRect(state.mFrame[0], state.mFrame[1], state.mFrame[2], state.mFrame[3]));
+		}
+	}
+
+	private static float[] toArray(NormalizedRect rect) {
+		return new float[] {rect.left, rect.top, rect.right, rect.bottom};
+	}
+
+	/**
+	 * Normalized frame, aspect ratio, image size and rotation and stored regions, a few dozen bytes
+	 */
+	static class SavedState extends BaseSavedState {
+
+		float[] mFrame       = null;
+		float   mAspectRatio = ClipGeometry.ASPECT_RATIO_FREE;
+		float   mRotation    = 0;
+		int     mImageWidth  = 0;
+		int     mImageHeight = 0;
+		float[] mRegions     = new float[0];
+
+		SavedState(Parcelable superState) {
+			super(superState);
+		}
+
+		private SavedState(Parcel in) {
+			super(in);
+			mFrame       = in.readInt() != 0 ? in.createFloatArray() : null;
+			mAspectRatio = in.readFloat();
+			mRotation    = in.readFloat();
+			mImageWidth  = in.readInt();
+			mImageHeight = in.readInt();
+			mRegions     = in.createFloatArray();
+		}
+
+		@Override
+		public void writeToParcel(Parcel out, int flags) {
+			super.writeToParcel(out, flags);
+			out.writeInt(mFrame != null ? 1 : 0);
+			if (mFrame != null) {
+				out.writeFloatArray(mFrame);
+			}
+			out.writeFloat(mAspectRatio);
+			out.writeFloat(mRotation);
+			out.writeInt(mImageWidth);
+			out.writeInt(mImageHeight);
+			out.writeFloatArray(mRegions);
+		}
+
+		public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+
+			@Override
+			public SavedState createFromParcel(Parcel in) {
+				return new SavedState(in);
+			}
+
+			@Override
+			public SavedState[] newArray(int size) {
+				return new SavedState[size];
+			}
+
+		};
+	}
+
+	/**
+	 * Invalidate only the union of the old and new frame bounds, grown by the
+	 * stroke and corner line overhang
+	 */
+	private void invalidateFrame(RectF oldFrame, RectF newFrame) {
+		float overhang = Math.max(mFrameLineWidth, mCornerLineWidth) + Math.max(mGridLineWidth, 1f);
+		mDirtyRect.set(oldFrame);
+		mDirtyRect.union(newFrame);
+		mDirtyRect.inset(-overhang, -overhang);
+		if (mHandlingEventTime >= 0 && mPendingEventTime < 0) {
+			// Latency is counted from the oldest event still waiting for a draw
+			mPendingEventTime = mHandlingEventTime;
+		}
+		invalidate(
+				(int) Math.floor(mDirtyRect.left), (int) Math.floor(mDirtyRect.top),
+				(int) Math.ceil(mDirtyRect.right), (int) Math.ceil(mDirtyRect.bottom));
+	}
 	
 	@Override
 	protected void onDraw(Canvas canvas) {
-		// Setup color list state
-		int gridLineColor   = DefaultGridLineColor;
-		int frameLineColor  = DefaultFrameLineColor;
-		int cornerLineColor = DefaultCornelLineColor;
-		gridLineColor = mGridLineColor.getColorForState(
-				mCurrentViewState, mGridLineColor.getDefaultColor());
-		frameLineColor = mFrameLineColor.getColorForState(
-				mCurrentViewState, mFrameLineColor.getDefaultColor());
-		cornerLineColor = mCornerLineColor.getColorForState(
-				mCurrentViewState, mCornerLineColor.getDefaultColor());
+		FrameMetrics metrics   = mFrameMetrics;
+		long         startTime = metrics != null ? System.nanoTime() : 0;
 		
-		// Update lines
-		updateLines();
+		// Update lines, only when the frame geometry has changed
+		if (mIsLinesDirty) {
+			updateLines();
+			mIsLinesDirty = false;
+			if (metrics != null) {
+				metrics.getLinesUpdateTime().recordNanos(System.nanoTime() - startTime);
+			}
+		}
+		
+		drawOverlay(canvas);
 		
+		if (metrics != null) {
+			long stopTime = System.nanoTime();
+			metrics.getDrawTime().recordNanos(stopTime - startTime);
+			if (mPendingEventTime >= 0) {
+				// Event times are uptime milliseconds, which run on the same monotonic clock as nanoTime
+				metrics.getTouchToDrawTime().recordNanos(stopTime - mPendingEventTime * NanosPerMilli);
+				mPendingEventTime = -1;
+			}
+		}
+	}
+	
+	private void drawOverlay(Canvas canvas) {
 		// Draw background
 		super.onDraw(canvas);
 		
+		// Draw mask, four bands around the frame so nothing is painted twice
+		if (Color.alpha(mMaskColor) != 0) {
+			float[] maskRects = mMaskRects;
+			for (int i = 0; i < maskRects.length; i += 4) {
+				canvas.drawRect(maskRects[i], maskRects[i + 1], maskRects[i + 2], maskRects[i + 3], mMaskPaint);
+			}
+		}
+		
+		// Draw stored regions
+		for (int i = mClipRegions.size() - 1; i >= 0; i--) {
+			canvas.drawRect(mapRegionToView(mClipRegions.get(i), mRegionRect), mRegionLinePaint);
+		}
+		
+		// Draw frame, lines and corner in one batch
+		if (mIsLinesBatchable) {
+			canvas.drawLines(mLines, 0, mGeometry.getLineBufferSize(), mFrameLinePaint);
+			return;
+		}
+		
 		// Draw frame
-		mFrameLinePaint.setColor(frameLineColor);
-		canvas.drawRect(mFrameRect, mFrameLinePaint);
+		canvas.drawLines(mLines, mGeometry.getFrameLineOffset(), mGeometry.getFrameLineFloatCount(), mFrameLinePaint);
 		
 		// Draw lines
-		mGridLinePaint.setColor(gridLineColor);
-        canvas.drawLines(mGridLines, mGridLinePaint);
+		canvas.drawLines(mLines, mGeometry.getGridLineOffset(), mGeometry.getGridLineFloatCount(), mGridLinePaint);
 		
 		// Draw corner
-		mCornerLinePaint.setColor(cornerLineColor);
-        canvas.drawLines(mCornerLines, mCornerLinePaint);
+		canvas.drawLines(mLines, mGeometry.getCornerLineOffset(), mGeometry.getCornerLineFloatCount(), mCornerLinePaint);
 	}
 	
 	private void updateLines() {
-	    float clipLeft        = mFrameRect.left;
-        float clipRight       = mFrameRect.right;
-        float clipTop         = mFrameRect.top;
-        float clipBottom      = mFrameRect.bottom;
-        float unitWidth       = (clipRight - clipLeft) / WidthCount;
-        float unitHeight      = (clipBottom - clipTop) / HeightCount;
-        float halfLineWidth   = mFrameLineWidth * 0.5f;
-	    int   lineOffset      = 0;
-	    int   pointOffset     = 0;
-	    
-	    // Column grid line
-	    pointOffset = 0;
-	    for (int width = 1; width < WidthCount; width++) {
-	        float top     = clipTop + halfLineWidth;
-	        float bottom  = clipBottom - halfLineWidth;
-	        float xOffset = unitWidth * width + clipLeft;
-	        mGridLines[4 * (width - 1) + 0] = xOffset;
-	        mGridLines[4 * (width - 1) + 1] = top;
-	        mGridLines[4 * (width - 1) + 2] = xOffset;
-	        mGridLines[4 * (width - 1) + 3] = bottom;
-	    }
-	    
-	    // Row grid line
-	    pointOffset = (WidthCount - 1) * (HeightCount - 1) * 2;
-	    for (int height = 1; height < HeightCount; height++) {
-	        float left    = clipLeft + halfLineWidth;
-	        float right   = clipRight - halfLineWidth;
-	        float yOffset = unitHeight * height + clipTop;
-	        mGridLines[4 * (height - 1) + 0 + pointOffset] = left;
-	        mGridLines[4 * (height - 1) + 1 + pointOffset] = yOffset;
-	        mGridLines[4 * (height - 1) + 2 + pointOffset] = right;
-	        mGridLines[4 * (height - 1) + 3 + pointOffset] = yOffset;
-	    }
-	    
-	    // Corner column line
-	    for (int width = 0; width < 2; width++) {
-	        float xOffset = clipLeft + width * (clipRight - clipLeft);
-	        for (int section = 0; section < HeightCount; section++) {
-	            if (section == 0) {
-	                float top    = clipTop - halfLineWidth;
-	                float bottom = clipTop + mCornerLineHeight + halfLineWidth;
-	                mCornerLines[lineOffset * 4 + 0] = xOffset;
-	                mCornerLines[lineOffset * 4 + 1] = top;
-	                mCornerLines[lineOffset * 4 + 2] = xOffset;
-	                mCornerLines[lineOffset * 4 + 3] = bottom;
-	                lineOffset++;
-	            } else if (section == HeightCount - 1) {
-	                float top    = clipBottom - mCornerLineHeight - halfLineWidth;
-	                float bottom = clipBottom + halfLineWidth;
-	                mCornerLines[lineOffset * 4 + 0] = xOffset;
-	                mCornerLines[lineOffset * 4 + 1] = top;
-	                mCornerLines[lineOffset * 4 + 2] = xOffset;
-	                mCornerLines[lineOffset * 4 + 3] = bottom;
-	                lineOffset++;
-	            } else {
-	                float center = clipTop + section * (clipBottom - clipTop) / (HeightCount - 1);
-	                float top    = center - mCornerLineHeight * 0.5f;
-	                float bottom = center + mCornerLineHeight * 0.5f;
-	                mCornerLines[lineOffset * 4 + 0] = xOffset;
-	                mCornerLines[lineOffset * 4 + 1] = top;
-	                mCornerLines[lineOffset * 4 + 2] = xOffset;
-	                mCornerLines[lineOffset * 4 + 3] = bottom;
-	                lineOffset++;
-	            }
-	        }
-	    }
-	    // Corner row line
-	    for (int height = 0; height < 2; height++) {
-	        float yOffset = clipTop + height * (clipBottom - clipTop);
-	        for (int section = 0; section < WidthCount; section++) {
-	            if (section == 0) {
-	                float left  = clipLeft - halfLineWidth;
-	                float right = clipLeft + mCornerLineHeight + halfLineWidth;
-	                mCornerLines[lineOffset * 4 + 0] = left;
-	                mCornerLines[lineOffset * 4 + 1] = yOffset;
-	                mCornerLines[lineOffset * 4 + 2] = right;
-	                mCornerLines[lineOffset * 4 + 3] = yOffset;
-	                lineOffset++;
-	            } else if (section == WidthCount - 1) {
-	                float left  = clipRight - mCornerLineHeight - halfLineWidth;
-	                float right = clipRight + halfLineWidth;
-	                mCornerLines[lineOffset * 4 + 0] = left;
-	                mCornerLines[lineOffset * 4 + 1] = yOffset;
-	                mCornerLines[lineOffset * 4 + 2] = right;
-	                mCornerLines[lineOffset * 4 + 3] = yOffset;
-	                lineOffset++;
-	            } else {
-	                float center = clipLeft + section * (clipRight - clipLeft) / (WidthCount - 1);
-	                float left   = center - mCornerLineHeight * 0.5f;
-	                float right  = center + mCornerLineHeight * 0.5f;
-	                mCornerLines[lineOffset * 4 + 0] = left;
-	                mCornerLines[lineOffset * 4 + 1] = yOffset;
-	                mCornerLines[lineOffset * 4 + 2] = right;
-	                mCornerLines[lineOffset * 4 + 3] = yOffset;
-	                lineOffset++;
-	            }
-	        }
-	    }
+		mGeometry.buildLines(mLines);
+		mGeometry.buildMaskRects(0, 0, getWidth(), getHeight(), mMaskRects);
 	}
 	
 	@Override
 	@SuppressLint("ClickableViewAccessibility")
 	public boolean onTouchEvent(MotionEvent event) {
+		FrameMetrics metrics = mFrameMetrics;
+		if (metrics == null) {
+			return handleTouchEvent(event);
+		}
+		long startTime = System.nanoTime();
+		mHandlingEventTime = event.getEventTime();
+		try {
+			return handleTouchEvent(event);
+		} finally {
+			mHandlingEventTime = -1;
+			metrics.getTouchHandleTime().recordNanos(System.nanoTime() - startTime);
+		}
+	}
+
+	private boolean handleTouchEvent(MotionEvent event) {
+		if (mMotionTrace != null) {
+			recordMotionEvent(mMotionTrace, event);
+		}
+		int action = event.getActionMasked();
+		if (action == MotionEvent.ACTION_DOWN) {
+			mClipController.beginTouch();
+		}
+		addTouchSamples(event);
+		if (mImageTransform != null) {
+			mScaleGestureDetector.onTouchEvent(event);
+			if (isMultiTouch(event)) {
+				mClipController.cancelFrameDrag();
+			}
+		}
+		if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+			mClipController.releaseFrameDrag(event.getX(), event.getY(), action == MotionEvent.ACTION_CANCEL);
+			mCoalescedEventTime = -1;
+		}
 		boolean isAccepted = mGestureDetector.onTouchEvent(event);
-		int     action     = event.getAction();
+		action = event.getAction();
 		if (action == MotionEvent.ACTION_CANCEL
 			|| action == MotionEvent.ACTION_UP) {
 			onUp(event);
 		}
-		invalidate();
-		return isAccepted;
+		return isAccepted || mImageTransform != null;
 	}
 
 	@Override
 	public boolean onDown(MotionEvent event) {
-		if (isTouchedInArea(event)) {
-			mCurrentViewState = PRESSED_ENABLED_STATE_SET;
+		mFrameScheduler.cancel();
+		if (mClipController.onDown(event.getX(), event.getY()) != ClipGeometry.MOTION_ACTION_NONE) {
+			mIsFrameSuggestible = false;
+			setViewState(PRESSED_ENABLED_STATE_SET);
 			return true;
 		} else {
 			return false;
@@ -360,8 +1030,10 @@ public class ImageClipper extends View implements OnGestureListener {
 	}
 
 	private void onUp(MotionEvent event) {
-		mCurrentViewState = ENABLED_STATE_SET;
-		mMotionActions = MOTION_ACTION_NONE;
+		setViewState(ENABLED_STATE_SET);
+		if (mClipController.endGesture(System.nanoTime())) {
+			mFrameScheduler.scheduleFrame();
+		}
 	}
 	
 	@Override
@@ -377,8 +1049,48 @@ public class ImageClipper extends View implements OnGestureListener {
 
 	@Override
 	public boolean onScroll(MotionEvent eventStart, MotionEvent eventEnd, float distanceX, float distanceY) {
-	    changeClipFrame(distanceX, distanceY);
-		return false;
+	    if (mImageTransform != null && mGeometry.getMotionActions() == ClipGeometry.MOTION_ACTION_NONE) {
+	        // Dragging outside the frame pans the image
+	        if (!isMultiTouch(eventEnd)) {
+	            mImageTransform.pan(-distanceX, -distanceY);
+	        }
+	        return true;
+	    }
+	    if (mGeometry.getMotionActions() == ClipGeometry.MOTION_ACTION_NONE) {
+	        return false;
+	    }
+	    if (mClipController.startFrameDrag(eventStart.getX(), eventStart.getY()) && mMotionTrace != null) {
+	        mMotionTrace.addDragStart(eventStart.getX(), eventStart.getY());
+	    }
+	    // The frame follows the finger once per display frame, see onFrame()
+	    mFrameScheduler.scheduleFrame();
+		return true;
+	}
+
+	/**
+	 * Feed every sample batched into <tt>event</tt> to the resampler
+	 */
+	private void addTouchSamples(MotionEvent event) {
+		if (event.getPointerCount() != 1) {
+			return;
+		}
+		int historySize = event.getHistorySize();
+		for (int i = 0; i < historySize; i++) {
+			mClipController.addTouchSample(event.getHistoricalEventTime(i) * NanosPerMilli,
+					event.getHistoricalX(i), event.getHistoricalY(i));
+		}
+		mClipController.addTouchSample(event.getEventTime() * NanosPerMilli, event.getX(), event.getY());
+		if (mClipController.isFrameDragging() && mCoalescedEventTime < 0) {
+			mCoalescedEventTime = event.getEventTime();
+		}
+	}
+
+	@Override
+	public void onFrameChanged(ClipController controller) {
+		mPreviousFrameRect.set(mFrameRect);
+		syncFrameRect();
+		invalidateFrame(mPreviousFrameRect, mFrameRect);
+		notifyClipFrameChanged();
 	}
 
 	@Override
@@ -388,106 +1100,52 @@ public class ImageClipper extends View implements OnGestureListener {
 
 	@Override
 	public boolean onFling(MotionEvent eventStart, MotionEvent eventEnd, float velocityX, float velocityY) {
-		// Do nothing
-		return false;
+		if (!mClipController.fling(velocityX, velocityY, System.nanoTime())) {
+			return false;
+		}
+		if (mMotionTrace != null) {
+			mMotionTrace.addFling(velocityX, velocityY);
+		}
+		mFrameScheduler.scheduleFrame();
+		return true;
 	}
-	
-	private final boolean isTouchedInArea(MotionEvent event) {
-        if (mFrameRect == null) {
-            return false;
-        }
-
-        float   currentX           = event.getX();
-        float   currentY           = event.getY();
-        float   currentClipWidth   = mFrameRect.width();
-        float   currentClipHeight  = mFrameRect.height();
-        int     verticalAction     = MOTION_ACTION_NONE;
-        int     horizontalAction   = MOTION_ACTION_NONE;
-
-        if (ClipFrameAllowFullareaTouchable) {
-            float   unitClipWidth      = currentClipWidth / WidthCount;
-            float   unitClipHeight     = currentClipHeight / HeightCount;
-            float   halfUnitClipWidth  = unitClipWidth * 0.5f;
-            float   halfUnitClipHeight = unitClipHeight * 0.5f;
-            float   touchLeftBorder    = mFrameRect.left - halfUnitClipWidth;
-            float   touchRightBorder   = mFrameRect.right + halfUnitClipWidth;
-            float   touchTopBorder     = mFrameRect.top - halfUnitClipHeight;
-            float   touchBottomBorder  = mFrameRect.bottom + halfUnitClipHeight;
-            float   moveLeftBorder     = mFrameRect.left + unitClipWidth;
-            float   moveRightBorder    = mFrameRect.right - unitClipWidth;
-            float   moveTopBorder      = mFrameRect.top + unitClipHeight;
-            float   moveBottomBorder   = mFrameRect.bottom - unitClipHeight;
-
-            if (currentX >= touchLeftBorder && currentX <= moveLeftBorder) {
-                verticalAction = MOTION_ACTION_LEFT;
-            } else if (currentX >= moveLeftBorder && currentX <= moveRightBorder) {
-                verticalAction = MOTION_ACTION_LEFT | MOTION_ACTION_RIGHT;
-            } else if (currentX > moveRightBorder && currentX <= touchRightBorder) {
-                verticalAction = MOTION_ACTION_RIGHT;
-            }
-            if (currentY >= touchTopBorder && currentY <= moveTopBorder) {
-                horizontalAction = MOTION_ACTION_TOP;
-            } else if (currentY >= moveTopBorder && currentY <= moveBottomBorder) {
-                horizontalAction = MOTION_ACTION_TOP | MOTION_ACTION_BOTTOM;
-            } else if (currentY > moveBottomBorder && currentY <= touchBottomBorder) {
-                horizontalAction = MOTION_ACTION_BOTTOM;
-            }
-        } else {
-            float acturalCornerLineHeight = mCornerLineHeight;
-            float cornerBlockWidth        = acturalCornerLineHeight;
-            float cornerBlockHeight       = acturalCornerLineHeight;
-            float touchLeftBorder         = mFrameRect.left - cornerBlockWidth;
-            float touchRightBorder        = mFrameRect.right + cornerBlockWidth;
-            float touchTopBorder          = mFrameRect.top - cornerBlockHeight;
-            float touchBottomBorder       = mFrameRect.bottom + currentClipHeight;
-            float moveLeftBorder          = mFrameRect.left + cornerBlockWidth * 2;
-            float moveRightBorder         = mFrameRect.right - cornerBlockWidth * 2;
-            float moveTopBorder           = mFrameRect.top + cornerBlockHeight * 2;
-            float moveBottomBorder        = mFrameRect.bottom - cornerBlockHeight * 2;
-            if (currentX >= touchLeftBorder && currentX <= moveLeftBorder) {
-                verticalAction = MOTION_ACTION_LEFT;
-            } else if (currentX >= moveRightBorder && currentX <= touchRightBorder) {
-                verticalAction = MOTION_ACTION_RIGHT;
-            } else {
-                verticalAction = MOTION_ACTION_NONE;
-            }
-            if (currentY >= touchTopBorder && currentY <= moveTopBorder) {
-                horizontalAction = MOTION_ACTION_TOP;
-            } else if (currentY >= moveBottomBorder && currentY <= touchBottomBorder) {
-                horizontalAction = MOTION_ACTION_BOTTOM;
-            } else {
-                horizontalAction = MOTION_ACTION_NONE;
-            }
-        }
 
-        mMotionActions = verticalAction | horizontalAction;
-        return mMotionActions != MOTION_ACTION_NONE;
-    }
-	
-	private final void changeClipFrame(float distanceX, float distanceY) {
-        if (mFrameRect == null) {
-            return;
-        }
+	@Override
+	public void onFrame(long frameTimeNanos) {
+		if (mMotionTrace != null) {
+			mMotionTrace.addFrame(frameTimeNanos);
+		}
+		if (mClipController.isFrameDragging()) {
+			// The drag is drawn for the oldest touch event coalesced into this frame
+			mHandlingEventTime = mCoalescedEventTime;
+			mClipController.onFrame(frameTimeNanos);
+			mHandlingEventTime  = -1;
+			mCoalescedEventTime = -1;
+			return;
+		}
+		if (mClipController.onFrame(frameTimeNanos)) {
+			mFrameScheduler.scheduleFrame();
+		}
+	}
 
-        float acturalCornerLineHeight = mCornerLineHeight;
-        float horizontalSpacing       = 3 * acturalCornerLineHeight;
-        float verticalSpacing         = 3 * acturalCornerLineHeight;
+	private void stopFrameAnimation() {
+		mClipController.stopAnimation();
+		mFrameScheduler.cancel();
+	}
 
-        if ((mMotionActions & MOTION_ACTION_LEFT) == MOTION_ACTION_LEFT) {
-            mFrameRect.left -= distanceX;
-            mFrameRect.left = MathUtils.clamp(mFrameRect.left, mFrameLimitRect.left, mFrameRect.right - horizontalSpacing);
-        }
-        if ((mMotionActions & MOTION_ACTION_RIGHT) == MOTION_ACTION_RIGHT) {
-            mFrameRect.right -= distanceX;
-            mFrameRect.right = MathUtils.clamp(mFrameRect.right, mFrameRect.left + horizontalSpacing, mFrameLimitRect.right);
-        }
-        if ((mMotionActions & MOTION_ACTION_TOP) == MOTION_ACTION_TOP) {
-            mFrameRect.top -= distanceY;
-            mFrameRect.top = MathUtils.clamp(mFrameRect.top, mFrameLimitRect.top, mFrameRect.bottom - verticalSpacing);
-        }
-        if ((mMotionActions & MOTION_ACTION_BOTTOM) == MOTION_ACTION_BOTTOM) {
-            mFrameRect.bottom -= distanceY;
-            mFrameRect.bottom = MathUtils.clamp(mFrameRect.bottom, mFrameRect.top + verticalSpacing, mFrameLimitRect.bottom);
-        }
-    }
+	@Override
+	protected void onDetachedFromWindow() {
+		stopFrameAnimation();
+		super.onDetachedFromWindow();
+	}
+	
+	private boolean isMultiTouch(MotionEvent event) {
+		return event.getPointerCount() > 1 || mScaleGestureDetector.isInProgress();
+	}
+	
+	private void syncFrameRect() {
+		mFrameRect.set(mGeometry.getFrameLeft(), mGeometry.getFrameTop(),
+				mGeometry.getFrameRight(), mGeometry.getFrameBottom());
+		mIsLinesDirty = true;
+	}
 }
@@ -0,0 +1,295 @@
+package com.cocoonshu.example.imageclipper.view;
+
+import java.util.ArrayList;
+
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * Image to view transform shared by the image layer and the clipper, so
+ * both always agree on where every source pixel is displayed. The image
+ * starts fit-center and can be zoomed and panned; it is kept centered on
+ * an axis where it is smaller than the view, and kept covering the view
+ * on an axis where it is larger.
+ * <p>
+ * The image may be rotated around its center to straighten it. Fitting,
+ * centering and panning then work on the bounding box of the rotated
+ * image, the <em>rotated image space</em>: its origin is the top left of
+ * that box and it is scaled like source pixels, so it equals the source
+ * image space when there is no rotation.
+ */
+public class ImageTransform {
+
+    private static final float   MaxPixelScale = 4f;
+
+    public interface OnTransformChangedListener {
+        /**
+         * Called when the image or view size changes and the transform is reset to fit-center
+         * @param transform
+         */
+        void onTransformReset(ImageTransform transform);
+
+        /**
+         * Called when the image is zoomed or panned
+         * @param transform
+         */
+        void onTransformChanged(ImageTransform transform);
+    }
+
+    private int                  mImageWidth    = 0;
+    private int                  mImageHeight   = 0;
+    private int                  mViewWidth     = 0;
+    private int                  mViewHeight    = 0;
+    private float                mFitScale      = 1f;
+    private float                mScale         = 1f;
+    private float                mTranslateX    = 0f;
+    private float                mTranslateY    = 0f;
+    private float                mRotation      = 0f;
+    private float                mRotatedWidth  = 0f;
+    private float                mRotatedHeight = 0f;
+    private Matrix               mMatrix        = new Matrix();
+    private Matrix               mInverseMatrix = new Matrix();
+    private Matrix               mDisplayMatrix = new Matrix();
+    private Matrix               mInverseDisplayMatrix = new Matrix();
+    private ArrayList<OnTransformChangedListener> mListeners = new ArrayList<OnTransformChangedListener>();
+
+    public void addOnTransformChangedListener(OnTransformChangedListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeOnTransformChangedListener(OnTransformChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    public void setImageSize(int width, int height) {
+        if (mImageWidth == width && mImageHeight == height) {
+            return;
+        }
+        mImageWidth  = width;
+        mImageHeight = height;
+        updateRotatedSize();
+        reset();
+    }
+
+    /**
+     * Rotate the image around its center, clockwise in view coordinates.
+     * The transform is reset to fit the rotated image in the view.
+     * @param degrees
+     */
+    public void setRotation(float degrees) {
+        if (mRotation == degrees) {
+            return;
+        }
+        mRotation = degrees;
+        updateRotatedSize();
+        reset();
+    }
+
+    /**
+     * @return image rotation in degrees, clockwise
+     */
+    public float getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return width of the rotated image bounding box, in source pixels
+     */
+    public float getRotatedImageWidth() {
+        return mRotatedWidth;
+    }
+
+    /**
+     * @return height of the rotated image bounding box, in source pixels
+     */
+    public float getRotatedImageHeight() {
+        return mRotatedHeight;
+    }
+
+    public void setViewSize(int width, int height) {
+        if (mViewWidth == width && mViewHeight == height) {
+            return;
+        }
+        mViewWidth  = width;
+        mViewHeight = height;
+        reset();
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    public boolean isReady() {
+        return mImageWidth > 0 && mImageHeight > 0 && mViewWidth > 0 && mViewHeight > 0;
+    }
+
+    /**
+     * Reset the image to fit-center in the view
+     */
+    public void reset() {
+        if (isReady()) {
+            mFitScale = Math.min(mViewWidth / mRotatedWidth, mViewHeight / mRotatedHeight);
+        } else {
+            mFitScale = 1f;
+        }
+        mScale      = mFitScale;
+        mTranslateX = 0;
+        mTranslateY = 0;
+        constrain();
+        updateMatrix();
+        for (int i = mListeners.size() - 1; i >= 0; i--) {
+            mListeners.get(i).onTransformReset(this);
+        }
+    }
+
+    /**
+     * @return display pixels per source pixel
+     */
+    public float getScale() {
+        return mScale;
+    }
+
+    public float getMinScale() {
+        return mFitScale;
+    }
+
+    public float getMaxScale() {
+        return Math.max(mFitScale, MaxPixelScale);
+    }
+
+    /**
+     * Zoom by <tt>factor</tt> around a focus point in view coordinates
+     */
+    public void zoom(float factor, float focusX, float focusY) {
+        if (!isReady()) {
+            return;
+        }
+        float previousScale      = mScale;
+        float previousTranslateX = mTranslateX;
+        float previousTranslateY = mTranslateY;
+        float scale              = MathUtils.clamp(mScale * factor, getMinScale(), getMaxScale());
+        float ratio              = scale / mScale;
+        mTranslateX = focusX - (focusX - mTranslateX) * ratio;
+        mTranslateY = focusY - (focusY - mTranslateY) * ratio;
+        mScale      = scale;
+        apply(previousScale, previousTranslateX, previousTranslateY);
+    }
+
+    /**
+     * Move the image by (<tt>dx</tt>, <tt>dy</tt>) view pixels
+     */
+    public void pan(float dx, float dy) {
+        if (!isReady()) {
+            return;
+        }
+        float previousTranslateX = mTranslateX;
+        float previousTranslateY = mTranslateY;
+        mTranslateX += dx;
+        mTranslateY += dy;
+        apply(mScale, previousTranslateX, previousTranslateY);
+    }
+
+    /**
+     * @return source image to view matrix, must not be modified
+     */
+    public Matrix getMatrix() {
+        return mMatrix;
+    }
+
+    /**
+     * @return view to source image matrix, must not be modified
+     */
+    public Matrix getInverseMatrix() {
+        return mInverseMatrix;
+    }
+
+    /**
+     * @return rotated image space to view matrix, a scale and translation only, must not be modified
+     */
+    public Matrix getDisplayMatrix() {
+        return mDisplayMatrix;
+    }
+
+    /**
+     * Get the bounds of the rotated image in view coordinates
+     * @param out
+     * @return out
+     */
+    public RectF getDisplayBounds(RectF out) {
+        out.set(0, 0, mRotatedWidth, mRotatedHeight);
+        mDisplayMatrix.mapRect(out);
+        return out;
+    }
+
+    /**
+     * Map a rectangle from view coordinates into source image coordinates
+     * @param rect
+     * @return rect
+     */
+    public RectF mapViewToImage(RectF rect) {
+        mInverseMatrix.mapRect(rect);
+        return rect;
+    }
+
+    /**
+     * Map a rectangle from view coordinates into rotated image coordinates
+     * @param rect
+     * @return rect
+     */
+    public RectF mapViewToRotatedImage(RectF rect) {
+        mInverseDisplayMatrix.mapRect(rect);
+        return rect;
+    }
+
+    private void apply(float previousScale, float previousTranslateX, float previousTranslateY) {
+        constrain();
+        if (previousScale != mScale || previousTranslateX != mTranslateX || previousTranslateY != mTranslateY) {
+            updateMatrix();
+            for (int i = mListeners.size() - 1; i >= 0; i--) {
+                mListeners.get(i).onTransformChanged(this);
+            }
+        }
+    }
+
+    private void constrain() {
+        float displayWidth  = mRotatedWidth * mScale;
+        float displayHeight = mRotatedHeight * mScale;
+        if (displayWidth <= mViewWidth) {
+            mTranslateX = (mViewWidth - displayWidth) * 0.5f;
+        } else {
+            mTranslateX = MathUtils.clamp(mTranslateX, mViewWidth - displayWidth, 0);
+        }
+        if (displayHeight <= mViewHeight) {
+            mTranslateY = (mViewHeight - displayHeight) * 0.5f;
+        } else {
+            mTranslateY = MathUtils.clamp(mTranslateY, mViewHeight - displayHeight, 0);
+        }
+    }
+
+    private void updateRotatedSize() {
+        float radians = (float) Math.toRadians(mRotation);
+        mRotatedWidth  = MathUtils.getRotatedWidth(mImageWidth, mImageHeight, radians);
+        mRotatedHeight = MathUtils.getRotatedHeight(mImageWidth, mImageHeight, radians);
+    }
+
+    private void updateMatrix() {
+        mDisplayMatrix.setScale(mScale, mScale);
+        mDisplayMatrix.postTranslate(mTranslateX, mTranslateY);
+        mDisplayMatrix.invert(mInverseDisplayMatrix);
+
+        // Rotate around the image center, then move the rotated bounding box to the origin
+        mMatrix.setRotate(mRotation, mImageWidth * 0.5f, mImageHeight * 0.5f);
+        mMatrix.postTranslate((mRotatedWidth - mImageWidth) * 0.5f, (mRotatedHeight - mImageHeight) * 0.5f);
+        mMatrix.postConcat(mDisplayMatrix);
+        mMatrix.invert(mInverseMatrix);
+    }
+
+}
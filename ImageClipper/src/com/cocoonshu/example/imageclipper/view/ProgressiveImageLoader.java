@@ -0,0 +1,309 @@
+package com.cocoonshu.example.imageclipper.view;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Opens an image in steps of increasing quality, so it can be shown and
+ * clipped long before the full resolution decoder is ready:
+ * <ol>
+ * <li>the embedded EXIF thumbnail, for file sources which have one</li>
+ * <li>a heavily subsampled decode, bounded by {@link #PreviewMaxSize}</li>
+ * <li>a {@link BitmapRegionDecoder} for tiled full resolution drawing</li>
+ * </ol>
+ * All steps run on one background thread; results are delivered on the
+ * main thread. Each step's latency from {@link #start(Callback)} is kept
+ * for time to interactive reporting. With a {@link BitmapPool} set, the
+ * subsampled preview reuses a pooled bitmap where the platform allows it.
+ */
+public class ProgressiveImageLoader implements Runnable {
+
+    private static final String TAG = "ProgressiveImageLoader";
+
+    /** Longest side bound of the subsampled preview */
+    public static final int      PreviewMaxSize        = 512;
+
+    public interface Callback {
+        /**
+         * A preview is ready. Called up to twice, with a sharper preview each time.
+         * @param loader
+         * @param preview     downsampled bitmap, owned by the receiver
+         * @param imageWidth  full resolution width
+         * @param imageHeight full resolution height
+         */
+        void onPreviewLoaded(ProgressiveImageLoader loader, Bitmap preview, int imageWidth, int imageHeight);
+        /**
+         * The full resolution decoder is ready, it is owned by the receiver
+         */
+        void onDecoderLoaded(ProgressiveImageLoader loader, BitmapRegionDecoder decoder);
+        void onLoadFailed(ProgressiveImageLoader loader, Exception exception);
+    }
+
+    private final Resources      mResources;
+    private final int            mResourceId;
+    private final String         mFilePath;
+    private final Handler        mMainHandler;
+    private Callback             mCallback             = null;
+    private BitmapPool           mBitmapPool           = null;
+    private Thread               mThread               = null;
+    private volatile boolean     mIsCancelled          = false;
+    private long                 mStartTimeNanos       = 0;
+    private volatile long        mPreviewLatencyNanos  = 0;
+    private volatile long        mDecoderLatencyNanos  = 0;
+
+    public ProgressiveImageLoader(Resources resources, int resourceId) {
+        mResources   = resources;
+        mResourceId  = resourceId;
+        mFilePath    = null;
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public ProgressiveImageLoader(String filePath) {
+        mResources   = null;
+        mResourceId  = 0;
+        mFilePath    = filePath;
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Decode the preview into bitmaps from <tt>pool</tt>, set before {@link #start(Callback)}
+     * @param pool
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * Start loading on a background thread. Must be called once, on the main thread.
+     * @param callback
+     */
+    public void start(Callback callback) {
+        if (mThread != null) {
+            throw new IllegalStateException("Loader has already been started");
+        }
+        mCallback       = callback;
+        mStartTimeNanos = System.nanoTime();
+        mThread         = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop delivering results. Anything decoded after this is released by the loader.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when loading started, 0 if not started
+     */
+    public long getStartTimeNanos() {
+        return mStartTimeNanos;
+    }
+
+    /**
+     * @return nanoseconds from start until the first preview was decoded, 0 if not yet
+     */
+    public long getPreviewLatencyNanos() {
+        return mPreviewLatencyNanos;
+    }
+
+    /**
+     * @return nanoseconds from start until the full resolution decoder was opened, 0 if not yet
+     */
+    public long getDecoderLatencyNanos() {
+        return mDecoderLatencyNanos;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(options);
+            int imageWidth  = options.outWidth;
+            int imageHeight = options.outHeight;
+            if (imageWidth <= 0 || imageHeight <= 0) {
+                throw new IOException("Unsupported image");
+            }
+
+            if (mFilePath != null) {
+                loadExifThumbnail(imageWidth, imageHeight);
+            }
+            if (mIsCancelled) {
+                return;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize       = computePreviewSampleSize(imageWidth, imageHeight);
+            Bitmap preview = decodePreview(options, imageWidth, imageHeight);
+            if (preview != null) {
+                dispatchPreviewLoaded(preview, imageWidth, imageHeight);
+            }
+            if (mIsCancelled) {
+                return;
+            }
+
+            // The image is already on screen, opening the decoder is not latency critical
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            dispatchDecoderLoaded(openDecoder());
+        } catch (IOException exp) {
+            dispatchLoadFailed(exp);
+        } catch (OutOfMemoryError error) {
+            dispatchLoadFailed(new IOException(error.toString()));
+        }
+    }
+
+    private void loadExifThumbnail(int imageWidth, int imageHeight) {
+        try {
+            byte[] thumbnailData = new ExifInterface(mFilePath).getThumbnail();
+            if (thumbnailData == null) {
+                return;
+            }
+            Bitmap thumbnail = BitmapFactory.decodeByteArray(thumbnailData, 0, thumbnailData.length);
+            if (thumbnail != null) {
+                dispatchPreviewLoaded(thumbnail, imageWidth, imageHeight);
+            }
+        } catch (IOException exp) {
+            // The subsampled decode follows anyway
+            Log.w(TAG, "[loadExifThumbnail] No usable EXIF thumbnail in " + mFilePath);
+        }
+    }
+
+    /**
+     * Smallest power of two sample size which brings the longest side within
+     * {@link #PreviewMaxSize}, the decoder only subsamples by powers of two anyway
+     */
+    static int computePreviewSampleSize(int imageWidth, int imageHeight) {
+        int longestSide = Math.max(imageWidth, imageHeight);
+        int sampleSize  = 1;
+        while (longestSide / sampleSize > PreviewMaxSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decodePreview(BitmapFactory.Options options, int imageWidth, int imageHeight)
+            throws IOException {
+        if (mBitmapPool == null) {
+            return decodeStream(options);
+        }
+        // Upper bound of the subsampled size, the decoder shrinks the reused bitmap to fit
+        int sampleSize = options.inSampleSize;
+        mBitmapPool.attachInBitmap(options,
+                (imageWidth + sampleSize - 1) / sampleSize, (imageHeight + sampleSize - 1) / sampleSize, false);
+        try {
+            return decodeStream(options);
+        } catch (IllegalArgumentException exp) {
+            if (options.inBitmap == null) {
+                throw exp;
+            }
+            // The pooled bitmap was rejected, decode into a new one
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decodeStream(options);
+        }
+    }
+
+    private InputStream openStream() throws IOException {
+        return mFilePath != null ? new FileInputStream(mFilePath) : mResources.openRawResource(mResourceId);
+    }
+
+    private Bitmap decodeStream(BitmapFactory.Options options) throws IOException {
+        InputStream stream = openStream();
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private BitmapRegionDecoder openDecoder() throws IOException {
+        if (mFilePath != null) {
+            return BitmapRegionDecoder.newInstance(mFilePath, false);
+        }
+        InputStream stream = openStream();
+        try {
+            return BitmapRegionDecoder.newInstance(stream, false);
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException exp) {
+            // Ignore
+        }
+    }
+
+    private void dispatchPreviewLoaded(final Bitmap preview, final int imageWidth, final int imageHeight) {
+        if (mPreviewLatencyNanos == 0) {
+            mPreviewLatencyNanos = System.nanoTime() - mStartTimeNanos;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (mIsCancelled) {
+                    if (mBitmapPool != null) {
+                        mBitmapPool.put(preview);
+                    } else {
+                        preview.recycle();
+                    }
+                    return;
+                }
+                mCallback.onPreviewLoaded(ProgressiveImageLoader.this, preview, imageWidth, imageHeight);
+            }
+
+        });
+    }
+
+    private void dispatchDecoderLoaded(final BitmapRegionDecoder decoder) {
+        mDecoderLatencyNanos = System.nanoTime() - mStartTimeNanos;
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (mIsCancelled) {
+                    decoder.recycle();
+                    return;
+                }
+                mCallback.onDecoderLoaded(ProgressiveImageLoader.this, decoder);
+            }
+
+        });
+    }
+
+    private void dispatchLoadFailed(final Exception exception) {
+        Log.e(TAG, "[run] Failed to load image", exception);
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!mIsCancelled) {
+                    mCallback.onLoadFailed(ProgressiveImageLoader.this, exception);
+                }
+            }
+
+        });
+    }
+
+}
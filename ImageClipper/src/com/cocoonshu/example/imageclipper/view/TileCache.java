@@ -0,0 +1,101 @@
+package com.cocoonshu.example.imageclipper.view;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Memory bounded LRU cache of decoded image tiles, sized in bytes.
+ * Evicted tiles are handed to a {@link BitmapPool}, if one is set, so
+ * later tiles can be decoded into them.
+ * All methods are expected to be called on the UI thread.
+ */
+public class TileCache extends LruCache<TileCache.TileKey, Bitmap> {
+
+    private static final int DefaultMemoryFraction = 8;
+
+    private BitmapPool       mBitmapPool           = null;
+
+    /**
+     * Identify a tile by its grid position and decode sample size
+     */
+    public static final class TileKey {
+        int sampleSize;
+        int column;
+        int row;
+
+        public TileKey() {
+        }
+
+        public TileKey(int sampleSize, int column, int row) {
+            set(sampleSize, column, row);
+        }
+
+        public TileKey set(int sampleSize, int column, int row) {
+            this.sampleSize = sampleSize;
+            this.column     = column;
+            this.row        = row;
+            return this;
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return sampleSize == other.sampleSize && column == other.column && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = sampleSize;
+            hash = 31 * hash + column;
+            hash = 31 * hash + row;
+            return hash;
+        }
+    }
+
+    public TileCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * Create a cache bounded to a fraction of the application heap limit
+     */
+    public static TileCache createDefault() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        return new TileCache((int) Math.min(Integer.MAX_VALUE, maxMemory / DefaultMemoryFraction));
+    }
+
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, TileKey key, Bitmap oldValue, Bitmap newValue) {
+        if (mBitmapPool != null && oldValue != newValue) {
+            mBitmapPool.put(oldValue);
+        }
+    }
+
+    @Override
+    protected int sizeOf(TileKey key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+    }
+
+}
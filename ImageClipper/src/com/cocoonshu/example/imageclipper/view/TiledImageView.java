@@ -0,0 +1,435 @@
+package com.cocoonshu.example.imageclipper.view;
+
+import java.util.HashSet;
+
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+import com.cocoonshu.example.imageclipper.view.TileCache.TileKey;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Large image preview which decodes only the visible tiles, at the sample
+ * size the current display scale needs, on a background thread. Decoded
+ * tiles are kept in a memory bounded {@link TileCache}; while a tile is being
+ * decoded, a coarser cached tile covering the same area is drawn instead.
+ * Placement and zoom come from an {@link ImageTransform} shared with the clipper.
+ * A low resolution preview can be shown before the decoder is ready, and
+ * stays the last resort fallback for tiles nothing else covers yet.
+ * Full size tiles are decoded into bitmaps recycled through a {@link BitmapPool}.
+ */
+public class TiledImageView extends View implements ImageTransform.OnTransformChangedListener {
+
+    private static final String TAG = "TiledImageView";
+
+    private static final int     TileSize                 = 256;
+    private static final int     MaxFallbackLevels        = 4;
+
+    public interface OnFirstDrawListener {
+        /**
+         * Called once per image, after the first frame showing any of its pixels
+         * @param view
+         * @param drawTimeNanos {@link System#nanoTime()} at the end of that draw
+         */
+        void onFirstDraw(TiledImageView view, long drawTimeNanos);
+    }
+
+    private BitmapRegionDecoder  mDecoder                 = null;
+    private int                  mImageWidth              = 0;
+    private int                  mImageHeight             = 0;
+    private ImageTransform       mImageTransform          = null;
+    private TileCache            mTileCache               = null;
+    private BitmapPool           mBitmapPool              = null;
+    private HashSet<TileKey>     mRequestedTiles          = new HashSet<TileKey>();
+    private HandlerThread        mDecodeThread            = null;
+    private Handler              mDecodeHandler           = null;
+    private Handler              mMainHandler             = null;
+    private Paint                mTilePaint               = null;
+    private Bitmap               mPreview                 = null;
+    private boolean              mIsFirstDrawPending      = false;
+    private long                 mFirstDrawTimeNanos      = 0;
+    private OnFirstDrawListener  mOnFirstDrawListener     = null;
+
+    // Visible tile range published to the decode thread
+    private volatile int         mVisibleSampleSize       = 0;
+    private volatile int         mVisibleColumnStart      = 0;
+    private volatile int         mVisibleColumnEnd        = -1;
+    private volatile int         mVisibleRowStart         = 0;
+    private volatile int         mVisibleRowEnd           = -1;
+
+    // Draw pass scratch objects, reused across frames
+    private final TileKey        mLookupKey               = new TileKey();
+    private final RectF          mVisibleRect             = new RectF();
+    private final RectF          mTileDrawRect            = new RectF();
+    private final Rect           mFallbackSourceRect      = new Rect();
+    private final RectF          mImageRect               = new RectF();
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        setupDefaultValues(context);
+    }
+
+    private void setupDefaultValues(Context context) {
+        mTileCache   = TileCache.createDefault();
+        mBitmapPool  = BitmapPool.createDefault();
+        mTileCache.setBitmapPool(mBitmapPool);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mTilePaint   = new Paint(Paint.FILTER_BITMAP_FLAG);
+        setImageTransform(new ImageTransform());
+    }
+
+    /**
+     * Share the image transform with other layers, such as the clipper
+     * @param transform
+     */
+    public void setImageTransform(ImageTransform transform) {
+        if (mImageTransform != null) {
+            mImageTransform.removeOnTransformChangedListener(this);
+        }
+        mImageTransform = transform;
+        mImageTransform.addOnTransformChangedListener(this);
+        mImageTransform.setViewSize(getWidth(), getHeight());
+        mImageTransform.setImageSize(mImageWidth, mImageHeight);
+        invalidate();
+    }
+
+    public ImageTransform getImageTransform() {
+        return mImageTransform;
+    }
+
+    /**
+     * Share the bitmap pool of the tiles with other decoders, such as previews and exports
+     * @param pool
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mTileCache.evictAll();
+        mBitmapPool = pool;
+        mTileCache.setBitmapPool(pool);
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    @Override
+    public void onTransformReset(ImageTransform transform) {
+        invalidate();
+    }
+
+    @Override
+    public void onTransformChanged(ImageTransform transform) {
+        invalidate();
+    }
+
+    /**
+     * Set the decoder of the image to display. The decoder is not owned
+     * by this view and will not be recycled by it.
+     * @param decoder
+     */
+    public void setImageDecoder(BitmapRegionDecoder decoder) {
+        int imageWidth  = decoder != null ? decoder.getWidth() : 0;
+        int imageHeight = decoder != null ? decoder.getHeight() : 0;
+        if (imageWidth != mImageWidth || imageHeight != mImageHeight) {
+            // The preview belongs to another image
+            mPreview            = null;
+            mIsFirstDrawPending = decoder != null;
+        }
+        mDecoder     = decoder;
+        mImageWidth  = imageWidth;
+        mImageHeight = imageHeight;
+        mTileCache.evictAll();
+        mRequestedTiles.clear();
+        mImageTransform.setImageSize(mImageWidth, mImageHeight);
+        invalidate();
+    }
+
+    /**
+     * Show a low resolution version of the image until tiles are decoded. The
+     * preview keeps being used as fallback once a decoder of the same size is
+     * set. The bitmap is not owned by this view and will not be recycled by it.
+     * @param preview     downsampled image, or null to remove it
+     * @param imageWidth  full resolution width of the image
+     * @param imageHeight full resolution height of the image
+     */
+    public void setPreview(Bitmap preview, int imageWidth, int imageHeight) {
+        if (imageWidth != mImageWidth || imageHeight != mImageHeight) {
+            mDecoder = null;
+            mTileCache.evictAll();
+            mRequestedTiles.clear();
+            mIsFirstDrawPending = preview != null;
+        }
+        mPreview     = preview;
+        mImageWidth  = imageWidth;
+        mImageHeight = imageHeight;
+        mImageTransform.setImageSize(mImageWidth, mImageHeight);
+        invalidate();
+    }
+
+    public Bitmap getPreview() {
+        return mPreview;
+    }
+
+    public void setOnFirstDrawListener(OnFirstDrawListener listener) {
+        mOnFirstDrawListener = listener;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the current image was first drawn, 0 if not yet
+     */
+    public long getFirstDrawTimeNanos() {
+        return mIsFirstDrawPending ? 0 : mFirstDrawTimeNanos;
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        mImageTransform.setViewSize(width, height);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mDecodeThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mDecodeThread.quit();
+        mDecodeThread  = null;
+        mDecodeHandler = null;
+        mMainHandler.removeCallbacksAndMessages(null);
+        mRequestedTiles.clear();
+        mTileCache.evictAll();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (!mImageTransform.isReady()) {
+            return;
+        }
+        if (mDecoder == null) {
+            if (mPreview != null) {
+                mImageRect.set(0, 0, mImageWidth, mImageHeight);
+                canvas.save();
+                canvas.concat(mImageTransform.getMatrix());
+                canvas.drawBitmap(mPreview, null, mImageRect, mTilePaint);
+                canvas.restore();
+                dispatchFirstDraw();
+            }
+            return;
+        }
+
+        // Sample level follows the current zoom, only the pixels the zoom needs are decoded
+        float displayScale = mImageTransform.getScale();
+        int   sampleSize   = MathUtils.computeSampleSize(mImageWidth, mImageHeight,
+                Math.round(mImageWidth * displayScale), Math.round(mImageHeight * displayScale));
+        int tileExtent = TileSize * sampleSize;
+
+        // Visible source area
+        mVisibleRect.set(0, 0, getWidth(), getHeight());
+        mImageTransform.mapViewToImage(mVisibleRect);
+        if (!mVisibleRect.intersect(0, 0, mImageWidth, mImageHeight)) {
+            return;
+        }
+        int columnStart = (int) (mVisibleRect.left / tileExtent);
+        int columnEnd   = (int) Math.ceil(mVisibleRect.right / tileExtent) - 1;
+        int rowStart    = (int) (mVisibleRect.top / tileExtent);
+        int rowEnd      = (int) Math.ceil(mVisibleRect.bottom / tileExtent) - 1;
+        mVisibleSampleSize  = sampleSize;
+        mVisibleColumnStart = columnStart;
+        mVisibleColumnEnd   = columnEnd;
+        mVisibleRowStart    = rowStart;
+        mVisibleRowEnd      = rowEnd;
+
+        canvas.save();
+        canvas.concat(mImageTransform.getMatrix());
+        for (int row = rowStart; row <= rowEnd; row++) {
+            for (int column = columnStart; column <= columnEnd; column++) {
+                int tileLeft   = column * tileExtent;
+                int tileTop    = row * tileExtent;
+                int tileRight  = Math.min(tileLeft + tileExtent, mImageWidth);
+                int tileBottom = Math.min(tileTop + tileExtent, mImageHeight);
+                mTileDrawRect.set(tileLeft, tileTop, tileRight, tileBottom);
+
+                Bitmap tile = mTileCache.get(mLookupKey.set(sampleSize, column, row));
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileDrawRect, mTilePaint);
+                } else {
+                    requestTile(sampleSize, column, row);
+                    drawFallbackTile(canvas, sampleSize, tileLeft, tileTop, tileRight, tileBottom);
+                }
+            }
+        }
+        canvas.restore();
+        dispatchFirstDraw();
+    }
+
+    private void dispatchFirstDraw() {
+        if (!mIsFirstDrawPending) {
+            return;
+        }
+        mIsFirstDrawPending = false;
+        mFirstDrawTimeNanos = System.nanoTime();
+        if (mOnFirstDrawListener != null) {
+            mOnFirstDrawListener.onFirstDraw(this, mFirstDrawTimeNanos);
+        }
+    }
+
+    private void drawFallbackTile(Canvas canvas, int sampleSize, int left, int top, int right, int bottom) {
+        int coarseSampleSize = sampleSize;
+        for (int level = 0; level < MaxFallbackLevels; level++) {
+            coarseSampleSize *= 2;
+            int    coarseExtent = TileSize * coarseSampleSize;
+            int    column       = left / coarseExtent;
+            int    row          = top / coarseExtent;
+            Bitmap coarseTile   = mTileCache.get(mLookupKey.set(coarseSampleSize, column, row));
+            if (coarseTile != null) {
+                int originX = column * coarseExtent;
+                int originY = row * coarseExtent;
+                mFallbackSourceRect.set(
+                        (left - originX) / coarseSampleSize,
+                        (top - originY) / coarseSampleSize,
+                        Math.min(coarseTile.getWidth(), (right - originX + coarseSampleSize - 1) / coarseSampleSize),
+                        Math.min(coarseTile.getHeight(), (bottom - originY + coarseSampleSize - 1) / coarseSampleSize));
+                canvas.drawBitmap(coarseTile, mFallbackSourceRect, mTileDrawRect, mTilePaint);
+                return;
+            }
+        }
+
+        // Nothing decoded around here yet, fall back to the preview
+        if (mPreview != null) {
+            float scaleX = (float) mPreview.getWidth() / mImageWidth;
+            float scaleY = (float) mPreview.getHeight() / mImageHeight;
+            mFallbackSourceRect.set(
+                    (int) (left * scaleX), (int) (top * scaleY),
+                    Math.min(mPreview.getWidth(), (int) Math.ceil(right * scaleX)),
+                    Math.min(mPreview.getHeight(), (int) Math.ceil(bottom * scaleY)));
+            canvas.drawBitmap(mPreview, mFallbackSourceRect, mTileDrawRect, mTilePaint);
+        }
+    }
+
+    private void requestTile(int sampleSize, int column, int row) {
+        if (mDecodeHandler == null || mRequestedTiles.contains(mLookupKey.set(sampleSize, column, row))) {
+            return;
+        }
+        TileKey key = new TileKey(sampleSize, column, row);
+        mRequestedTiles.add(key);
+        mDecodeHandler.post(new DecodeTileTask(mDecoder, key, mBitmapPool));
+    }
+
+    private boolean isTileVisible(TileKey key) {
+        return key.sampleSize == mVisibleSampleSize
+                && key.column >= mVisibleColumnStart && key.column <= mVisibleColumnEnd
+                && key.row >= mVisibleRowStart && key.row <= mVisibleRowEnd;
+    }
+
+    private void onTileDecoded(BitmapRegionDecoder decoder, TileKey key, Bitmap tile) {
+        mRequestedTiles.remove(key);
+        if (tile == null) {
+            return;
+        }
+        if (decoder != mDecoder) {
+            mBitmapPool.put(tile);
+            return;
+        }
+        mTileCache.put(key, tile);
+        invalidate();
+    }
+
+    private class DecodeTileTask implements Runnable {
+
+        private final BitmapRegionDecoder mTaskDecoder;
+        private final TileKey             mKey;
+        private final BitmapPool          mTaskBitmapPool;
+
+        DecodeTileTask(BitmapRegionDecoder decoder, TileKey key, BitmapPool pool) {
+            mTaskDecoder    = decoder;
+            mKey            = key;
+            mTaskBitmapPool = pool;
+        }
+
+        @Override
+        public void run() {
+            Bitmap tile = null;
+            if (isTileVisible(mKey) && !mTaskDecoder.isRecycled()) {
+                int  tileExtent = TileSize * mKey.sampleSize;
+                int  left       = mKey.column * tileExtent;
+                int  top        = mKey.row * tileExtent;
+                Rect region     = new Rect(left, top,
+                        Math.min(left + tileExtent, mTaskDecoder.getWidth()),
+                        Math.min(top + tileExtent, mTaskDecoder.getHeight()));
+                if (!region.isEmpty()) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = mKey.sampleSize;
+                    options.inMutable    = true;
+                    // The region decoder keeps the size of a reused bitmap, so only full tiles reuse one
+                    if (region.width() == tileExtent && region.height() == tileExtent) {
+                        mTaskBitmapPool.attachInBitmap(options, TileSize, TileSize, true);
+                    }
+                    tile = decodeTile(region, options);
+                }
+            }
+
+            final Bitmap decodedTile = tile;
+            mMainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    onTileDecoded(mTaskDecoder, mKey, decodedTile);
+                }
+
+            });
+        }
+
+        private Bitmap decodeTile(Rect region, BitmapFactory.Options options) {
+            try {
+                return mTaskDecoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException exp) {
+                if (options.inBitmap == null) {
+                    throw exp;
+                }
+                // The pooled bitmap was rejected, decode into a new one
+                mTaskBitmapPool.put(options.inBitmap);
+                options.inBitmap = null;
+                return decodeTile(region, options);
+            } catch (IllegalStateException exp) {
+                // Decoder recycled while decoding
+                mTaskBitmapPool.put(options.inBitmap);
+                return null;
+            }
+        }
+    }
+
+}
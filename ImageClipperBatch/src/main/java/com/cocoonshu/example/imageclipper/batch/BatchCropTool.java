@@ -0,0 +1,156 @@
+package com.cocoonshu.example.imageclipper.batch;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+
+/**
+ * Command line entry of the headless batch crop tool. Applies normalized
+ * crop rects, as produced by <tt>ImageClipper.getNormalizedFrame()</tt>,
+ * to every image of a directory on a fork-join pool and reports the
+ * throughput.
+ * <pre>
+ * java -jar imageclipper-batch.jar -crop l,t,r,b [-crop l,t,r,b ...] -in dir -out dir
+ *      [-max WxH] [-format jpg|png] [-quality 0-100] [-threads n]
+ * </pre>
+ */
+public class BatchCropTool {
+
+    private static final String   DefaultFormat  = "jpg";
+    private static final int      DefaultQuality = 90;
+    private static final String[] ImageSuffixes  = {".jpg", ".jpeg", ".png", ".bmp", ".gif"};
+
+    public static void main(String[] args) {
+        List<NormalizedRect> regions   = new ArrayList<NormalizedRect>();
+        File                 inputDir  = null;
+        File                 outputDir = null;
+        int                  maxWidth  = 0;
+        int                  maxHeight = 0;
+        String               format    = DefaultFormat;
+        int                  quality   = DefaultQuality;
+        int                  threads   = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value of " + option);
+                }
+                String value = args[++i];
+                if ("-crop".equals(option)) {
+                    regions.add(NormalizedRect.parse(value));
+                } else if ("-in".equals(option)) {
+                    inputDir = new File(value);
+                } else if ("-out".equals(option)) {
+                    outputDir = new File(value);
+                } else if ("-max".equals(option)) {
+                    String[] size = value.toLowerCase(Locale.US).split("x");
+                    if (size.length != 2) {
+                        throw new IllegalArgumentException("Expected WxH but was: " + value);
+                    }
+                    maxWidth  = Integer.parseInt(size[0].trim());
+                    maxHeight = Integer.parseInt(size[1].trim());
+                } else if ("-format".equals(option)) {
+                    format = value.toLowerCase(Locale.US);
+                    if (!"jpg".equals(format) && !"png".equals(format)) {
+                        throw new IllegalArgumentException("Unsupported format: " + value);
+                    }
+                } else if ("-quality".equals(option)) {
+                    quality = Integer.parseInt(value);
+                } else if ("-threads".equals(option)) {
+                    threads = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+            if (regions.isEmpty() || inputDir == null || outputDir == null) {
+                throw new IllegalArgumentException("-crop, -in and -out are required");
+            }
+            if (!inputDir.isDirectory()) {
+                throw new IllegalArgumentException("Not a directory: " + inputDir);
+            }
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new IllegalArgumentException("Cannot create " + outputDir);
+            }
+        } catch (IllegalArgumentException exp) {
+            System.err.println(exp.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+
+        File[] sources = listImages(inputDir);
+        System.exit(run(sources, regions.toArray(new NormalizedRect[regions.size()]),
+                new ImageIOCropper(maxWidth, maxHeight), outputDir, format,
+                MathUtils.clamp(quality, 0, 100) / 100f, Math.max(1, threads)));
+    }
+
+    /**
+     * Crop every source with every region and print a throughput report
+     * @return process exit code, 1 if any image failed
+     */
+    static int run(File[] sources, NormalizedRect[] regions, ImageIOCropper cropper, File outputDir,
+                   String format, float quality, int threads) {
+        CropJob.Stats stats = new CropJob.Stats();
+        ForkJoinPool  pool  = new ForkJoinPool(threads);
+        long          start = System.nanoTime();
+        try {
+            if (sources.length > 0) {
+                pool.invoke(new CropJob(sources, 0, sources.length, regions, cropper, outputDir, format, quality, stats));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+
+        System.out.printf(Locale.US, "Cropped %d images into %d crops with %d threads in %.2f s%n",
+                stats.images.get(), stats.crops.get(), threads, seconds);
+        System.out.printf(Locale.US, "  %.1f images/s, %.1f crops/s%n",
+                stats.images.get() / seconds, stats.crops.get() / seconds);
+        System.out.printf(Locale.US, "  %.1f source MP/s read, %.1f output MP/s, %.1f MB/s written%n",
+                stats.sourcePixels.get() / 1e6 / seconds, stats.outputPixels.get() / 1e6 / seconds,
+                stats.outputBytes.get() / 1e6 / seconds);
+        if (stats.failures.get() > 0) {
+            System.out.printf(Locale.US, "  %d images failed%n", stats.failures.get());
+            return 1;
+        }
+        return 0;
+    }
+
+    private static File[] listImages(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                if (!file.isFile()) {
+                    return false;
+                }
+                String name = file.getName().toLowerCase(Locale.US);
+                for (String suffix : ImageSuffixes) {
+                    if (name.endsWith(suffix)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -jar imageclipper-batch.jar -crop l,t,r,b [-crop l,t,r,b ...]"
+                + " -in <dir> -out <dir> [-max WxH] [-format jpg|png] [-quality 0-100] [-threads n]");
+    }
+
+}
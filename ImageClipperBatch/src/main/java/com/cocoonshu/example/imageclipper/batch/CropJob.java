@@ -0,0 +1,136 @@
+package com.cocoonshu.example.imageclipper.batch;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+
+/**
+ * Fork-join job cropping a range of source files. Ranges are split in
+ * halves down to single files, so idle workers steal whole images.
+ */
+public class CropJob extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Counters shared by every job of one run
+     */
+    public static class Stats {
+        public final AtomicLong images       = new AtomicLong();
+        public final AtomicLong crops        = new AtomicLong();
+        public final AtomicLong failures     = new AtomicLong();
+        public final AtomicLong sourcePixels = new AtomicLong();
+        public final AtomicLong outputPixels = new AtomicLong();
+        public final AtomicLong outputBytes  = new AtomicLong();
+    }
+
+    private final File[]           mSources;
+    private final int              mFrom;
+    private final int              mTo;
+    private final NormalizedRect[] mRegions;
+    private final ImageIOCropper   mCropper;
+    private final File             mOutputDir;
+    private final String           mFormat;
+    private final float            mQuality;
+    private final Stats            mStats;
+
+    public CropJob(File[] sources, int from, int to, NormalizedRect[] regions, ImageIOCropper cropper,
+                   File outputDir, String format, float quality, Stats stats) {
+        mSources   = sources;
+        mFrom      = from;
+        mTo        = to;
+        mRegions   = regions;
+        mCropper   = cropper;
+        mOutputDir = outputDir;
+        mFormat    = format;
+        mQuality   = quality;
+        mStats     = stats;
+    }
+
+    @Override
+    protected void compute() {
+        if (mTo - mFrom > 1) {
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(
+                    new CropJob(mSources, mFrom, middle, mRegions, mCropper, mOutputDir, mFormat, mQuality, mStats),
+                    new CropJob(mSources, middle, mTo, mRegions, mCropper, mOutputDir, mFormat, mQuality, mStats));
+            return;
+        }
+        for (int i = mFrom; i < mTo; i++) {
+            try {
+                cropFile(mSources[i]);
+            } catch (IOException exp) {
+                mStats.failures.incrementAndGet();
+                System.err.println("[CropJob] " + mSources[i] + ": " + exp.getMessage());
+            } catch (RuntimeException exp) {
+                // ImageIO plugins throw unchecked exceptions on malformed files, one bad file must not stop the batch
+                mStats.failures.incrementAndGet();
+                System.err.println("[CropJob] " + mSources[i] + ": " + exp);
+            }
+        }
+    }
+
+    private void cropFile(File source) throws IOException {
+        ImageIOCropper.Result result   = mCropper.crop(source, mRegions);
+        String                baseName = source.getName();
+        int                   dot      = baseName.lastIndexOf('.');
+        if (dot > 0) {
+            baseName = baseName.substring(0, dot);
+        }
+        for (int i = 0; i < result.images.length; i++) {
+            BufferedImage image = result.images[i];
+            if (image == null) {
+                continue;
+            }
+            File output = new File(mOutputDir, baseName + "_" + i + "." + mFormat);
+            write(image, output);
+            mStats.crops.incrementAndGet();
+            mStats.outputPixels.addAndGet((long) image.getWidth() * image.getHeight());
+            mStats.outputBytes.addAndGet(output.length());
+        }
+        mStats.images.incrementAndGet();
+        mStats.sourcePixels.addAndGet(result.sourcePixels);
+    }
+
+    private void write(BufferedImage image, File output) throws IOException {
+        boolean isJpeg = "jpg".equals(mFormat);
+        if (isJpeg && image.getColorModel().hasAlpha()) {
+            // JPEG has no alpha channel
+            BufferedImage opaque   = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D    graphics = opaque.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            image = opaque;
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(isJpeg ? "jpeg" : mFormat).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (isJpeg) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(mQuality);
+        }
+        ImageOutputStream stream = ImageIO.createImageOutputStream(output);
+        if (stream == null) {
+            throw new IOException("Cannot write " + output);
+        }
+        try {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            stream.close();
+        }
+    }
+
+}
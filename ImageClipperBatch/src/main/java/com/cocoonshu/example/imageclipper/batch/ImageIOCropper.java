@@ -0,0 +1,131 @@
+package com.cocoonshu.example.imageclipper.batch;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.cocoonshu.example.imageclipper.core.MathUtils;
+import com.cocoonshu.example.imageclipper.core.NormalizedRect;
+
+/**
+ * javax.imageio counterpart of the on-device <tt>ImageRegionCropper</tt>.
+ * A normalized rect is mapped onto source pixels by the same
+ * {@link NormalizedRect#mapToSource(int, int, int[])}, only that region is
+ * read, subsampled by the same power-of-two sample size, then scaled down
+ * to fit the output bounds exactly.
+ */
+public class ImageIOCropper {
+
+    /**
+     * Crops of one source image, with the pixels each one read
+     */
+    public static class Result {
+        public final BufferedImage[] images;
+        public final long            sourcePixels;
+
+        Result(BufferedImage[] images, long sourcePixels) {
+            this.images       = images;
+            this.sourcePixels = sourcePixels;
+        }
+    }
+
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+
+    /**
+     * @param maxWidth  output width bound, <= 0 means unbounded
+     * @param maxHeight output height bound, <= 0 means unbounded
+     */
+    public ImageIOCropper(int maxWidth, int maxHeight) {
+        mMaxWidth  = maxWidth;
+        mMaxHeight = maxHeight;
+    }
+
+    /**
+     * Crop every region out of <tt>source</tt>, reusing one reader for all of them
+     * @return crops in region order, null for an empty region
+     * @throws IOException if the file is not a readable image
+     */
+    public Result crop(File source, NormalizedRect[] regions) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        if (input == null) {
+            throw new IOException("Cannot open " + source);
+        }
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + source);
+            }
+            reader = readers.next();
+            reader.setInput(input, true, true);
+
+            int             sourceWidth  = reader.getWidth(0);
+            int             sourceHeight = reader.getHeight(0);
+            int[]           bounds       = new int[4];
+            long            sourcePixels = 0;
+            BufferedImage[] images       = new BufferedImage[regions.length];
+            for (int i = 0; i < regions.length; i++) {
+                regions[i].mapToSource(sourceWidth, sourceHeight, bounds);
+                int regionWidth  = bounds[2] - bounds[0];
+                int regionHeight = bounds[3] - bounds[1];
+                if (regionWidth <= 0 || regionHeight <= 0) {
+                    continue;
+                }
+
+                int sampleSize = MathUtils.computeSampleSize(regionWidth, regionHeight, mMaxWidth, mMaxHeight);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(bounds[0], bounds[1], regionWidth, regionHeight));
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                images[i]     = fit(reader.read(0, param));
+                sourcePixels += (long) regionWidth * regionHeight;
+            }
+            return new Result(images, sourcePixels);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            input.close();
+        }
+    }
+
+    /**
+     * Scale down to the output bounds, like <tt>Bitmap.createScaledBitmap</tt> with filtering
+     */
+    private BufferedImage fit(BufferedImage decoded) {
+        float scale = 1f;
+        if (mMaxWidth > 0) {
+            scale = Math.min(scale, (float) mMaxWidth / decoded.getWidth());
+        }
+        if (mMaxHeight > 0) {
+            scale = Math.min(scale, (float) mMaxHeight / decoded.getHeight());
+        }
+        if (scale >= 1f) {
+            return decoded;
+        }
+
+        int           scaledWidth  = Math.max(1, Math.round(decoded.getWidth() * scale));
+        int           scaledHeight = Math.max(1, Math.round(decoded.getHeight() * scale));
+        int           type         = decoded.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled       = new BufferedImage(scaledWidth, scaledHeight, type);
+        Graphics2D    graphics     = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(decoded, 0, 0, scaledWidth, scaledHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.cocoonshu.example.imageclipper.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cocoonshu.example.imageclipper.core.AutoCropEngine;
+import com.cocoonshu.example.imageclipper.core.ClipGeometry;
+
+/**
+ * End to end cost of one auto crop suggestion on a synthetic analysis
+ * image: a textured subject on a noisy background. The budget on device
+ * is a few tens of milliseconds, off the UI thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AutoCropBenchmark {
+
+    @Param({"96", "160"})
+    public int            size;
+
+    @Param({"1", "4"})
+    public int            parallelism;
+
+    @Param({"0", "1.7777778"})
+    public float          aspectRatio;
+
+    private AutoCropEngine mEngine = null;
+    private int[]          mPixels = null;
+    private int            mWidth  = 0;
+    private int            mHeight = 0;
+
+    @Setup
+    public void setup() {
+        mEngine = new AutoCropEngine(parallelism);
+        mWidth  = size;
+        mHeight = size * 3 / 4;
+        mPixels = new int[mWidth * mHeight];
+
+        Random random = new Random(0x5EED);
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                boolean isSubject = x > mWidth / 5 && x < mWidth / 2 && y > mHeight / 6 && y < mHeight / 2;
+                int     value     = isSubject ? ((x / 4 + y / 4) % 2 == 0 ? 220 : 30) : 60 + random.nextInt(16);
+                mPixels[y * mWidth + x] = 0xFF000000 | value << 16 | value << 8 | value;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    @Benchmark
+    public AutoCropEngine.Suggestion suggest() {
+        return mEngine.suggest(mPixels, mWidth, mHeight, aspectRatio, 3, 3, ClipGeometry.GRID_STYLE_UNIFORM);
+    }
+
+}
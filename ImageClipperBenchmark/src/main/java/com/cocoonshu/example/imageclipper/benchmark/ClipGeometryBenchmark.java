@@ -0,0 +1,131 @@
+package com.cocoonshu.example.imageclipper.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cocoonshu.example.imageclipper.core.ClipGeometry;
+import com.cocoonshu.example.imageclipper.core.SnapIndex;
+
+/**
+ * Per-event cost of the clip geometry paths the view runs while dragging:
+ * hit-test on touch down, frame mutation on every move and line rebuild
+ * on every redraw. Run with <tt>-prof gc</tt> to get allocations per op,
+ * which must stay at zero for the drag and line paths. With snapping on,
+ * every drag also runs the snap index lookups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClipGeometryBenchmark {
+
+    private static final float ViewWidth        = 1080f;
+    private static final float ViewHeight       = 1920f;
+    private static final float FrameLineWidth   = 9f;
+    private static final float CornerLineHeight = 36f;
+    private static final int   PointCount       = 1024;
+    private static final int   SnapCount        = 32;
+    private static final float SnapDistance     = 24f;
+
+    @Param({"move", "left_top", "right"})
+    public String        motion;
+
+    @Param({"3", "4", "8"})
+    public int           gridCount;
+
+    @Param({"false", "true"})
+    public boolean       snapping;
+
+    private ClipGeometry mGeometry    = null;
+    private int          mMotion      = ClipGeometry.MOTION_ACTION_NONE;
+    private float[]      mTouchPoints = null;
+    private float[]      mLines       = null;
+    private int          mPointIndex  = 0;
+    private float        mDragStep    = 4f;
+
+    @Setup
+    public void setup() {
+        mGeometry = new ClipGeometry();
+        mGeometry.setLineMetrics(FrameLineWidth, CornerLineHeight);
+        mGeometry.setGrid(gridCount, gridCount, ClipGeometry.GRID_STYLE_UNIFORM);
+        mGeometry.setLimit(0, 0, ViewWidth, ViewHeight);
+        mGeometry.setFrame(100, 200, ViewWidth - 100, ViewHeight - 200);
+        if (snapping) {
+            Random  snapRandom = new Random(0x5A4B);
+            float[] xs         = new float[SnapCount];
+            float[] ys         = new float[SnapCount];
+            for (int i = 0; i < SnapCount; i++) {
+                xs[i] = snapRandom.nextFloat();
+                ys[i] = snapRandom.nextFloat();
+            }
+            mGeometry.setSnapIndex(new SnapIndex(xs, ys), SnapDistance);
+            mGeometry.setSnapMapping(0, 0, ViewWidth, ViewHeight);
+        }
+        mMotion = toMotionActions(motion);
+        mGeometry.setMotionActions(mMotion);
+
+        Random random = new Random(0x5EED);
+        mTouchPoints = new float[PointCount * 2];
+        for (int i = 0; i < mTouchPoints.length; i += 2) {
+            mTouchPoints[i + 0] = random.nextFloat() * ViewWidth;
+            mTouchPoints[i + 1] = random.nextFloat() * ViewHeight;
+        }
+        mLines = new float[mGeometry.getLineBufferSize()];
+    }
+
+    private static int toMotionActions(String motion) {
+        if ("left_top".equals(motion)) {
+            return ClipGeometry.MOTION_ACTION_LEFT_TOP;
+        } else if ("right".equals(motion)) {
+            return ClipGeometry.MOTION_ACTION_RIGHT;
+        } else {
+            return ClipGeometry.MOTION_ACTION_MOVE;
+        }
+    }
+
+    @Benchmark
+    public int hitTest() {
+        int index = mPointIndex;
+        mPointIndex = (index + 2) & (PointCount * 2 - 1);
+        int actions = mGeometry.hitTest(mTouchPoints[index], mTouchPoints[index + 1]);
+        mGeometry.setMotionActions(mMotion);
+        return actions;
+    }
+
+    @Benchmark
+    public boolean drag() {
+        // Bounce back and forth so the frame never settles against the limit
+        if (!mGeometry.drag(mDragStep, mDragStep)) {
+            mDragStep = -mDragStep;
+            return mGeometry.drag(mDragStep, mDragStep);
+        }
+        return true;
+    }
+
+    @Benchmark
+    public float buildLines() {
+        mGeometry.buildLines(mLines);
+        return mLines[0] + mLines[mLines.length - 1];
+    }
+
+    @Benchmark
+    public float dragAndBuildLines() {
+        drag();
+        return buildLines();
+    }
+
+}
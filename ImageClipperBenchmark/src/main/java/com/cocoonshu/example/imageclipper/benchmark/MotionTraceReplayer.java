@@ -0,0 +1,450 @@
+package com.cocoonshu.example.imageclipper.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import com.cocoonshu.example.imageclipper.core.ClipController;
+import com.cocoonshu.example.imageclipper.core.ClipGeometry;
+import com.cocoonshu.example.imageclipper.core.MotionTrace;
+import com.cocoonshu.example.imageclipper.core.SnapIndex;
+
+/**
+ * Replays a {@link MotionTrace} recorded on device through the
+ * {@link ClipController} the clipper view drives, in the same order: touch
+ * events feed the resampler and hit test the frame, display frames apply
+ * the resampled drag or step the fling and snap animations, and every
+ * invalidated frame is drawn into a stub canvas the next display frame.
+ * Platform gesture decisions come from the trace, so the replay is
+ * deterministic on any JVM.
+ * <p>
+ * Every record is timed on thread CPU time, and the bytes allocated while
+ * handling it are counted, after warmup iterations let the JIT settle.
+ * Limits turn the report into a regression gate, the exit code is 1 when
+ * one is exceeded:
+ * <pre>
+ * java -cp target/benchmarks.jar com.cocoonshu.example.imageclipper.benchmark.MotionTraceReplayer \
+ *     clipper_motion.trace [-warmup 20] [-iterations 20] [-maxP99Micros 50] [-maxAllocBytes 0] [-maxInvalidates n]
+ * java -cp target/benchmarks.jar com.cocoonshu.example.imageclipper.benchmark.MotionTraceReplayer \
+ *     -synthesize synthetic.trace
+ * </pre>
+ * Image pans and zooms are replayed as events, but the image does not move,
+ * as the image transform is not part of the core.
+ */
+public class MotionTraceReplayer implements ClipController.OnFrameChangedListener {
+
+    private static final int     DefaultWarmupIterations  = 20;
+    private static final int     DefaultIterations        = 20;
+    private static final long    NanosPerMilli            = 1000000L;
+
+    private static final int     STAT_MOTION              = 0;
+    private static final int     STAT_FRAME               = 1;
+    private static final int     STAT_COUNT               = 2;
+    private static final String[] StatNames               = {"touchEvent", "frame"};
+
+    /**
+     * Draw calls of the overlay, counted instead of rasterized
+     */
+    static final class StubCanvas {
+
+        long mDrawCallCount = 0;
+        long mFloatCount    = 0;
+
+        void drawRect(float left, float top, float right, float bottom) {
+            mDrawCallCount++;
+            mFloatCount += 4;
+        }
+
+        void drawLines(float[] lines, int offset, int count) {
+            mDrawCallCount++;
+            mFloatCount += count;
+        }
+
+    }
+
+    /**
+     * Per record measurements of one replay
+     */
+    public static final class Report {
+
+        private final long[][]   mCpuNanos        = new long[STAT_COUNT][];
+        private final long[]     mAllocatedBytes  = new long[STAT_COUNT];
+        private final int[]      mCounts          = new int[STAT_COUNT];
+        private int              mInvalidateCount = 0;
+        private int              mDrawCount       = 0;
+        private final float[]    mFinalFrame      = new float[4];
+
+        Report(int recordCount) {
+            for (int i = 0; i < STAT_COUNT; i++) {
+                mCpuNanos[i] = new long[recordCount];
+            }
+        }
+
+        void record(int stat, long cpuNanos, long allocatedBytes) {
+            mCpuNanos[stat][mCounts[stat]++] = cpuNanos;
+            mAllocatedBytes[stat] += allocatedBytes;
+        }
+
+        public int getCount(int stat) {
+            return mCounts[stat];
+        }
+
+        /**
+         * @param percentile in [0, 100]
+         */
+        public long getPercentileNanos(int stat, double percentile) {
+            int count = mCounts[stat];
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(mCpuNanos[stat], count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100.0 * count);
+            return sorted[Math.min(count, Math.max(1, rank)) - 1];
+        }
+
+        public long getAllocatedBytes(int stat) {
+            return mAllocatedBytes[stat];
+        }
+
+        public long getTotalAllocatedBytes() {
+            long total = 0;
+            for (long bytes : mAllocatedBytes) {
+                total += bytes;
+            }
+            return total;
+        }
+
+        public int getInvalidateCount() {
+            return mInvalidateCount;
+        }
+
+        public int getDrawCount() {
+            return mDrawCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int stat = 0; stat < STAT_COUNT; stat++) {
+                builder.append(String.format("%-10s n=%d cpu p50=%dns p90=%dns p99=%dns max=%dns alloc=%dB%n",
+                        StatNames[stat], mCounts[stat], getPercentileNanos(stat, 50), getPercentileNanos(stat, 90),
+                        getPercentileNanos(stat, 99), getPercentileNanos(stat, 100), mAllocatedBytes[stat]));
+            }
+            builder.append(String.format("invalidates=%d draws=%d frame=[%.2f, %.2f, %.2f, %.2f]",
+                    mInvalidateCount, mDrawCount, mFinalFrame[0], mFinalFrame[1], mFinalFrame[2], mFinalFrame[3]));
+            return builder.toString();
+        }
+
+    }
+
+    private final MotionTrace    mTrace;
+    private final ThreadMXBean   mThreadBean     = ManagementFactory.getThreadMXBean();
+    // Allocation counters are a HotSpot extension
+    private final com.sun.management.ThreadMXBean mAllocationBean;
+
+    private final ClipGeometry   mGeometry       = new ClipGeometry();
+    private final ClipController mController     = new ClipController(mGeometry);
+    private final StubCanvas     mCanvas         = new StubCanvas();
+    private float[]              mLines          = null;
+    private final float[]        mMaskRects;
+    private boolean              mIsDrawPending  = false;
+    private long                 mLastFrameTime  = 0;
+    private Report               mReport         = null;
+
+    public MotionTraceReplayer(MotionTrace trace) {
+        if (!trace.hasGeometry()) {
+            throw new IllegalArgumentException("Trace has no start geometry");
+        }
+        mTrace     = trace;
+        mMaskRects = new float[mGeometry.getMaskBufferSize()];
+        mController.setOnFrameChangedListener(this);
+        mAllocationBean = mThreadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mThreadBean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) mThreadBean : null;
+        if (mAllocationBean != null) {
+            mAllocationBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    /**
+     * Replay the whole trace from its start geometry, on the calling thread
+     * @return the measurements, CPU times fall back to wall time where thread CPU time is not supported
+     */
+    public Report replay() {
+        MotionTrace trace = mTrace;
+        trace.applyGeometry(mGeometry);
+        mLines = new float[mGeometry.getLineBufferSize()];
+        mController.reset();
+        mIsDrawPending = true;
+        mLastFrameTime = 0;
+        mReport        = new Report(trace.getRecordCount());
+
+        int recordCount = trace.getRecordCount();
+        for (int record = 0; record < recordCount; record++) {
+            long cpuTime   = getCpuTime();
+            long allocated = getAllocatedBytes();
+            int  stat;
+            switch (trace.getType(record)) {
+            case MotionTrace.RECORD_MOTION:
+                // A fling is decided while the up event is handled, before the snap of onUp
+                boolean isFlung = record + 1 < recordCount && trace.getType(record + 1) == MotionTrace.RECORD_FLING;
+                handleMotion(record, isFlung);
+                if (isFlung) {
+                    record++;
+                }
+                stat = STAT_MOTION;
+                break;
+            case MotionTrace.RECORD_FRAME:
+                handleFrame(trace.getFrameTimeNanos(record));
+                stat = STAT_FRAME;
+                break;
+            case MotionTrace.RECORD_DRAG_START:
+                mController.startFrameDrag(trace.getValueX(record), trace.getValueY(record));
+                stat = STAT_MOTION;
+                break;
+            default:
+                // A fling without its up event, as when the trace was cut
+                continue;
+            }
+            mReport.record(stat, getCpuTime() - cpuTime, getAllocatedBytes() - allocated);
+        }
+        mReport.mFinalFrame[0] = mGeometry.getFrameLeft();
+        mReport.mFinalFrame[1] = mGeometry.getFrameTop();
+        mReport.mFinalFrame[2] = mGeometry.getFrameRight();
+        mReport.mFinalFrame[3] = mGeometry.getFrameBottom();
+        return mReport;
+    }
+
+    private void handleMotion(int record, boolean isFlung) {
+        MotionTrace trace       = mTrace;
+        int         action      = trace.getAction(record);
+        int         sampleStart = trace.getSampleStart(record);
+        int         sampleEnd   = trace.getSampleEnd(record);
+        if (sampleEnd == sampleStart) {
+            return;
+        }
+        float x = trace.getSampleX(sampleEnd - 1);
+        float y = trace.getSampleY(sampleEnd - 1);
+
+        if (action == MotionTrace.ACTION_DOWN) {
+            mController.beginTouch();
+        }
+        if (trace.getPointerCount(record) == 1) {
+            for (int sample = sampleStart; sample < sampleEnd; sample++) {
+                mController.addTouchSample(trace.getSampleTimeMillis(sample) * NanosPerMilli,
+                        trace.getSampleX(sample), trace.getSampleY(sample));
+            }
+        } else {
+            mController.cancelFrameDrag();
+        }
+
+        boolean isUp = action == MotionTrace.ACTION_UP || action == MotionTrace.ACTION_CANCEL;
+        if (isUp) {
+            mController.releaseFrameDrag(x, y, action == MotionTrace.ACTION_CANCEL);
+        }
+        if (action == MotionTrace.ACTION_DOWN) {
+            mController.onDown(x, y);
+        }
+        if (isFlung) {
+            mController.fling(trace.getValueX(record + 1), trace.getValueY(record + 1), mLastFrameTime);
+        }
+        if (isUp) {
+            mController.endGesture(mLastFrameTime);
+        }
+    }
+
+    private void handleFrame(long frameTimeNanos) {
+        mLastFrameTime = frameTimeNanos;
+        mController.onFrame(frameTimeNanos);
+        if (mIsDrawPending) {
+            draw();
+        }
+    }
+
+    @Override
+    public void onFrameChanged(ClipController controller) {
+        mReport.mInvalidateCount++;
+        mIsDrawPending = true;
+    }
+
+    private void draw() {
+        mIsDrawPending = false;
+        mReport.mDrawCount++;
+        mGeometry.buildLines(mLines);
+        mGeometry.buildMaskRects(0, 0, mTrace.getViewWidth(), mTrace.getViewHeight(), mMaskRects);
+        for (int i = 0; i < mMaskRects.length; i += 4) {
+            mCanvas.drawRect(mMaskRects[i], mMaskRects[i + 1], mMaskRects[i + 2], mMaskRects[i + 3]);
+        }
+        mCanvas.drawLines(mLines, 0, mGeometry.getLineBufferSize());
+    }
+
+    private long getCpuTime() {
+        return mThreadBean.isCurrentThreadCpuTimeSupported() ? mThreadBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private long getAllocatedBytes() {
+        return mAllocationBean != null ? mAllocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * A corner resize, a move ending in a fling and a slow move, sampled at 120Hz
+     * and drawn at 60Hz, with edges snapping to the image center and thirds as
+     * on an xxhdpi screen, for when no recorded trace is at hand
+     */
+    public static MotionTrace synthesize() {
+        float[]      snapLines = {0, 1f / 3, 0.5f, 2f / 3, 1};
+        ClipGeometry geometry  = new ClipGeometry();
+        geometry.setLineMetrics(3, 27);
+        geometry.setLimit(0, 0, 1080, 1440);
+        geometry.setFrame(40, 40, 1040, 1400);
+        geometry.setSnapIndex(new SnapIndex(snapLines, snapLines), 24);
+        geometry.setSnapMapping(0, 0, 1080, 1440);
+        MotionTrace trace = new MotionTrace();
+        trace.setGeometry(geometry, 1080, 1440);
+
+        long timeMillis = 1000;
+        timeMillis = synthesizeDrag(trace, timeMillis, 42, 42, 350, 470, 60, 0);
+        timeMillis = synthesizeDrag(trace, timeMillis, 540, 720, 420, 560, 20, 2400);
+        synthesizeDrag(trace, timeMillis, 500, 700, 620, 820, 90, 0);
+        return trace;
+    }
+
+    private static long synthesizeDrag(MotionTrace trace, long timeMillis, float fromX, float fromY,
+                                       float toX, float toY, int steps, float flingVelocity) {
+        trace.beginMotion(MotionTrace.ACTION_DOWN, 1);
+        trace.addSample(timeMillis, fromX, fromY);
+        trace.addFrame((timeMillis + 4) * NanosPerMilli);
+        for (int step = 1; step <= steps; step++) {
+            // Two samples per event, batched as history
+            trace.beginMotion(MotionTrace.ACTION_MOVE, 1);
+            for (int half = 1; half >= 0; half--) {
+                float fraction = (step - half * 0.5f) / steps;
+                trace.addSample(timeMillis + step * 16 - half * 8,
+                        fromX + (toX - fromX) * fraction, fromY + (toY - fromY) * fraction);
+            }
+            if (step == 1) {
+                trace.addDragStart(fromX, fromY);
+            }
+            trace.addFrame((timeMillis + step * 16 + 4) * NanosPerMilli);
+        }
+        timeMillis += steps * 16 + 8;
+        trace.beginMotion(MotionTrace.ACTION_UP, 1);
+        trace.addSample(timeMillis, toX, toY);
+        if (flingVelocity > 0) {
+            float length = (float) Math.hypot(toX - fromX, toY - fromY);
+            trace.addFling(flingVelocity * (toX - fromX) / length, flingVelocity * (toY - fromY) / length);
+        }
+        // Let fling and snap animations run out
+        for (int frame = 1; frame <= 90; frame++) {
+            trace.addFrame((timeMillis + frame * 16) * NanosPerMilli);
+        }
+        return timeMillis + 90 * 16 + 500;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String tracePath      = null;
+        String synthesizePath = null;
+        int    warmup         = DefaultWarmupIterations;
+        int    iterations     = DefaultIterations;
+        long   maxP99Micros   = -1;
+        long   maxAllocBytes  = -1;
+        long   maxInvalidates = -1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-synthesize".equals(arg) && i + 1 < args.length) {
+                synthesizePath = args[++i];
+            } else if ("-warmup".equals(arg) && i + 1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if ("-iterations".equals(arg) && i + 1 < args.length) {
+                iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("-maxP99Micros".equals(arg) && i + 1 < args.length) {
+                maxP99Micros = Long.parseLong(args[++i]);
+            } else if ("-maxAllocBytes".equals(arg) && i + 1 < args.length) {
+                maxAllocBytes = Long.parseLong(args[++i]);
+            } else if ("-maxInvalidates".equals(arg) && i + 1 < args.length) {
+                maxInvalidates = Long.parseLong(args[++i]);
+            } else if (!arg.startsWith("-") && tracePath == null) {
+                tracePath = arg;
+            } else {
+                printUsage();
+                System.exit(2);
+            }
+        }
+
+        if (synthesizePath != null) {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(synthesizePath));
+            try {
+                synthesize().write(output);
+            } finally {
+                output.close();
+            }
+            System.out.println("Synthetic trace written to " + synthesizePath);
+            return;
+        }
+        if (tracePath == null) {
+            printUsage();
+            System.exit(2);
+        }
+
+        MotionTrace trace;
+        InputStream input = new BufferedInputStream(new FileInputStream(tracePath));
+        try {
+            trace = MotionTrace.read(input);
+        } finally {
+            input.close();
+        }
+        MotionTraceReplayer replayer = new MotionTraceReplayer(trace);
+        for (int i = 0; i < warmup; i++) {
+            replayer.replay();
+        }
+
+        // Report the iteration with the lowest p99, the others carry more scheduling noise
+        Report best = null;
+        for (int i = 0; i < iterations; i++) {
+            Report report = replayer.replay();
+            if (best == null || getWorstP99(report) < getWorstP99(best)) {
+                best = report;
+            }
+        }
+        System.out.println(tracePath + ": " + trace.getRecordCount() + " records");
+        System.out.println(best);
+
+        boolean isRegressed = false;
+        if (maxP99Micros >= 0 && getWorstP99(best) > maxP99Micros * 1000) {
+            System.out.println("FAIL p99 " + getWorstP99(best) + "ns > " + maxP99Micros + "us");
+            isRegressed = true;
+        }
+        if (maxAllocBytes >= 0 && best.getTotalAllocatedBytes() > maxAllocBytes) {
+            System.out.println("FAIL allocated " + best.getTotalAllocatedBytes() + "B > " + maxAllocBytes + "B");
+            isRegressed = true;
+        }
+        if (maxInvalidates >= 0 && best.getInvalidateCount() > maxInvalidates) {
+            System.out.println("FAIL invalidates " + best.getInvalidateCount() + " > " + maxInvalidates);
+            isRegressed = true;
+        }
+        System.exit(isRegressed ? 1 : 0);
+    }
+
+    private static long getWorstP99(Report report) {
+        long worst = 0;
+        for (int stat = 0; stat < STAT_COUNT; stat++) {
+            worst = Math.max(worst, report.getPercentileNanos(stat, 99));
+        }
+        return worst;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: MotionTraceReplayer <trace> [-warmup n] [-iterations n]"
+                + " [-maxP99Micros n] [-maxAllocBytes n] [-maxInvalidates n]");
+        System.err.println("       MotionTraceReplayer -synthesize <trace>");
+    }
+
+}